@@ -0,0 +1,59 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Looking up attribute values in tags, against the regex AttributeExtractor used before AttributeLexer.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeBenchmark {
+
+    private static final String LEGACY_REGEX = "%s=[\"']?((?:.(?![\"']?\\s+(?:\\S+)=|[>\"']))+.)[\"']?";
+
+    // Number of attributes in front of the one looked up
+    @Param({"1", "8"})
+    public int attributes;
+
+    private String mTag;
+
+    @Setup
+    public void setup() {
+        final StringBuilder sb = new StringBuilder("<string");
+        for (int i = 0; i < attributes; i++)
+            sb.append(" tools:attribute").append(i).append("=\"value ").append(i).append('"');
+        mTag = sb.append(" name=\"wallpapers_json_url\">https://example.com/wallpapers.json</string>").toString();
+    }
+
+    @Benchmark
+    public String getAttributeValue() {
+        return AttributeExtractor.getAttributeValue("name", mTag);
+    }
+
+    @Benchmark
+    public void lexerRange(Blackhole bh) {
+        bh.consume(AttributeLexer.find(mTag, 0, mTag.length(), "name"));
+    }
+
+    @Benchmark
+    public String legacyRegex() {
+        final Matcher matcher = Pattern.compile(String.format(LEGACY_REGEX, "name")).matcher(mTag);
+        if (!matcher.find()) return null;
+        String result = mTag.substring(matcher.start(), matcher.end());
+        result = result.substring(result.indexOf('=') + 1, result.length());
+        if (result.startsWith("\"") && result.endsWith("\""))
+            result = result.substring(1, result.length() - 1);
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a single binary file with FileChannel.transferTo, against copying it through a pooled
+ * stream buffer as the paths that can't use channels do.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryCopyBenchmark {
+
+    // File size in kilobytes
+    @Param({"64", "8192"})
+    public int size;
+
+    private File mDir;
+    private File mSource;
+    private File mDestination;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = Fixtures.tempDir("binary-copy-benchmark");
+        mSource = new File(mDir, "source.png");
+        mDestination = new File(mDir, "destination.png");
+        final byte[] content = new byte[size * 1024];
+        new Random(size).nextBytes(content);
+        try (OutputStream os = new FileOutputStream(mSource)) {
+            os.write(content);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    @Benchmark
+    public void transferTo() throws Exception {
+        FileUtil.copyFileBinary(mSource, mDestination);
+    }
+
+    @Benchmark
+    public void pooledStream() throws Exception {
+        final byte[] buffer = BufferPool.acquire();
+        try (InputStream in = new FileInputStream(mSource);
+             OutputStream out = new FileOutputStream(mDestination)) {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
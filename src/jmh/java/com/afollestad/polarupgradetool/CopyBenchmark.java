@@ -0,0 +1,88 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying Polar's latest code into a project, renaming its package on the way.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"500"})
+    public int files;
+
+    // Average file size in kilobytes
+    @Param({"16"})
+    public int fileSize;
+
+    // Threads copying the tree; 1 copies it one file at a time
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File mDir;
+    private File mSource;
+    private File mDestination;
+    private UpgradeContext mContext;
+    private FileUtil.CopyInterceptor mInterceptor;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.silenceLog();
+        Main.COPY_PARALLELISM = parallelism;
+        mDir = Fixtures.tempDir("copy-benchmark");
+        mSource = new File(mDir, "source");
+        mDestination = new File(mDir, "destination");
+        Fixtures.sourceTree(mSource, files, fileSize * 1024);
+        mContext = Fixtures.context(mDir);
+
+        final ByteRewriter rewriter = new ByteRewriter(Fixtures.UPSTREAM_PACKAGE, Fixtures.PROJECT_PACKAGE);
+        mInterceptor = new FileUtil.CopyInterceptor() {
+            @Override
+            public String onCopyLine(File file, String line) {
+                return line.replace(Fixtures.UPSTREAM_PACKAGE, Fixtures.PROJECT_PACKAGE);
+            }
+
+            @Override
+            public boolean loggingEnabled() {
+                return false;
+            }
+
+            @Override
+            public boolean skip(File file) {
+                return false;
+            }
+
+            @Override
+            public ByteRewriter rewriter() {
+                return rewriter;
+            }
+        };
+    }
+
+    // Every copy starts from an empty destination, as it does for a folder that's new upstream
+    @Setup(Level.Invocation)
+    public void clearDestination() {
+        Fixtures.delete(mDestination);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    @Benchmark
+    public boolean copyFolder() {
+        return FileUtil.copyFolder(mContext, mSource, mDestination, mInterceptor);
+    }
+}
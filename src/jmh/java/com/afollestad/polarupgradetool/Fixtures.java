@@ -0,0 +1,156 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates the inputs the benchmarks run against. Everything is generated from a fixed seed, so a
+ * given size always produces the same input and results can be compared between runs and releases.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class Fixtures {
+
+    static final String UPSTREAM_PACKAGE = "com.afollestad.polar";
+    static final String PROJECT_PACKAGE = "com.example.iconpack";
+
+    private static final long SEED = 0x501A2;
+
+    /**
+     * A resource file in the style of Polar's dev_customization.xml, with the given number of
+     * string, bool and integer elements. Values are prefixed, so a project's copy of the file can
+     * be told apart from the upstream copy.
+     */
+    static String valuesXml(int entries, String valuePrefix) {
+        final StringBuilder sb = new StringBuilder(entries * 64);
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+        for (int i = 0; i < entries; i++) {
+            if (i % 25 == 0)
+                sb.append("\n    <!-- Section ").append(i / 25).append(" -->\n");
+            switch (i % 3) {
+                case 0:
+                    sb.append("    <string name=\"string_").append(i).append("\" translatable=\"false\">")
+                            .append(valuePrefix).append(" value ").append(i).append("</string>\n");
+                    break;
+                case 1:
+                    sb.append("    <bool name=\"bool_").append(i).append("\">").append(i % 2 == 0).append("</bool>\n");
+                    break;
+                default:
+                    sb.append("    <integer name=\"integer_").append(i).append("\">").append(i).append("</integer>\n");
+                    break;
+            }
+        }
+        sb.append("</resources>\n");
+        return sb.toString();
+    }
+
+    /**
+     * A build.gradle in the style of Polar's app module, padded to the given number of lines with
+     * dependency declarations.
+     */
+    static String buildGradle(int lines) {
+        final StringBuilder sb = new StringBuilder(lines * 48);
+        sb.append("apply plugin: 'com.android.application'\n\nandroid {\n")
+                .append("    compileSdkVersion 23\n    buildToolsVersion \"23.0.2\"\n\n")
+                .append("    defaultConfig {\n")
+                .append("        applicationId \"").append(UPSTREAM_PACKAGE).append("\"\n")
+                .append("        minSdkVersion 16\n        targetSdkVersion 23\n")
+                .append("        versionCode 1\n        versionName \"1.0\"\n    }\n\n")
+                .append("    applicationVariants.all { variant ->\n        variant.outputs.each { output ->\n")
+                .append("            output.outputFile = new File(output.outputFile.parent, \"MyPolarPack-${variant.versionName}.apk\")\n")
+                .append("        }\n    }\n}\n\ndependencies {\n");
+        for (int i = 12; i < lines - 1; i++)
+            sb.append("    compile 'com.example:library-").append(i).append(":1.0.").append(i).append("'\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Fills a folder with a tree of Java sources that reference Polar's package and PNG-like binary
+     * files, about one binary file in four, spread over nested folders.
+     *
+     * @return The total size of the generated files.
+     */
+    static long sourceTree(File root, int files, int averageSize) throws IOException {
+        final Random random = new Random(SEED);
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            final File folder = new File(root, "module" + (i % 4) + File.separator + "package" + (i % 16));
+            if (!folder.isDirectory() && !folder.mkdirs())
+                throw new IOException("Failed to create " + folder);
+            final int size = averageSize / 2 + random.nextInt(averageSize + 1);
+            final byte[] content;
+            final String name;
+            if (i % 4 == 3) {
+                content = new byte[size];
+                random.nextBytes(content);
+                System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, 0, content, 0, Math.min(4, size));
+                name = "image" + i + ".png";
+            } else {
+                content = javaSource(i, size).getBytes(StandardCharsets.UTF_8);
+                name = "Source" + i + ".java";
+            }
+            Files.write(new File(folder, name).toPath(), content);
+            total += content.length;
+        }
+        return total;
+    }
+
+    private static String javaSource(int index, int size) {
+        final StringBuilder sb = new StringBuilder(size + 128);
+        sb.append("package ").append(UPSTREAM_PACKAGE).append(".module").append(index % 4).append(";\n\n")
+                .append("import ").append(UPSTREAM_PACKAGE).append(".R;\n\n")
+                .append("public class Source").append(index).append(" {\n");
+        int line = 0;
+        while (sb.length() < size) {
+            sb.append("    // Line ").append(line++).append(" of a generated source file, padded out to size\n");
+            if (line % 10 == 0)
+                sb.append("    private final int id").append(line).append(" = R.id.item").append(line).append(";\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File dir) {
+        if (dir != null && dir.exists()) FileUtil.wipe(dir);
+    }
+
+    /**
+     * A context for a project whose info has already been read, as it would be once an upgrade is
+     * under way.
+     */
+    static UpgradeContext context(File projectDir) {
+        final UpgradeContext ctx = new UpgradeContext(projectDir, null);
+        ctx.setProjectInfo("Benchmark Pack", PROJECT_PACKAGE, "2.0", "20");
+        return ctx;
+    }
+
+    /**
+     * The migrators and copy paths log every file they touch. Inside a benchmark fork that would
+     * only measure the console, so output is dropped.
+     */
+    static void silenceLog() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    private Fixtures() {
+    }
+}
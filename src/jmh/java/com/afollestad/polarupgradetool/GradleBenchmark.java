@@ -0,0 +1,50 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Migrating the app module's build.gradle.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GradleBenchmark {
+
+    // Number of lines in the file
+    @Param({"50", "5000"})
+    public int lines;
+
+    private File mDir;
+    private File mProjectFile;
+    private File mLatestFile;
+    private UpgradeContext mContext;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.silenceLog();
+        mDir = Fixtures.tempDir("gradle-benchmark");
+        mProjectFile = new File(mDir, "build.gradle");
+        mLatestFile = new File(mDir, "latest.gradle");
+        Fixtures.write(mLatestFile, Fixtures.buildGradle(lines));
+        mContext = Fixtures.context(mDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    @Benchmark
+    public boolean gradleMigratorProcess() {
+        return new GradleMigrator(mContext, mProjectFile, mLatestFile).process();
+    }
+}
@@ -0,0 +1,103 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A piece table over a text that is never modified itself. Edits are recorded as (offset, length,
+ * replacement) against the original text, and the result is put together in a single pass from
+ * pieces of the original and the replacements. Unlike replacing in a StringBuilder, an edit doesn't
+ * shift everything after it, so the cost of many edits stays linear in the size of the text.
+ * <p>
+ * XmlScanner applies its edits with this, and XmlBenchmark compares it to replacing in place.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class PieceTable {
+
+    private final CharSequence mOriginal;
+    private int[] mOffsets = new int[16];
+    private int[] mLengths = new int[16];
+    private String[] mReplacements = new String[16];
+    private int mCount;
+    private boolean mOrdered = true;
+    private int mLengthDelta;
+
+    public PieceTable(CharSequence original) {
+        mOriginal = original;
+    }
+
+    /**
+     * Replaces a range of the original text. Ranges of different edits may not overlap.
+     */
+    public void replace(int offset, int length, String replacement) {
+        if (offset < 0 || length < 0 || offset + length > mOriginal.length())
+            throw new IndexOutOfBoundsException(String.format("Range %d+%d is outside of 0-%d.", offset, length, mOriginal.length()));
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+            mReplacements = Arrays.copyOf(mReplacements, mCount * 2);
+        }
+        if (mCount > 0 && offset < mOffsets[mCount - 1] + mLengths[mCount - 1])
+            mOrdered = false;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mReplacements[mCount] = replacement;
+        mLengthDelta += replacement.length() - length;
+        mCount++;
+    }
+
+    public int editCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The length of the text once the edits are applied.
+     */
+    public int length() {
+        return mOriginal.length() + mLengthDelta;
+    }
+
+    public void writeTo(Appendable out) throws IOException {
+        if (!mOrdered) sort();
+        int position = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mOffsets[i] < position)
+                throw new IllegalStateException(String.format("The edit at %d overlaps the previous one.", mOffsets[i]));
+            out.append(mOriginal, position, mOffsets[i]);
+            out.append(mReplacements[i]);
+            position = mOffsets[i] + mLengths[i];
+        }
+        out.append(mOriginal, position, mOriginal.length());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(length());
+        try {
+            writeTo(sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // StringBuilder doesn't throw
+        }
+        return sb.toString();
+    }
+
+    // Edits are almost always recorded front to back; when they aren't, order them by offset
+    private void sort() {
+        final Integer[] order = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(mOffsets[a], mOffsets[b]));
+        final int[] offsets = new int[mOffsets.length];
+        final int[] lengths = new int[mLengths.length];
+        final String[] replacements = new String[mReplacements.length];
+        for (int i = 0; i < mCount; i++) {
+            offsets[i] = mOffsets[order[i]];
+            lengths[i] = mLengths[order[i]];
+            replacements[i] = mReplacements[order[i]];
+        }
+        mOffsets = offsets;
+        mLengths = lengths;
+        mReplacements = replacements;
+        mOrdered = true;
+    }
+}
@@ -0,0 +1,244 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates Polar icon pack projects, and archives of Polar's latest code to upgrade them with, laid
+ * out the way Main.upgrade expects them. Everything is generated from a fixed seed, so a given scale
+ * always produces the same files.
+ * <p>
+ * A project is mostly its icons: drawables in drawable-nodpi, listed in the xml folder's appfilter
+ * and drawable files. Strings, dev_* files and the Java tree grow along with the number of icons.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ProjectGenerator {
+
+    static final String APP_NAME = "Benchmark Pack";
+    static final String VERSION_NAME = "2.0";
+    static final String VERSION_CODE = "20";
+    // The folder GitHub puts the code into inside of its archives
+    static final String ARCHIVE_ROOT = "polar-dashboard-master";
+
+    private static final long SEED = 0x501A2;
+
+    static class Scale {
+
+        int drawables;
+        // Average drawable size in bytes
+        int drawableSize = 2048;
+        // Elements in strings.xml and in each of the dev_* files
+        int strings;
+        int javaFiles;
+        // Depth of the package folders the Java files are spread over
+        int javaDepth = 6;
+
+        static Scale of(int drawables) {
+            final Scale scale = new Scale();
+            scale.drawables = drawables;
+            scale.strings = Math.max(200, drawables / 2);
+            scale.javaFiles = 50 + drawables / 200;
+            return scale;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d drawables, %d strings, %d Java files", drawables, strings, javaFiles);
+        }
+    }
+
+    /**
+     * Generates an icon pack project, as it would look after being set up with an older Polar.
+     *
+     * @return The number of files generated.
+     */
+    static int project(File dir, Scale scale) throws IOException {
+        final Random random = new Random(SEED);
+        final File app = new File(dir, "app");
+        final File main = new File(app, "src" + File.separator + "main");
+        final File res = new File(main, "res");
+        int count = 0;
+
+        Fixtures.write(file(app, "build.gradle"), Fixtures.buildGradle(60)
+                .replace("\"" + Fixtures.UPSTREAM_PACKAGE + "\"", "\"" + Fixtures.PROJECT_PACKAGE + "\"")
+                .replace("versionCode 1\n", "versionCode " + VERSION_CODE + "\n")
+                .replace("versionName \"1.0\"", "versionName \"" + VERSION_NAME + "\""));
+        Fixtures.write(file(main, "AndroidManifest.xml"), manifest(Fixtures.PROJECT_PACKAGE));
+        count += 2;
+
+        count += javaTree(new File(main, "java"), Fixtures.PROJECT_PACKAGE, scale, random);
+        count += commonResources(res, scale, "Project", random);
+
+        // The icons themselves, which are never touched by an upgrade but are backed up
+        final File icons = new File(res, "drawable-nodpi");
+        final StringBuilder appfilter = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+        final StringBuilder drawableList = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n")
+                .append("    <category title=\"All\" />\n");
+        for (int i = 0; i < scale.drawables; i++) {
+            final String name = "icon_" + i;
+            png(file(icons, name + ".png"), scale.drawableSize, random);
+            appfilter.append("    <item component=\"ComponentInfo{com.example.app").append(i)
+                    .append("/com.example.app").append(i).append(".MainActivity}\" drawable=\"").append(name).append("\" />\n");
+            drawableList.append("    <item drawable=\"").append(name).append("\" />\n");
+        }
+        Fixtures.write(file(new File(res, "xml"), "appfilter.xml"), appfilter.append("</resources>\n").toString());
+        Fixtures.write(file(new File(res, "xml"), "drawable.xml"), drawableList.append("</resources>\n").toString());
+        count += scale.drawables + 2;
+
+        // Older projects still use changelog.xml and dev_options.xml, which get renamed
+        final File values = new File(res, "values");
+        Files.move(new File(values, "dev_changelog.xml").toPath(), new File(values, "changelog.xml").toPath());
+        Files.move(new File(values, "dev_customization.xml").toPath(), new File(values, "dev_options.xml").toPath());
+        return count;
+    }
+
+    /**
+     * Generates an archive of Polar's latest code, as GitHub would serve it.
+     *
+     * @param workDir Where the code is generated before it's zipped; it's removed afterwards.
+     * @return The number of files in the archive.
+     */
+    static int upstreamArchive(File zip, File workDir, Scale scale) throws Exception {
+        final Random random = new Random(SEED + 1);
+        final File root = new File(workDir, ARCHIVE_ROOT);
+        final File app = new File(root, "app");
+        final File main = new File(app, "src" + File.separator + "main");
+        int count = 0;
+
+        Fixtures.write(file(app, "build.gradle"), Fixtures.buildGradle(60));
+        Fixtures.write(file(main, "AndroidManifest.xml"), manifest(Fixtures.UPSTREAM_PACKAGE));
+        count += 2;
+
+        final File licensing = new File(root, "licensing");
+        Fixtures.write(file(licensing, "build.gradle"), "apply plugin: 'com.android.library'\n");
+        Fixtures.sourceTree(new File(licensing, "src"), 20, 4096);
+        count += 21;
+
+        // Latest code has a few more Java files and strings than the project's copy of it
+        final Scale latest = Scale.of(scale.drawables);
+        latest.strings = scale.strings + scale.strings / 20;
+        latest.javaFiles = scale.javaFiles + scale.javaFiles / 10;
+        latest.javaDepth = scale.javaDepth;
+        count += javaTree(new File(main, "java"), Fixtures.UPSTREAM_PACKAGE, latest, random);
+        count += commonResources(new File(main, "res"), latest, "Latest", random);
+
+        ZipUtil.writeZipFile(workDir, zip);
+        FileUtil.wipe(workDir);
+        return count;
+    }
+
+    // Java files spread over nested package folders, below the app's package and a single "dashboard" package
+    private static int javaTree(File javaDir, String packageName, Scale scale, Random random) throws IOException {
+        final File base = new File(javaDir, packageName.replace('.', File.separatorChar) + File.separator + "dashboard");
+        for (int i = 0; i < scale.javaFiles; i++) {
+            final StringBuilder pkg = new StringBuilder(packageName).append(".dashboard");
+            File folder = base;
+            final int depth = i % (scale.javaDepth + 1);
+            for (int d = 0; d < depth; d++) {
+                final String segment = "level" + d + "_" + (i / (d + 1)) % 3;
+                pkg.append('.').append(segment);
+                folder = new File(folder, segment);
+            }
+            final StringBuilder source = new StringBuilder(4096)
+                    .append("package ").append(pkg).append(";\n\n")
+                    .append("import ").append(packageName).append(".R;\n")
+                    .append("import ").append(packageName).append(".dashboard.BaseFragment;\n\n")
+                    .append("public class Generated").append(i).append(" extends BaseFragment {\n");
+            final int methods = 5 + random.nextInt(20);
+            for (int m = 0; m < methods; m++) {
+                source.append("\n    public int method").append(m).append("(int value) {\n")
+                        .append("        // Resolves ").append(packageName).append(".R.id.item").append(m).append('\n')
+                        .append("        return value * ").append(random.nextInt(1000)).append(" + R.id.item").append(m).append(";\n    }\n");
+            }
+            Fixtures.write(file(folder, "Generated" + i + ".java"), source.append("}\n").toString());
+        }
+        return scale.javaFiles;
+    }
+
+    // Resources both the project and the latest code have
+    private static int commonResources(File res, Scale scale, String valuePrefix, Random random) throws IOException {
+        final File values = new File(res, "values");
+        final String strings = Fixtures.valuesXml(scale.strings, valuePrefix);
+        Fixtures.write(file(values, "strings.xml"), strings.replace("<resources>\n",
+                "<resources>\n    <string name=\"app_name\">" + APP_NAME + "</string>\n"));
+        Fixtures.write(file(values, "dev_about.xml"), Fixtures.valuesXml(Math.max(20, scale.strings / 10), valuePrefix));
+        Fixtures.write(file(values, "dev_changelog.xml"), Fixtures.valuesXml(Math.max(20, scale.strings / 4), valuePrefix));
+        Fixtures.write(file(values, "dev_customization.xml"), Fixtures.valuesXml(Math.max(50, scale.strings / 2), valuePrefix));
+        Fixtures.write(file(values, "dev_theming.xml"), Fixtures.valuesXml(Math.max(20, scale.strings / 10), valuePrefix));
+        Fixtures.write(file(values, "colors.xml"), Fixtures.valuesXml(100, valuePrefix));
+        int count = 6;
+
+        final File layout = new File(res, "layout");
+        for (int i = 0; i < 40; i++) {
+            Fixtures.write(file(layout, "fragment_generated" + i + ".xml"),
+                    "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                            "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                            "    xmlns:tools=\"http://schemas.android.com/tools\"\n" +
+                            "    android:layout_width=\"match_parent\"\n" +
+                            "    android:layout_height=\"match_parent\"\n" +
+                            "    tools:context=\"" + Fixtures.UPSTREAM_PACKAGE + ".dashboard.Generated" + i + "\">\n\n" +
+                            "    <TextView\n        android:id=\"@+id/item" + i + "\"\n" +
+                            "        android:layout_width=\"wrap_content\"\n" +
+                            "        android:layout_height=\"wrap_content\" />\n\n</LinearLayout>\n");
+        }
+        count += 40;
+
+        // The dashboard's own images, in each density
+        for (String density : new String[]{"mdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi"}) {
+            final File folder = new File(res, "drawable-" + density);
+            for (int i = 0; i < 20; i++)
+                png(file(folder, "ic_dashboard_" + i + ".png"), 4096, random);
+            count += 20;
+        }
+        return count;
+    }
+
+    private static String manifest(String packageName) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                "    package=\"" + packageName + "\">\n\n" +
+                "    <application\n        android:allowBackup=\"true\"\n" +
+                "        android:icon=\"@mipmap/ic_launcher\"\n        android:label=\"@string/app_name\">\n" +
+                "        <activity android:name=\"" + packageName + ".ui.MainActivity\">\n" +
+                "            <intent-filter>\n" +
+                "                <action android:name=\"android.intent.action.MAIN\" />\n" +
+                "                <category android:name=\"android.intent.category.LAUNCHER\" />\n" +
+                "            </intent-filter>\n        </activity>\n    </application>\n\n</manifest>\n";
+    }
+
+    private static void png(File file, int averageSize, Random random) throws IOException {
+        final byte[] content = new byte[averageSize / 2 + random.nextInt(averageSize + 1)];
+        random.nextBytes(content);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, 0, content, 0, Math.min(4, content.length));
+        Files.write(file.toPath(), content);
+    }
+
+    // Makes sure the file's folder exists
+    private static File file(File folder, String name) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Failed to create " + folder);
+        return new File(folder, name);
+    }
+
+    /**
+     * Generates a project and an archive of the latest code for it, to try the tool against by hand.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ProjectGenerator <output folder> [drawables]");
+            System.exit(1);
+        }
+        final File out = new File(args[0]);
+        final Scale scale = Scale.of(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+        final int projectFiles = project(new File(out, "project"), scale);
+        final int archiveFiles = upstreamArchive(new File(out, "latest.zip"), new File(out, "latest"), scale);
+        System.out.printf("Generated a project of %d files and an archive of %d files (%s) in %s%n",
+                projectFiles, archiveFiles, scale, out.getAbsolutePath());
+    }
+
+    private ProjectGenerator() {
+    }
+}
@@ -0,0 +1,284 @@
+package com.afollestad.polarupgradetool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Times Main.upgrade end to end, phase by phase, on generated projects of several sizes. Polar's
+ * latest code is generated too, and served by a local HTTP server in place of GitHub, so the
+ * benchmark runs entirely offline. Every run upgrades a freshly generated project; the timings of
+ * each run and the medians per scale are written to a JSON report.
+ * <p>
+ * Settings are taken from system properties as usual, e.g. -Dpolar.backup=incremental or
+ * -Dpolar.download.stream=false (which times extraction apart from the download).
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class UpgradeBenchmark {
+
+    private static final PrintStream CONSOLE = System.out;
+
+    /**
+     * Serves a single file with support for ranges and ETags, like GitHub's archive downloads.
+     */
+    static class ArchiveServer implements Closeable {
+
+        private final HttpServer mServer;
+        private final File mArchive;
+        private final String mEtag;
+
+        ArchiveServer(File archive) throws IOException {
+            mArchive = archive;
+            mEtag = String.format("\"%x-%x\"", archive.length(), archive.lastModified());
+            mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            mServer.createContext("/", this::handle);
+            mServer.start();
+        }
+
+        String url() {
+            return String.format("http://127.0.0.1:%d/%s.zip", mServer.getAddress().getPort(), ProjectGenerator.ARCHIVE_ROOT);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                final long length = mArchive.length();
+                exchange.getResponseHeaders().set("ETag", mEtag);
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                if (mEtag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                long from = 0;
+                long to = length - 1;
+                final String range = exchange.getRequestHeaders().getFirst("Range");
+                final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                final boolean partial = range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(mEtag));
+                if (partial) {
+                    final String[] bounds = range.substring(6).split("-", -1);
+                    from = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty()) to = Math.min(to, Long.parseLong(bounds[1]));
+                    exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", from, to, length));
+                }
+                final long count = to - from + 1;
+                final boolean head = exchange.getRequestMethod().equals("HEAD");
+                exchange.sendResponseHeaders(partial ? 206 : 200, head ? -1 : count);
+                if (head) return;
+                try (FileChannel channel = new FileInputStream(mArchive).getChannel();
+                     OutputStream out = exchange.getResponseBody()) {
+                    channel.position(from);
+                    long remaining = count;
+                    final WritableByteChannel sink = Channels.newChannel(out);
+                    while (remaining > 0) {
+                        final long sent = channel.transferTo(channel.position(), remaining, sink);
+                        if (sent <= 0) break;
+                        channel.position(channel.position() + sent);
+                        remaining -= sent;
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            mServer.stop(0);
+        }
+    }
+
+    static class Run {
+
+        boolean success;
+        String error;
+        long totalNanos;
+        Map<UpgradeContext.Phase, Long> phaseNanos;
+    }
+
+    static class ScaleResult {
+
+        ProjectGenerator.Scale scale;
+        int projectFiles;
+        int archiveFiles;
+        long archiveBytes;
+        final List<Run> runs = new ArrayList<>();
+    }
+
+    static Run upgradeOnce(File projectDir) {
+        final SilentCallback callback = new SilentCallback();
+        final UpgradeContext ctx = new UpgradeContext(projectDir, callback);
+        final Run run = new Run();
+        final long start = System.nanoTime();
+        run.success = Main.upgrade(ctx);
+        run.totalNanos = System.nanoTime() - start;
+        run.error = callback.getError();
+        run.phaseNanos = ctx.getPhaseTimes();
+        return run;
+    }
+
+    static ScaleResult benchmark(ProjectGenerator.Scale scale, int warmups, int runs, File workDir) throws Exception {
+        final ScaleResult result = new ScaleResult();
+        result.scale = scale;
+        final File archive = new File(workDir, "latest.zip");
+        result.archiveFiles = ProjectGenerator.upstreamArchive(archive, new File(workDir, "latest"), scale);
+        result.archiveBytes = archive.length();
+
+        try (ArchiveServer server = new ArchiveServer(archive)) {
+            Main.ARCHIVE_URL = server.url();
+            Main.ARCHIVE_CACHE_DIR = null;
+            for (int i = 0; i < warmups + runs; i++) {
+                // Every run starts from a fresh project and without an index of earlier copies
+                final File projectDir = new File(workDir, "project");
+                Fixtures.delete(projectDir);
+                Main.COPY_INDEX_DIR = new File(workDir, "index");
+                Fixtures.delete(Main.COPY_INDEX_DIR);
+                result.projectFiles = ProjectGenerator.project(projectDir, scale);
+                System.gc();
+
+                final Run run = upgradeOnce(projectDir);
+                if (!run.success)
+                    throw new IllegalStateException("The upgrade failed: " + run.error);
+                if (i >= warmups) result.runs.add(run);
+                CONSOLE.printf("  %s run %d: %s ms%n", i < warmups ? "warmup" : "measured",
+                        i < warmups ? i + 1 : i - warmups + 1, millis(run.totalNanos));
+            }
+        } finally {
+            Fixtures.delete(archive);
+        }
+        return result;
+    }
+
+    static long median(List<Run> runs, UpgradeContext.Phase phase) {
+        final long[] values = new long[runs.size()];
+        for (int i = 0; i < values.length; i++) {
+            if (phase == null) {
+                values[i] = runs.get(i).totalNanos;
+            } else {
+                final Long nanos = runs.get(i).phaseNanos.get(phase);
+                values[i] = nanos != null ? nanos : -1;
+            }
+        }
+        Arrays.sort(values);
+        return values.length == 0 ? -1 : values[values.length / 2];
+    }
+
+    static String report(List<ScaleResult> results) {
+        final StringBuilder json = new StringBuilder(4096);
+        json.append("{\n  \"java\": \"").append(System.getProperty("java.version")).append("\",\n")
+                .append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n")
+                .append("  \"settings\": {\"backup\": \"").append(Main.BACKUP_MODE)
+                .append("\", \"streamDownload\": ").append(Main.STREAM_DOWNLOAD)
+                .append(", \"downloadConnections\": ").append(Main.DOWNLOAD_CONNECTIONS)
+                .append(", \"copyParallelism\": ").append(Main.COPY_PARALLELISM)
+                .append(", \"skipIdentical\": ").append(Main.SKIP_IDENTICAL).append("},\n")
+                .append("  \"scales\": [");
+        for (int s = 0; s < results.size(); s++) {
+            final ScaleResult result = results.get(s);
+            json.append(s > 0 ? ",\n" : "\n").append("    {\n")
+                    .append("      \"drawables\": ").append(result.scale.drawables).append(",\n")
+                    .append("      \"strings\": ").append(result.scale.strings).append(",\n")
+                    .append("      \"javaFiles\": ").append(result.scale.javaFiles).append(",\n")
+                    .append("      \"projectFiles\": ").append(result.projectFiles).append(",\n")
+                    .append("      \"archiveFiles\": ").append(result.archiveFiles).append(",\n")
+                    .append("      \"archiveBytes\": ").append(result.archiveBytes).append(",\n")
+                    .append("      \"medianMs\": ").append(phasesJson(result.runs)).append(",\n")
+                    .append("      \"runs\": [");
+            for (int r = 0; r < result.runs.size(); r++) {
+                json.append(r > 0 ? ",\n" : "\n").append("        ")
+                        .append(phasesJson(Collections.singletonList(result.runs.get(r))));
+            }
+            json.append("\n      ]\n    }");
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    // The total and each phase's time in milliseconds; medians when there are several runs
+    private static String phasesJson(List<Run> runs) {
+        final StringBuilder json = new StringBuilder("{\"total\": ").append(millis(median(runs, null)));
+        for (UpgradeContext.Phase phase : UpgradeContext.Phase.values()) {
+            final long nanos = median(runs, phase);
+            if (nanos >= 0)
+                json.append(", \"").append(phase.name().toLowerCase(Locale.ENGLISH)).append("\": ").append(millis(nanos));
+        }
+        return json.append('}').toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.1f", nanos / 1000000d);
+    }
+
+    private static void printTable(ScaleResult result) {
+        CONSOLE.printf("%s, median of %d runs:%n", result.scale, result.runs.size());
+        for (UpgradeContext.Phase phase : UpgradeContext.Phase.values()) {
+            final long nanos = median(result.runs, phase);
+            if (nanos >= 0)
+                CONSOLE.printf("  %-14s %10s ms%n", phase.name().toLowerCase(Locale.ENGLISH), millis(nanos));
+        }
+        CONSOLE.printf("  %-14s %10s ms%n%n", "total", millis(median(result.runs, null)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String drawables = "1000,10000";
+        int warmups = 1;
+        int runs = 3;
+        File report = new File("target", "upgrade-benchmark.json");
+        File workDir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--drawables":
+                    drawables = args[++i];
+                    break;
+                case "--warmups":
+                    warmups = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--report":
+                    report = new File(args[++i]);
+                    break;
+                case "--work":
+                    workDir = new File(args[++i]);
+                    break;
+                default:
+                    CONSOLE.println("Usage: UpgradeBenchmark [--drawables 1000,10000,100000] [--warmups 1] [--runs 3] " +
+                            "[--report target/upgrade-benchmark.json] [--work <folder>]");
+                    System.exit(1);
+                    return;
+            }
+        }
+        final boolean temporary = workDir == null;
+        if (temporary) workDir = Fixtures.tempDir("upgrade-benchmark");
+
+        Fixtures.silenceLog();
+        final List<ScaleResult> results = new ArrayList<>();
+        try {
+            for (String count : drawables.split(",")) {
+                final ProjectGenerator.Scale scale = ProjectGenerator.Scale.of(Integer.parseInt(count.trim()));
+                CONSOLE.printf("Upgrading a project with %s...%n", scale);
+                final File scaleDir = new File(workDir, "scale-" + scale.drawables);
+                final ScaleResult result = benchmark(scale, warmups, runs, scaleDir);
+                results.add(result);
+                printTable(result);
+                Fixtures.delete(scaleDir);
+            }
+        } finally {
+            if (temporary) Fixtures.delete(workDir);
+        }
+
+        final File reportDir = report.getAbsoluteFile().getParentFile();
+        if (!reportDir.isDirectory() && !reportDir.mkdirs())
+            throw new IOException("Failed to create " + reportDir);
+        Files.write(report.toPath(), report(results).getBytes(StandardCharsets.UTF_8));
+        CONSOLE.printf("Wrote %s%n", report.getAbsolutePath());
+    }
+}
@@ -0,0 +1,139 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scanning and migrating XML resource files, e.g. dev_customization.xml.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlBenchmark {
+
+    // Number of elements in the file
+    @Param({"100", "10000"})
+    public int entries;
+
+    private String mLatest;
+    private File mDir;
+    private File mProjectFile;
+    private File mLatestFile;
+    private String[] mTagNames;
+    private String[] mNames;
+    // Value ranges of the elements (start, end), and what they're replaced with
+    private int[] mRanges;
+    private String[] mReplacements;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.silenceLog();
+        mLatest = Fixtures.valuesXml(entries, "Latest");
+        mDir = Fixtures.tempDir("xml-benchmark");
+        mProjectFile = new File(mDir, "dev_customization.xml");
+        mLatestFile = new File(mDir, "latest.xml");
+        Fixtures.write(mProjectFile, Fixtures.valuesXml(entries, "Project"));
+        Fixtures.write(mLatestFile, mLatest);
+
+        // Look up a handful of elements spread over the file
+        final int lookups = Math.min(entries, 8);
+        mTagNames = new String[lookups];
+        mNames = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            final int index = (int) ((long) entries * i / lookups) / 3 * 3;
+            mTagNames[i] = "string";
+            mNames[i] = "string_" + index;
+        }
+
+        final List<Integer> ranges = new ArrayList<>();
+        final List<String> replacements = new ArrayList<>();
+        try (XmlStreamScanner scanner = new XmlStreamScanner(new StringReader(mLatest), null)) {
+            while (scanner.next()) {
+                ranges.add((int) scanner.valueStartOffset());
+                ranges.add((int) scanner.valueEndOffset());
+                replacements.add("Project" + scanner.value());
+            }
+        }
+        mRanges = new int[ranges.size()];
+        for (int i = 0; i < mRanges.length; i++) mRanges[i] = ranges.get(i);
+        mReplacements = replacements.toArray(new String[replacements.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    @Benchmark
+    public String xmlScanner() {
+        final XmlScanner scanner = new XmlScanner(new StringBuilder(mLatest), mLatestFile);
+        int i = 0;
+        while (!scanner.reachedEnd()) {
+            if (scanner.nextTag() == null) break;
+            scanner.setElementValue(mReplacements[i++]);
+        }
+        return scanner.applyEdits();
+    }
+
+    @Benchmark
+    public String xmlStreamScanner() throws IOException {
+        final StringWriter out = new StringWriter(mLatest.length() + mLatest.length() / 4);
+        try (XmlStreamScanner scanner = new XmlStreamScanner(new StringReader(mLatest), out)) {
+            int i = 0;
+            while (scanner.next())
+                scanner.setValue(mReplacements[i++]);
+            scanner.finish();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads the project file and writes the latest file with the project's values in its place. The
+     * result is the same every time, so the project file doesn't need to be reset between calls.
+     */
+    @Benchmark
+    public boolean xmlMigratorProcess() {
+        return new XmlMigrator(Fixtures.context(mDir), mProjectFile, mLatestFile).process();
+    }
+
+    @Benchmark
+    public HashMap<String, String> xmlElementExtractorFind() {
+        return new XmlElementExtractor(mLatestFile, mTagNames, mNames, null).find();
+    }
+
+    // How XmlScanner applies its edits
+    @Benchmark
+    public String editsPieceTable() {
+        final PieceTable table = new PieceTable(mLatest);
+        for (int i = 0; i < mReplacements.length; i++)
+            table.replace(mRanges[i * 2], mRanges[i * 2 + 1] - mRanges[i * 2], mReplacements[i]);
+        return table.toString();
+    }
+
+    // How XmlScanner used to apply its edits, replacing in place and shifting the rest of the text each time
+    @Benchmark
+    public String editsInPlace() {
+        final StringBuilder xml = new StringBuilder(mLatest);
+        int shift = 0;
+        for (int i = 0; i < mReplacements.length; i++) {
+            final int start = mRanges[i * 2] + shift;
+            final int end = mRanges[i * 2 + 1] + shift;
+            xml.replace(start, end, mReplacements[i]);
+            shift += mReplacements[i].length() - (end - start);
+        }
+        return xml.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+
+/**
+ * The scanner XmlMigrator used before XmlStreamScanner, kept as the baseline XmlBenchmark compares
+ * the streaming scanner against. It needs the whole file in memory and recurses on every construct
+ * it skips.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class XmlScanner {
+
+    private int mIndex = 0;
+    private StringBuilder mXml;
+    private String mTagName;
+    private String mTagValue;
+    private int mTagStart;
+    private int mTagEnd;
+    private int mValueStart;
+    private int mValueEnd;
+    private boolean mReachedEnd = false;
+    private final File mFile;
+    private final PieceTable mEdits;
+
+    /**
+     * @param xml The text to scan. It isn't modified; changed element values are collected
+     *            and applied by {@link #applyEdits()}.
+     */
+    public XmlScanner(StringBuilder xml, File file) {
+        mXml = xml;
+        mFile = file;
+        mEdits = new PieceTable(xml);
+    }
+
+//    public void updateXml(StringBuilder xml) {
+//        mXml = xml;
+//    }
+
+    public String tagName() {
+        return mTagName;
+    }
+
+    public String tagValue() {
+        return mTagValue;
+    }
+
+    public boolean reachedEnd() {
+        return mReachedEnd;
+    }
+
+    public String currentTag() {
+        return mXml.substring(mTagStart, mTagEnd);
+    }
+
+    public String nextTag() {
+        if (mReachedEnd) return null;
+        int next;
+        int firstSpace;
+        try {
+            // Loops rather than recursing over skipped tags, so long runs of them can't overflow the stack
+            while (!mReachedEnd) {
+                mTagStart = mXml.indexOf("<", mIndex);
+                if (mTagStart < 0) {
+                    // No more tags in the file
+                    mReachedEnd = true;
+                    return null;
+                } else if (mXml.charAt(mTagStart + 1) == '?') {
+                    // Skip header
+                    mIndex = mXml.indexOf("?>", mTagStart + 1) + 2;
+                    if (mIndex < 2) mReachedEnd = true;
+                    continue;
+                } else if (mXml.charAt(mTagStart + 1) == '!') {
+                    // Skip comments
+                    mIndex = mXml.indexOf("-->", mTagStart + 1) + 3;
+                    if (mIndex < 3) mReachedEnd = true;
+                    continue;
+                }
+
+                next = mXml.indexOf(">", mTagStart);
+                firstSpace = mXml.indexOf(" ", mTagStart);
+                if (firstSpace == -1) {
+                    mReachedEnd = true;
+                    return null;
+                } else if (firstSpace > next) {
+                    // Skip elements with no attributes
+                    mIndex = firstSpace + 1;
+                    continue;
+                } else if (!mXml.substring(mTagStart, next).contains(" name=")) {
+                    // Skip elements with no name attribute
+                    mIndex = next + 1;
+                    continue;
+                }
+
+                mTagName = mXml.substring(mTagStart + 1, firstSpace);
+                final String endFindStr = "</" + mTagName + ">";
+                mTagEnd = mXml.indexOf(endFindStr, next + 1);
+                if (mTagEnd < 0) {
+                    // Didn't find an end to this tag, skip it
+                    mIndex = next + 1;
+                    continue;
+                }
+                mValueStart = next + 1;
+                mValueEnd = mTagEnd;
+                mTagValue = mXml.substring(mValueStart, mValueEnd);
+                mTagEnd += endFindStr.length();
+
+                final String tag = mXml.substring(mTagStart, mTagEnd);
+                mIndex = mTagEnd;
+                return tag;
+            }
+            return null;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+//    public void reset() {
+//        mIndex = 0;
+//        mReachedEnd = false;
+//    }
+
+    // Offsets stay those of the original text, the edit is only applied by applyEdits()
+    public void setElementValue(String value) {
+        mTagValue = value;
+        mEdits.replace(mValueStart, mValueEnd - mValueStart, value);
+        mIndex = mTagEnd;
+    }
+
+    /**
+     * @return The scanned text with every value passed to {@link #setElementValue(String)} in place.
+     */
+    public String applyEdits() {
+        return mEdits.toString();
+    }
+
+    @Override
+    public String toString() {
+        return mXml.substring(mIndex);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,82 @@
+package com.afollestad.polarupgradetool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the project backup zip and extracting Polar's latest code.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"500"})
+    public int files;
+
+    // Average file size in kilobytes
+    @Param({"16"})
+    public int fileSize;
+
+    private File mDir;
+    private File mSource;
+    private File mZip;
+    private File mArchive;
+    private File mExtracted;
+
+    @Setup
+    public void setup() throws Exception {
+        Fixtures.silenceLog();
+        mDir = Fixtures.tempDir("zip-benchmark");
+        mSource = new File(mDir, "source");
+        mZip = new File(mDir, "backup.zip");
+        mArchive = new File(mDir, "archive.zip");
+        mExtracted = new File(mDir, "extracted");
+        Fixtures.sourceTree(mSource, files, fileSize * 1024);
+        ZipUtil.writeZipFile(mSource, mArchive);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearOutput() {
+        Fixtures.delete(mZip);
+        Fixtures.delete(mExtracted);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    // Kept apart, so that only writeZipFile runs once per number of threads
+    @State(Scope.Thread)
+    public static class Threads {
+
+        // Threads compressing entries
+        @Param({"1", "4"})
+        public int threads;
+    }
+
+    @Benchmark
+    public void writeZipFile(Threads threads) throws Exception {
+        ZipUtil.writeZipFile(mSource, mZip, threads.threads);
+    }
+
+    // The original single-threaded implementation
+    @Benchmark
+    public void writeZipFileSerial() throws Exception {
+        ZipUtil.writeZipFileSerial(mSource, mZip);
+    }
+
+    @Benchmark
+    public void unzip() throws IOException {
+        UnzipUtil.unzip(mArchive.getAbsolutePath(), mExtracted.getAbsolutePath());
+    }
+}
@@ -0,0 +1,266 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An on-disk cache of downloaded upstream archives, keyed by URL and ETag. A cached archive is
+ * revalidated with a conditional request, so when the upstream code hasn't changed nothing but
+ * headers are transferred. Access is serialized through a lock file, which makes the cache safe to
+ * share between several copies of the tool running on the same machine.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ArchiveCache {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("user.home"),
+            ".polar-upgrade-tool" + File.separator + "cache");
+
+    private static final String LOCK_FILE = "cache.lock";
+    private static final String STATS_FILE = "stats.properties";
+    private static final String ARCHIVE_EXTENSION = ".zip";
+    private static final String META_EXTENSION = ".properties";
+    // File locks are held per process, so threads of the same process also need to take turns
+    private static final ReentrantLock PROCESS_LOCK = new ReentrantLock();
+
+    private final File mDir;
+    private final int mMaxEntries;
+
+    public ArchiveCache(File dir, int maxEntries) {
+        mDir = dir;
+        mMaxEntries = Math.max(1, maxEntries);
+    }
+
+    public static class Result {
+
+        public final File archive;
+        public final boolean hit;
+        public final String etag;
+        public final long totalHits;
+        public final long totalMisses;
+
+        Result(File archive, boolean hit, String etag, long totalHits, long totalMisses) {
+            this.archive = archive;
+            this.hit = hit;
+            this.etag = etag;
+            this.totalHits = totalHits;
+            this.totalMisses = totalMisses;
+        }
+    }
+
+    private static class Entry {
+
+        final String key;
+        final Properties meta;
+
+        Entry(String key, Properties meta) {
+            this.key = key;
+            this.meta = meta;
+        }
+
+        long lastUsed() {
+            try {
+                return Long.parseLong(meta.getProperty("lastUsed", "0"));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns a current copy of the archive at the given URL, downloading it only if the cached copy is
+     * missing, damaged, doesn't have the downloader's expected SHA-256 or the server reports that it
+     * changed. Other processes using the cache wait until this finishes, after which they'll find the
+     * fresh copy.
+     */
+    public Result fetch(URL url, ArchiveDownloader downloader, ArchiveDownloader.Listener listener) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs() && !mDir.exists())
+            throw new IOException("Unable to create " + mDir.getAbsolutePath());
+        PROCESS_LOCK.lock();
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            channel = FileChannel.open(new File(mDir, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = channel.lock();
+            Entry cached = findLatest(url.toString());
+            if (cached != null && !verify(cached, downloader.getExpectedSha256())) {
+                // Dropped before revalidating it, so the probe asks for the whole archive again
+                remove(cached);
+                cached = null;
+            }
+            if (cached != null)
+                downloader.setConditional(cached.meta.getProperty("etag"), cached.meta.getProperty("lastModified"));
+
+            downloader.probe();
+            if (cached != null && (downloader.notModified() ||
+                    (downloader.getEtag() != null && downloader.getEtag().equals(cached.meta.getProperty("etag"))))) {
+                downloader.cancel();
+                cached.meta.setProperty("lastUsed", String.valueOf(System.currentTimeMillis()));
+                writeMeta(cached);
+                final long[] stats = recordStats(true);
+                return new Result(archiveFile(cached.key), true, cached.meta.getProperty("etag"), stats[0], stats[1]);
+            }
+
+            final String etag = downloader.getEtag();
+            final String key = hash(url.toString() + '\n' + (etag != null ? etag : String.valueOf(System.currentTimeMillis())));
+            final File partial = new File(mDir, key + ARCHIVE_EXTENSION + ".partial");
+            downloader.download(partial, listener);
+            final File archive = archiveFile(key);
+            Files.move(partial.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            final Properties meta = new Properties();
+            meta.setProperty("url", url.toString());
+            if (etag != null) meta.setProperty("etag", etag);
+            if (downloader.getLastModified() != null) meta.setProperty("lastModified", downloader.getLastModified());
+            meta.setProperty("sha256", downloader.actualSha256());
+            meta.setProperty("size", String.valueOf(archive.length()));
+            meta.setProperty("lastUsed", String.valueOf(System.currentTimeMillis()));
+            writeMeta(new Entry(key, meta));
+            evict(key);
+            final long[] stats = recordStats(false);
+            return new Result(archive, false, etag, stats[0], stats[1]);
+        } finally {
+            if (lock != null && lock.isValid()) lock.release();
+            Util.closeQuietely(channel);
+            PROCESS_LOCK.unlock();
+        }
+    }
+
+    private List<Entry> entries() {
+        final List<Entry> entries = new ArrayList<>();
+        final File[] files = mDir.listFiles((dir, name) -> name.endsWith(META_EXTENSION) && !name.equals(STATS_FILE));
+        if (files == null) return entries;
+        for (File file : files) {
+            final Properties meta = readProperties(file);
+            final String name = file.getName();
+            final String key = name.substring(0, name.length() - META_EXTENSION.length());
+            if (meta != null && archiveFile(key).exists())
+                entries.add(new Entry(key, meta));
+        }
+        return entries;
+    }
+
+    private Entry findLatest(String url) {
+        Entry latest = null;
+        for (Entry entry : entries()) {
+            if (url.equals(entry.meta.getProperty("url")) && (latest == null || entry.lastUsed() > latest.lastUsed()))
+                latest = entry;
+        }
+        return latest;
+    }
+
+    // Removes the least recently used archives beyond the maximum number of entries
+    private void evict(String keep) throws IOException {
+        final List<Entry> entries = entries();
+        entries.sort((a, b) -> Long.compare(b.lastUsed(), a.lastUsed()));
+        int kept = 1;
+        for (Entry entry : entries) {
+            if (entry.key.equals(keep)) continue;
+            if (kept < mMaxEntries) {
+                kept++;
+                continue;
+            }
+            Main.LOG("[INFO]: Evicting %s (%s) from the archive cache.", entry.meta.getProperty("url"),
+                    entry.meta.getProperty("etag", entry.key));
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) throws IOException {
+        Files.deleteIfExists(archiveFile(entry.key).toPath());
+        Files.deleteIfExists(new File(mDir, entry.key + META_EXTENSION).toPath());
+    }
+
+    // Whether the cached archive still has the SHA-256 it was downloaded with, and the expected one if given
+    private boolean verify(Entry entry, String expectedSha256) throws IOException {
+        final String stored = entry.meta.getProperty("sha256");
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] buffer = BufferPool.acquire();
+        try (InputStream is = new FileInputStream(archiveFile(entry.key))) {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            BufferPool.release(buffer);
+        }
+        final String actual = Util.toHex(digest.digest());
+        if (stored == null || !stored.equals(actual)) {
+            Main.LOG("[WARNING]: The cached copy of %s is damaged (SHA-256 %s, expected %s), downloading it again.",
+                    entry.meta.getProperty("url"), actual, stored);
+            return false;
+        }
+        if (expectedSha256 != null && !expectedSha256.equals(actual)) {
+            Main.LOG("[WARNING]: The cached copy of %s has SHA-256 %s rather than %s, downloading it again.",
+                    entry.meta.getProperty("url"), actual, expectedSha256);
+            return false;
+        }
+        return true;
+    }
+
+    private long[] recordStats(boolean hit) throws IOException {
+        final File file = new File(mDir, STATS_FILE);
+        Properties stats = readProperties(file);
+        if (stats == null) stats = new Properties();
+        long hits = Long.parseLong(stats.getProperty("hits", "0"));
+        long misses = Long.parseLong(stats.getProperty("misses", "0"));
+        if (hit) hits++;
+        else misses++;
+        stats.setProperty("hits", String.valueOf(hits));
+        stats.setProperty("misses", String.valueOf(misses));
+        writeProperties(file, stats);
+        return new long[]{hits, misses};
+    }
+
+    private File archiveFile(String key) {
+        return new File(mDir, key + ARCHIVE_EXTENSION);
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        writeProperties(new File(mDir, entry.key + META_EXTENSION), entry.meta);
+    }
+
+    private static Properties readProperties(File file) {
+        if (!file.exists()) return null;
+        final Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+            return properties;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeProperties(File file, Properties properties) throws IOException {
+        final File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(temp)) {
+            properties.store(os, null);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String hash(String value) {
+        try {
+            return Util.toHex(MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
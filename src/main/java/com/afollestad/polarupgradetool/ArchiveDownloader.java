@@ -0,0 +1,713 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a single file over HTTP. When the server supports byte ranges, the file is fetched in
+ * segments over several connections, and interrupted downloads are resumed where they left off instead
+ * of starting over. Failed requests are retried with exponential backoff, except for client errors
+ * other than 408 and 429, and the SHA-256 of the data can be verified as it is written.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ArchiveDownloader {
+
+    public interface Listener {
+        default void onStarted(long total) {
+        }
+
+        void onProgress(long read, long total);
+    }
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    // Segments smaller than this aren't worth an extra connection
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    // Bytes requested at a time when streaming over several connections; two per connection are held in memory
+    private static final int STREAM_CHUNK_SIZE = 1024 * 1024;
+    private static final String STATE_EXTENSION = ".download";
+
+    private final URL mUrl;
+    private int mConnections = 4;
+    private int mMaxRetries = 4;
+    private long mRetryDelay = 1000;
+    private String mExpectedSha256;
+    private String mIfNoneMatch;
+    private String mIfModifiedSince;
+
+    private boolean mProbed;
+    private boolean mNotModified;
+    private long mContentLength = -1;
+    private boolean mRangesSupported;
+    private String mEtag;
+    private String mLastModified;
+    private String mActualSha256;
+    // When the server ignores ranges, the probe's response is the whole file and is kept for reading
+    private URLConnection mPendingConnection;
+
+    public ArchiveDownloader(URL url) {
+        mUrl = url;
+    }
+
+    public ArchiveDownloader setConnections(int connections) {
+        mConnections = Math.max(1, connections);
+        return this;
+    }
+
+    public ArchiveDownloader setRetries(int maxRetries, long initialDelayMillis) {
+        mMaxRetries = Math.max(0, maxRetries);
+        mRetryDelay = Math.max(0, initialDelayMillis);
+        return this;
+    }
+
+    /**
+     * @param sha256 The expected hex SHA-256 of the file, or null to skip verification.
+     */
+    public ArchiveDownloader setExpectedSha256(String sha256) {
+        mExpectedSha256 = sha256 != null && !sha256.trim().isEmpty() ? sha256.trim().toLowerCase(Locale.ENGLISH) : null;
+        return this;
+    }
+
+    public String getExpectedSha256() {
+        return mExpectedSha256;
+    }
+
+    /**
+     * Makes the probe a conditional request, so that {@link #notModified()} reports whether a previously
+     * downloaded copy with this ETag or Last-Modified date is still current.
+     */
+    public ArchiveDownloader setConditional(String etag, String lastModified) {
+        mIfNoneMatch = etag;
+        mIfModifiedSince = lastModified;
+        return this;
+    }
+
+    public boolean notModified() {
+        return mNotModified;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public boolean rangesSupported() {
+        return mRangesSupported;
+    }
+
+    /**
+     * The SHA-256 of the last completed download, as a hex string.
+     */
+    public String actualSha256() {
+        return mActualSha256;
+    }
+
+    /**
+     * Asks the server for the first byte of the file to find out its size and whether it supports ranges.
+     *
+     * @return The size of the file, or -1 if the server didn't report one or the file wasn't modified.
+     */
+    public long probe() throws IOException {
+        if (mProbed) return mContentLength;
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= mMaxRetries; attempt++) {
+            if (attempt > 0) backoff(attempt);
+            URLConnection conn = null;
+            try {
+                conn = open(0, 0, null, true);
+                if (conn instanceof HttpURLConnection &&
+                        ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    disconnect(conn);
+                    mNotModified = true;
+                    mProbed = true;
+                    return mContentLength;
+                }
+                final int code = responseCode(conn);
+                mLastModified = conn.getHeaderField("Last-Modified");
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    mRangesSupported = true;
+                    mContentLength = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+                    mEtag = conn.getHeaderField("ETag");
+                    disconnect(conn);
+                    if (mContentLength < 0) {
+                        // A range response without a total can't be split up
+                        mRangesSupported = false;
+                        conn = open(-1, -1, null);
+                        responseCode(conn);
+                        mContentLength = conn.getContentLengthLong();
+                        mPendingConnection = conn;
+                    }
+                } else {
+                    mRangesSupported = false;
+                    mContentLength = conn.getContentLengthLong();
+                    mEtag = conn.getHeaderField("ETag");
+                    mPendingConnection = conn;
+                }
+                mProbed = true;
+                return mContentLength;
+            } catch (PermanentException e) {
+                disconnect(conn);
+                throw e;
+            } catch (IOException e) {
+                disconnect(conn);
+                lastError = e;
+                Main.LOG("[WARNING]: Failed to contact %s (attempt %d of %d): %s", mUrl.getHost(),
+                        attempt + 1, mMaxRetries + 1, e.getMessage());
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Downloads the whole file to disk. Segments are fetched in parallel when the server supports ranges,
+     * and a previous interrupted download of the same file to the same destination is resumed.
+     */
+    public void download(File dest, Listener listener) throws IOException {
+        probe();
+        if (listener != null) listener.onStarted(mContentLength);
+        final MessageDigest digest = newDigest();
+        if (mRangesSupported && mContentLength > 0) {
+            downloadSegments(dest, listener, digest);
+        } else {
+            downloadSingle(dest, listener, digest);
+        }
+        verify(digest);
+    }
+
+    /**
+     * Opens a stream over the whole file. When the server supports ranges, the file is fetched in chunks
+     * over several connections that are read back in order, and chunks whose connection drops are
+     * requested again from where they left off; otherwise it's read over one connection, which
+     * transparently reconnects from where it left off. The checksum is verified when the end of the
+     * stream is reached, which fails the final read if it doesn't match.
+     */
+    public InputStream openStream(Listener listener) throws IOException {
+        probe();
+        if (listener != null) listener.onStarted(mContentLength);
+        if (mRangesSupported && mConnections > 1 && mContentLength > STREAM_CHUNK_SIZE)
+            return new ChunkedStream(listener);
+        return new ResumingStream(listener);
+    }
+
+    /**
+     * Releases the connection kept open by {@link #probe()}, for when the file isn't needed after all.
+     */
+    public void cancel() {
+        disconnect(mPendingConnection);
+        mPendingConnection = null;
+    }
+
+    private void downloadSegments(File dest, Listener listener, MessageDigest digest) throws IOException {
+        final int count = (int) Math.max(1, Math.min(mConnections, mContentLength / MIN_SEGMENT_SIZE));
+        final File stateFile = new File(dest.getAbsolutePath() + STATE_EXTENSION);
+        final long[] starts = new long[count + 1];
+        for (int i = 0; i <= count; i++)
+            starts[i] = mContentLength * i / count;
+        final File[] parts = new File[count];
+        for (int i = 0; i < count; i++)
+            parts[i] = new File(dest.getAbsolutePath() + ".part" + i);
+
+        if (!canResume(stateFile, count)) {
+            for (File part : parts) Files.deleteIfExists(part.toPath());
+            writeState(stateFile, count);
+        }
+
+        final AtomicLong totalRead = new AtomicLong();
+        for (File part : parts) totalRead.addAndGet(part.length());
+        final Listener syncListener = listener != null ? (read, total) -> {
+            synchronized (listener) {
+                listener.onProgress(read, total);
+            }
+        } : null;
+
+        final ExecutorService pool = Executors.newFixedThreadPool(count);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(pool.submit(() -> {
+                    fetchSegment(parts[index], starts[index], starts[index + 1] - 1, totalRead, syncListener);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+                await(future);
+        } catch (IOException e) {
+            pool.shutdownNow();
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+
+        // Stitch the segments together, hashing the data on the way through
+        final File temp = new File(dest.getAbsolutePath() + ".tmp");
+        final byte[] buffer = BufferPool.acquire();
+        try (OutputStream os = new FileOutputStream(temp)) {
+            for (File part : parts) {
+                try (InputStream is = new FileInputStream(part)) {
+                    int read;
+                    while ((read = is.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        os.write(buffer, 0, read);
+                    }
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        if (temp.length() != mContentLength) {
+            Files.deleteIfExists(temp.toPath());
+            throw new IOException(String.format("Downloaded %d bytes, but expected %d.", temp.length(), mContentLength));
+        }
+        Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (File part : parts) Files.deleteIfExists(part.toPath());
+        Files.deleteIfExists(stateFile.toPath());
+    }
+
+    private void fetchSegment(File part, long start, long end, AtomicLong totalRead, Listener listener) throws IOException {
+        final long length = end - start + 1;
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            IOException lastError = null;
+            for (int attempt = 0; attempt <= mMaxRetries; attempt++) {
+                final long have = part.length();
+                if (have >= length) return;
+                if (attempt > 0) backoff(attempt);
+                URLConnection conn = null;
+                try {
+                    conn = open(start + have, end, mEtag);
+                    if (responseCode(conn) != HttpURLConnection.HTTP_PARTIAL)
+                        throw new FileChangedException();
+                    try (InputStream is = conn.getInputStream();
+                         OutputStream os = new FileOutputStream(part, true)) {
+                        long remaining = length - have;
+                        int read;
+                        while (remaining > 0 && (read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                            os.write(buffer, 0, read);
+                            remaining -= read;
+                            final long total = totalRead.addAndGet(read);
+                            if (listener != null) listener.onProgress(total, mContentLength);
+                        }
+                        if (remaining > 0)
+                            throw new EOFException("Connection closed before the segment was complete.");
+                    }
+                    return;
+                } catch (PermanentException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e;
+                    Main.LOG("[WARNING]: Download of bytes %d-%d was interrupted (attempt %d of %d): %s",
+                            start, end, attempt + 1, mMaxRetries + 1, e.getMessage());
+                } finally {
+                    disconnect(conn);
+                }
+            }
+            throw lastError;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private void downloadSingle(File dest, Listener listener, MessageDigest digest) throws IOException {
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            IOException lastError = null;
+            for (int attempt = 0; attempt <= mMaxRetries; attempt++) {
+                if (attempt > 0) backoff(attempt);
+                // Without range support an interrupted download has to start over
+                digest.reset();
+                URLConnection conn = mPendingConnection;
+                mPendingConnection = null;
+                try {
+                    if (conn == null) {
+                        conn = open(-1, -1, null);
+                        responseCode(conn);
+                    }
+                    long totalRead = 0;
+                    try (InputStream is = conn.getInputStream();
+                         OutputStream os = new FileOutputStream(dest)) {
+                        int read;
+                        while ((read = is.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                            os.write(buffer, 0, read);
+                            totalRead += read;
+                            if (listener != null) listener.onProgress(totalRead, mContentLength);
+                        }
+                    }
+                    if (mContentLength >= 0 && totalRead != mContentLength)
+                        throw new EOFException(String.format("Downloaded %d bytes, but expected %d.", totalRead, mContentLength));
+                    return;
+                } catch (PermanentException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e;
+                    Main.LOG("[WARNING]: Download was interrupted (attempt %d of %d): %s",
+                            attempt + 1, mMaxRetries + 1, e.getMessage());
+                } finally {
+                    disconnect(conn);
+                }
+            }
+            throw lastError;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private class ResumingStream extends InputStream {
+
+        private final Listener mListener;
+        private final MessageDigest mDigest = newDigest();
+        private URLConnection mConn;
+        private InputStream mIn;
+        private long mPosition;
+        private int mRetries;
+        private boolean mEnded;
+
+        ResumingStream(Listener listener) throws IOException {
+            mListener = listener;
+            if (mPendingConnection != null) {
+                mConn = mPendingConnection;
+                mPendingConnection = null;
+            } else {
+                mConn = open(-1, -1, null);
+                responseCode(mConn);
+            }
+            mIn = mConn.getInputStream();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEnded) return -1;
+            while (true) {
+                try {
+                    final int read = mIn.read(b, off, len);
+                    if (read == -1) {
+                        if (mContentLength >= 0 && mPosition < mContentLength)
+                            throw new EOFException(String.format("Connection closed after %d of %d bytes.", mPosition, mContentLength));
+                        mEnded = true;
+                        verify(mDigest);
+                        return -1;
+                    }
+                    mDigest.update(b, off, read);
+                    mPosition += read;
+                    if (mListener != null) mListener.onProgress(mPosition, mContentLength);
+                    return read;
+                } catch (PermanentException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!mRangesSupported || mRetries >= mMaxRetries) {
+                        if (e instanceof EOFException) throw e;
+                        throw new IOException("Download was interrupted: " + e.getMessage(), e);
+                    }
+                    mRetries++;
+                    Main.LOG("[WARNING]: Download was interrupted at %d bytes, resuming (attempt %d of %d): %s",
+                            mPosition, mRetries, mMaxRetries, e.getMessage());
+                    disconnect(mConn);
+                    backoff(mRetries);
+                    try {
+                        mConn = open(mPosition, -1, mEtag);
+                        if (responseCode(mConn) != HttpURLConnection.HTTP_PARTIAL)
+                            throw new FileChangedException();
+                        mIn = mConn.getInputStream();
+                    } catch (PermanentException fe) {
+                        throw fe;
+                    } catch (IOException reconnectError) {
+                        // Let the next iteration count it as another failed attempt
+                        mIn = new FailingStream(reconnectError);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            Util.closeQuietely(mIn);
+            disconnect(mConn);
+        }
+    }
+
+    // Keeps a window of chunks downloading ahead of the reader, each over its own request
+    private class ChunkedStream extends InputStream {
+
+        private final Listener mListener;
+        private final MessageDigest mDigest = newDigest();
+        private final ExecutorService mPool;
+        private final ArrayDeque<Future<byte[]>> mPending = new ArrayDeque<>();
+        private long mNextStart;
+        private byte[] mChunk = new byte[0];
+        private int mChunkPosition;
+        private long mPosition;
+        private boolean mEnded;
+
+        ChunkedStream(Listener listener) {
+            mListener = listener;
+            final long chunks = (mContentLength + STREAM_CHUNK_SIZE - 1) / STREAM_CHUNK_SIZE;
+            final int connections = (int) Math.min(mConnections, chunks);
+            mPool = Executors.newFixedThreadPool(connections);
+            for (int i = 0; i < connections * 2; i++)
+                requestNext();
+        }
+
+        private void requestNext() {
+            if (mNextStart >= mContentLength) return;
+            final long start = mNextStart;
+            final long end = Math.min(start + STREAM_CHUNK_SIZE, mContentLength) - 1;
+            mNextStart = end + 1;
+            mPending.add(mPool.submit(() -> fetchChunk(start, end)));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEnded) return -1;
+            if (mChunkPosition == mChunk.length) {
+                if (mPending.isEmpty()) {
+                    mEnded = true;
+                    close();
+                    verify(mDigest);
+                    return -1;
+                }
+                try {
+                    mChunk = await(mPending.poll());
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+                mChunkPosition = 0;
+                requestNext();
+            }
+            final int read = Math.min(len, mChunk.length - mChunkPosition);
+            System.arraycopy(mChunk, mChunkPosition, b, off, read);
+            mChunkPosition += read;
+            mDigest.update(b, off, read);
+            mPosition += read;
+            if (mListener != null) mListener.onProgress(mPosition, mContentLength);
+            return read;
+        }
+
+        @Override
+        public void close() {
+            mPool.shutdownNow();
+        }
+    }
+
+    private byte[] fetchChunk(long start, long end) throws IOException {
+        final byte[] chunk = new byte[(int) (end - start + 1)];
+        int have = 0;
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= mMaxRetries; attempt++) {
+            if (attempt > 0) backoff(attempt);
+            URLConnection conn = null;
+            try {
+                conn = open(start + have, end, mEtag);
+                if (responseCode(conn) != HttpURLConnection.HTTP_PARTIAL)
+                    throw new FileChangedException();
+                // Closing the stream without disconnecting lets the next chunk reuse the connection
+                try (InputStream is = conn.getInputStream()) {
+                    int read;
+                    while (have < chunk.length && (read = is.read(chunk, have, chunk.length - have)) != -1)
+                        have += read;
+                }
+                if (have < chunk.length)
+                    throw new EOFException("Connection closed before the segment was complete.");
+                return chunk;
+            } catch (PermanentException e) {
+                disconnect(conn);
+                throw e;
+            } catch (IOException e) {
+                disconnect(conn);
+                lastError = e;
+                Main.LOG("[WARNING]: Download of bytes %d-%d was interrupted (attempt %d of %d): %s",
+                        start, end, attempt + 1, mMaxRetries + 1, e.getMessage());
+            }
+        }
+        throw lastError;
+    }
+
+    private static class FailingStream extends InputStream {
+
+        private final IOException mError;
+
+        FailingStream(IOException error) {
+            mError = error;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw mError;
+        }
+    }
+
+    // A failure that asking again won't fix, so it isn't retried
+    private static class PermanentException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        PermanentException(String message) {
+            super(message);
+        }
+    }
+
+    private static class FileChangedException extends PermanentException {
+
+        private static final long serialVersionUID = 1L;
+
+        FileChangedException() {
+            super("The file changed on the server during the download.");
+        }
+    }
+
+    /**
+     * @param from First byte to request, or -1 to request the whole file.
+     * @param to   Last byte to request, or -1 to request everything after from.
+     */
+    private URLConnection open(long from, long to, String ifRange) throws IOException {
+        return open(from, to, ifRange, false);
+    }
+
+    private URLConnection open(long from, long to, String ifRange, boolean conditional) throws IOException {
+        final URLConnection conn = mUrl.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setRequestProperty("User-Agent", "polar-upgrade-tool");
+        if (from >= 0) {
+            conn.setRequestProperty("Range", to >= 0 ? "bytes=" + from + "-" + to : "bytes=" + from + "-");
+            if (ifRange != null)
+                conn.setRequestProperty("If-Range", ifRange);
+        }
+        if (conditional && mIfNoneMatch != null)
+            conn.setRequestProperty("If-None-Match", mIfNoneMatch);
+        if (conditional && mIfModifiedSince != null)
+            conn.setRequestProperty("If-Modified-Since", mIfModifiedSince);
+        // Compressed transfer encodings would make ranges and lengths refer to different bytes
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        conn.connect();
+        return conn;
+    }
+
+    private static int responseCode(URLConnection conn) throws IOException {
+        if (!(conn instanceof HttpURLConnection))
+            return HttpURLConnection.HTTP_OK;
+        final int code = ((HttpURLConnection) conn).getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            final String message = String.format("Server responded with HTTP %d %s", code,
+                    ((HttpURLConnection) conn).getResponseMessage());
+            // Client errors, e.g. a wrong URL, stay the same however often they're retried; only a
+            // timeout or being rate limited (429 Too Many Requests) may go away
+            if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != 429)
+                throw new PermanentException(message);
+            throw new IOException(message);
+        }
+        return code;
+    }
+
+    private static void disconnect(URLConnection conn) {
+        if (conn instanceof HttpURLConnection)
+            ((HttpURLConnection) conn).disconnect();
+    }
+
+    // Parses the total from a "bytes 0-0/12345" header
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) return -1;
+        final int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean canResume(File stateFile, int count) {
+        if (!stateFile.exists()) return false;
+        final Properties state = new Properties();
+        try (InputStream is = new FileInputStream(stateFile)) {
+            state.load(is);
+        } catch (IOException e) {
+            return false;
+        }
+        // Only resume if the server has the same file we were downloading before
+        return mUrl.toString().equals(state.getProperty("url")) &&
+                String.valueOf(mContentLength).equals(state.getProperty("length")) &&
+                String.valueOf(count).equals(state.getProperty("segments")) &&
+                mEtag != null && mEtag.equals(state.getProperty("etag"));
+    }
+
+    private void writeState(File stateFile, int count) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("url", mUrl.toString());
+        state.setProperty("length", String.valueOf(mContentLength));
+        state.setProperty("segments", String.valueOf(count));
+        if (mEtag != null) state.setProperty("etag", mEtag);
+        try (OutputStream os = new FileOutputStream(stateFile)) {
+            state.store(os, null);
+        }
+    }
+
+    private void verify(MessageDigest digest) throws IOException {
+        mActualSha256 = Util.toHex(digest.digest());
+        if (mExpectedSha256 != null && !mExpectedSha256.equals(mActualSha256))
+            throw new IOException(String.format("Checksum mismatch: expected SHA-256 %s, but got %s.",
+                    mExpectedSha256, mActualSha256));
+    }
+
+    private void backoff(int attempt) throws IOException {
+        try {
+            Thread.sleep(mRetryDelay * (1L << Math.min(attempt - 1, 10)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the download.");
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes log output on a background thread, so that the threads zipping, copying and migrating files
+ * only queue their messages. Messages are formatted once, on that thread, and only if their level is
+ * logged at all; each is then written to the console and, when Main.LOG_JSON is set, to a JSON lines
+ * file. The console is written to and flushed once per batch of queued messages.
+ * <p>
+ * The queue is a fixed-size ring buffer; threads logging faster than the output can be written wait
+ * for room rather than dropping messages. Everything queued is written before an upgrade returns,
+ * before an error is reported, and before the process exits.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class AsyncLog {
+
+    public enum Level {
+        // Per-file output, e.g. every file zipped or folder copied
+        DEBUG,
+        INFO,
+        WARNING,
+        ERROR
+    }
+
+    // Messages queued before producers have to wait for the writer
+    private static final int CAPACITY = 8192;
+    // Messages written per batch at most
+    private static final int BATCH_SIZE = 1024;
+    // How long flush() waits for the writer, so a stuck console can't hang the process
+    private static final long FLUSH_TIMEOUT_MS = 5000;
+
+    static class Event {
+
+        final Level level;
+        final long time;
+        final String thread;
+        final String prefix;
+        final String format;
+        final Object[] args;
+        // Written to the console as is, without a level or a line break, e.g. progress bars
+        final boolean raw;
+
+        Event(Level level, String prefix, String format, Object[] args, boolean raw) {
+            this.level = level;
+            this.time = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            this.prefix = prefix;
+            this.format = format;
+            this.args = args;
+            this.raw = raw;
+        }
+
+        String message() {
+            final String msg = args != null ? String.format(format, args) : format;
+            return prefix != null ? prefix + msg : msg;
+        }
+    }
+
+    private static AsyncLog sInstance;
+
+    static synchronized AsyncLog get() {
+        if (sInstance == null)
+            sInstance = new AsyncLog();
+        return sInstance;
+    }
+
+    private final BlockingQueue<Event> mQueue = new ArrayBlockingQueue<>(CAPACITY);
+    // Messages queued, counted before they're put in the queue so that flush() waits for them too
+    private final AtomicLong mQueued = new AtomicLong();
+    private final Object mWrittenLock = new Object();
+    private long mWritten;
+
+    private Writer mJson;
+    private boolean mJsonFailed;
+
+    private AsyncLog() {
+        final Thread writer = new Thread(this::run, "polar-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "polar-log-flush"));
+    }
+
+    /**
+     * @return A message to pass to {@link #enqueue(Event)}, or null if its level isn't logged. The
+     * arguments are formatted later, on the log thread, so they mustn't be changed afterwards.
+     */
+    Event event(Level level, String prefix, String format, Object[] args) {
+        if (level.compareTo(Main.LOG_LEVEL) < 0) return null;
+        return new Event(level, prefix, format, args, false);
+    }
+
+    /**
+     * @return Text to be written to the console as is, e.g. a progress bar.
+     */
+    Event raw(String text) {
+        return new Event(Level.INFO, null, text, null, true);
+    }
+
+    /**
+     * Queues a message made by {@link #event} or {@link #raw}, waiting for room if the queue is full.
+     * Errors are written before this returns.
+     */
+    void enqueue(Event event) {
+        if (event == null) return;
+        mQueued.incrementAndGet();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(event);
+                break;
+            } catch (InterruptedException e) {
+                // The message has been counted, so it has to be queued
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (event.level == Level.ERROR)
+            flush();
+    }
+
+    /**
+     * Waits until everything queued so far has been written.
+     */
+    void flush() {
+        final long target = mQueued.get();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        synchronized (mWrittenLock) {
+            while (mWritten < target) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) return;
+                try {
+                    mWrittenLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void run() {
+        final List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        final StringBuilder console = new StringBuilder(BATCH_SIZE * 64);
+        final StringBuilder json = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(mQueue.take());
+                mQueue.drainTo(batch, BATCH_SIZE - 1);
+                for (Event event : batch) {
+                    if (event.raw) {
+                        console.append(event.format);
+                        continue;
+                    }
+                    final String message;
+                    try {
+                        message = event.message();
+                    } catch (RuntimeException e) {
+                        console.append("[WARNING]: Unable to format log message ").append(event.format)
+                                .append(": ").append(e).append('\n');
+                        continue;
+                    }
+                    console.append(message).append('\n');
+                    if (Main.LOG_JSON != null) appendJson(json, event, message);
+                }
+                // Looked up every time, so output can be redirected with System.setOut()
+                final PrintStream out = System.out;
+                out.print(console);
+                out.flush();
+                writeJson(json);
+            } catch (InterruptedException e) {
+                // Only the writer itself takes from the queue, so there's nothing to stop
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                final int written = batch.size();
+                batch.clear();
+                console.setLength(0);
+                json.setLength(0);
+                if (written > 0) {
+                    synchronized (mWrittenLock) {
+                        mWritten += written;
+                        mWrittenLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder json, Event event, String message) {
+        json.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time))
+                .append("\",\"level\":\"").append(event.level)
+                .append("\",\"thread\":").append(Util.jsonString(event.thread))
+                .append(",\"message\":").append(Util.jsonString(message))
+                .append("}\n");
+    }
+
+    private void writeJson(StringBuilder json) {
+        if (json.length() == 0 || mJsonFailed) return;
+        try {
+            if (mJson == null) {
+                mJson = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(Main.LOG_JSON, true), StandardCharsets.UTF_8));
+            }
+            mJson.append(json);
+            mJson.flush();
+        } catch (IOException e) {
+            // Reported once, the console still gets everything
+            mJsonFailed = true;
+            System.out.println(String.format("[WARNING]: Unable to write the JSON log to %s: %s",
+                    Main.LOG_JSON.getAbsolutePath(), e.getMessage()));
+        }
+    }
+}
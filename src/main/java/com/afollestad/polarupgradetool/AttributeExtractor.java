@@ -4,16 +4,12 @@ import com.afollestad.polarupgradetool.jfx.UICallback;
 
 import java.io.*;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Aidan Follestad (afollestad)
  */
 public class AttributeExtractor {
 
-    private static final String XML_REGEX = "%s=[\"']?((?:.(?![\"']?\\s+(?:\\S+)=|[>\"']))+.)[\"']?";
-
     public static final int MODE_XML = 1;
     public static final int MODE_GRADLE = 2;
 
@@ -40,16 +36,7 @@ public class AttributeExtractor {
     }
 
     public static String getAttributeValue(String name, String tag) {
-        Pattern pattern = Pattern.compile(String.format(XML_REGEX, name));
-        Matcher matcher = pattern.matcher(tag);
-        if (matcher.find()) {
-            String result = tag.substring(matcher.start(), matcher.end());
-            result = result.substring(result.indexOf('=') + 1, result.length());
-            if (result.startsWith("\"") && result.endsWith("\""))
-                result = result.substring(1, result.length() - 1);
-            return result;
-        }
-        return null;
+        return AttributeLexer.value(tag, name);
     }
 
     public static String getElementValue(String tag) {
@@ -77,19 +64,12 @@ public class AttributeExtractor {
 
     public HashMap<String, String> find() {
         if (!mFile.exists()) {
-            Main.LOG("[ERROR]: File %s does not exist.", mFile.getAbsolutePath());
-            if (uiCallback != null) uiCallback.onErrorOccurred("File does not exist:\n" + mFile.getAbsolutePath());
+            Main.ERROR(uiCallback, "File %s does not exist.", mFile.getAbsolutePath());
             return null;
         }
 
         InputStream is = null;
         BufferedReader reader = null;
-        Pattern[] patterns = null;
-        if (mMode == MODE_XML) {
-            patterns = new Pattern[mAttributeNames.length];
-            for (int i = 0; i < patterns.length; i++)
-                patterns[i] = Pattern.compile(String.format(XML_REGEX, mAttributeNames[i]));
-        }
 
         final HashMap<String, String> results = new HashMap<>(mAttributeNames.length);
 
@@ -99,19 +79,11 @@ public class AttributeExtractor {
 
             String line;
             while ((line = reader.readLine()) != null) {
-                if (patterns != null) {
-                    // XML
-                    for (Pattern pattern : patterns) {
-                        Matcher matcher = pattern.matcher(line);
-                        if (matcher.find()) {
-                            String result = line.substring(matcher.start(), matcher.end());
-                            String name = result.substring(0, result.indexOf('='));
-                            result = result.substring(result.indexOf('=') + 1, result.length());
-                            if ((result.startsWith("\"") && result.endsWith("\"")) ||
-                                    result.startsWith("'") && result.endsWith("'")) {
-                                result = result.substring(1, result.length() - 1);
-                            }
-                            results.put(name, result);
+                if (mMode == MODE_XML) {
+                    for (String attr : mAttributeNames) {
+                        final String result = AttributeLexer.value(line, attr);
+                        if (result != null) {
+                            results.put(attr, result);
                             break;
                         }
                     }
@@ -132,9 +104,7 @@ public class AttributeExtractor {
                 }
             }
         } catch (Exception e) {
-            Main.LOG("[ERROR] Failed to read %s: %s", mFile.getAbsolutePath(), e.getMessage());
-            if (uiCallback != null)
-                uiCallback.onErrorOccurred("Failed to read " + mFile.getAbsolutePath() + ": " + e.getMessage());
+            Main.ERROR(uiCallback, "Failed to read %s: %s", mFile.getAbsolutePath(), e.getMessage());
             e.printStackTrace();
             return null;
         } finally {
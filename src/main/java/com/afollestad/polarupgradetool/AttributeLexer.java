@@ -0,0 +1,106 @@
+package com.afollestad.polarupgradetool;
+
+/**
+ * Finds attribute values in XML tags, e.g. the {@code app_name} of {@code <string name="app_name">},
+ * without regular expressions. It works on a range of any CharSequence (a String, a StringBuilder,
+ * or a view of a scanner's buffer) and reports where the value is instead of copying it, so looking
+ * up an attribute doesn't allocate anything.
+ * <p>
+ * An attribute matches when its name is preceded by whitespace (so {@code name} doesn't match
+ * {@code android:name}) and followed by {@code =}, optionally surrounded by whitespace. Quoted values
+ * are skipped while searching, so text inside another attribute's value is never mistaken for an
+ * attribute. Unquoted values run up to the next whitespace, {@code >} or {@code />}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class AttributeLexer {
+
+    public static final long NOT_FOUND = -1;
+
+    /**
+     * @return The range of the attribute's value (without quotes) packed into a long, to be taken
+     * apart with {@link #start(long)} and {@link #end(long)}, or {@link #NOT_FOUND}.
+     */
+    public static long find(CharSequence source, int from, int to, String name) {
+        final int nameLength = name.length();
+        char quote = 0;
+        for (int i = from; i < to; i++) {
+            final char c = source.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                continue;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                continue;
+            }
+            if (c != name.charAt(0) || i + nameLength > to || (i > from && !isWhitespace(source.charAt(i - 1))))
+                continue;
+            if (!regionMatches(source, i, name)) continue;
+
+            int j = i + nameLength;
+            while (j < to && isWhitespace(source.charAt(j))) j++;
+            if (j == to || source.charAt(j) != '=') continue;
+            j++;
+            while (j < to && isWhitespace(source.charAt(j))) j++;
+            if (j == to) return NOT_FOUND;
+
+            final char first = source.charAt(j);
+            if (first == '"' || first == '\'') {
+                int end = j + 1;
+                while (end < to && source.charAt(end) != first) end++;
+                return range(j + 1, end);
+            }
+            int end = j;
+            while (end < to && !isWhitespace(source.charAt(end)) && source.charAt(end) != '>' &&
+                    !(source.charAt(end) == '/' && end + 1 < to && source.charAt(end + 1) == '>'))
+                end++;
+            return range(j, end);
+        }
+        return NOT_FOUND;
+    }
+
+    public static String value(CharSequence source, int from, int to, String name) {
+        final long range = find(source, from, to, name);
+        return range == NOT_FOUND ? null : source.subSequence(start(range), end(range)).toString();
+    }
+
+    public static String value(CharSequence source, String name) {
+        return value(source, 0, source.length(), name);
+    }
+
+    /**
+     * Compares the attribute's value to the given string without copying it.
+     */
+    public static boolean valueEquals(CharSequence source, int from, int to, String name, String expected) {
+        final long range = find(source, from, to, name);
+        if (range == NOT_FOUND || end(range) - start(range) != expected.length()) return false;
+        return regionMatches(source, start(range), expected);
+    }
+
+    public static int start(long range) {
+        return (int) (range >>> 32);
+    }
+
+    public static int end(long range) {
+        return (int) range;
+    }
+
+    private static long range(int start, int end) {
+        return ((long) start << 32) | (end & 0xFFFFFFFFL);
+    }
+
+    private static boolean regionMatches(CharSequence source, int offset, String s) {
+        if (offset + s.length() > source.length()) return false;
+        for (int k = 0; k < s.length(); k++) {
+            if (source.charAt(offset + k) != s.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private AttributeLexer() {
+    }
+}
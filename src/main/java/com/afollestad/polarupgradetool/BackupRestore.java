@@ -0,0 +1,449 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.stream.Stream;
+
+/**
+ * Restores a project from its <AppName>-BACKUP.zip, an exported incremental backup or its snapshot
+ * folder, either entirely or only the paths the last upgrade wrote, renamed or deleted. Those are
+ * recorded in the project's .polar-touched file at the end of every upgrade, including upgrades that
+ * failed part of the way, along with the backup made before it.
+ * <p>
+ * The backup's central directory is read with random access, so only the entries being restored are
+ * read, and they're extracted on the copy pool. Files that already match their entry's size and CRC
+ * (or their snapshot file) are left untouched, and files the upgrade created that aren't in the
+ * backup are deleted.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class BackupRestore {
+
+    public static final String TOUCHED_FILE = ".polar-touched";
+
+    private static final String TOUCHED_HEADER = "# polar-touched 1";
+    private static final String BACKUP_PREFIX = "# backup ";
+    // Entries restored per task
+    private static final int BATCH_SIZE = 64;
+
+    public static class Result {
+
+        public final int restored;
+        public final int unchanged;
+        public final int deleted;
+
+        Result(int restored, int unchanged, int deleted) {
+            this.restored = restored;
+            this.unchanged = unchanged;
+            this.deleted = deleted;
+        }
+    }
+
+    // The paths touched by the last upgrade, and the backup made before it
+    static class Touched {
+
+        final String backup;
+        final Set<String> paths;
+
+        Touched(String backup, Set<String> paths) {
+            this.backup = backup;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * Writes the paths the upgrade touched to the project's record, if it got as far as making a backup.
+     */
+    static void saveTouched(UpgradeContext ctx) {
+        if (ctx.getBackup() == null) return;
+        final File file = new File(ctx.getProjectDir(), TOUCHED_FILE);
+        // Replaces the record rather than writing through it, in case it's linked into a snapshot
+        final File temp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                writer.write(TOUCHED_HEADER + "\n");
+                writer.write(BACKUP_PREFIX + ctx.getBackup() + "\n");
+                for (String path : new TreeSet<>(ctx.getTouched()))
+                    writer.write(path + "\n");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Main.LOG("[WARNING]: Failed to record the files changed by the upgrade: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * @return The paths touched by the last upgrade of the project, or null if there's no record of it.
+     */
+    static Touched loadTouched(File projectDir) throws IOException {
+        final File file = new File(projectDir, TOUCHED_FILE);
+        if (!file.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!TOUCHED_HEADER.equals(reader.readLine()))
+                throw new IOException(file + " isn't a record of touched files.");
+            String backup = null;
+            final Set<String> paths = new HashSet<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(BACKUP_PREFIX)) {
+                    backup = line.substring(BACKUP_PREFIX.length());
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    paths.add(line);
+                }
+            }
+            return new Touched(backup, paths);
+        }
+    }
+
+    // The files of a backup, by their path in the project
+    private interface Source extends Closeable {
+
+        // The backup's name, as recorded in .polar-touched
+        String name();
+
+        List<String> list() throws IOException;
+
+        boolean matches(String name, File file, byte[] buffer) throws IOException;
+
+        InputStream open(String name) throws IOException;
+
+        // -1 if unknown
+        long time(String name) throws IOException;
+    }
+
+    private static class ZipSource implements Source {
+
+        private final File mFile;
+        private final ZipFile mZip;
+
+        ZipSource(File file) throws IOException {
+            mFile = file;
+            mZip = new ZipFile(file);
+        }
+
+        @Override
+        public String name() {
+            // Exported incremental backups are named by their comment, written by BackupStore
+            final String comment = mZip.getComment();
+            return comment != null && comment.startsWith(BackupStore.BACKUP_NAME_PREFIX) ? comment : mFile.getName();
+        }
+
+        @Override
+        public List<String> list() throws IOException {
+            final List<String> names = new ArrayList<>();
+            final Enumeration<? extends ZipEntry> enumeration = mZip.entries();
+            while (enumeration.hasMoreElements()) {
+                final ZipEntry entry = enumeration.nextElement();
+                if (entry.isDirectory()) continue;
+                if (!isSafe(entry.getName()))
+                    throw new IOException("The backup has an entry outside of the project: " + entry.getName());
+                names.add(entry.getName());
+            }
+            return names;
+        }
+
+        // Same size and CRC as the entry; the size is checked first, so most changed files aren't read
+        @Override
+        public boolean matches(String name, File file, byte[] buffer) throws IOException {
+            final ZipEntry entry = mZip.getEntry(name);
+            if (!file.isFile() || entry.getSize() == -1 || entry.getCrc() == -1 || file.length() != entry.getSize())
+                return false;
+            final CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    crc.update(buffer, 0, read);
+            }
+            return crc.getValue() == entry.getCrc();
+        }
+
+        @Override
+        public InputStream open(String name) throws IOException {
+            return mZip.getInputStream(mZip.getEntry(name));
+        }
+
+        @Override
+        public long time(String name) {
+            return mZip.getEntry(name).getTime();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mZip.close();
+        }
+    }
+
+    // A snapshot folder, whose files are hard links to the project's files as they were before the upgrade
+    private static class FolderSource implements Source {
+
+        private final Path mRoot;
+
+        FolderSource(File folder) {
+            mRoot = folder.toPath();
+        }
+
+        @Override
+        public String name() {
+            return mRoot.getFileName().toString();
+        }
+
+        @Override
+        public List<String> list() throws IOException {
+            final List<String> names = new ArrayList<>();
+            try (Stream<Path> files = Files.walk(mRoot)) {
+                files.filter(Files::isRegularFile)
+                        .forEach(file -> names.add(mRoot.relativize(file).toString().replace(File.separatorChar, '/')));
+            }
+            return names;
+        }
+
+        // The same file if the upgrade left it alone, otherwise the same size and contents
+        @Override
+        public boolean matches(String name, File file, byte[] buffer) throws IOException {
+            final Path backed = mRoot.resolve(name);
+            if (!file.isFile()) return false;
+            if (Files.isSameFile(backed, file.toPath())) return true;
+            if (Files.size(backed) != file.length()) return false;
+            final byte[] other = BufferPool.acquire();
+            try (InputStream in = Files.newInputStream(backed);
+                 DataInputStream current = new DataInputStream(new FileInputStream(file))) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    current.readFully(other, 0, read);
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] != other[i]) return false;
+                    }
+                }
+                return true;
+            } catch (EOFException e) {
+                // The file shrank while it was read
+                return false;
+            } finally {
+                BufferPool.release(other);
+            }
+        }
+
+        @Override
+        public InputStream open(String name) throws IOException {
+            return Files.newInputStream(mRoot.resolve(name));
+        }
+
+        @Override
+        public long time(String name) throws IOException {
+            return Files.getLastModifiedTime(mRoot.resolve(name)).toMillis();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RestoreTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Source mSource;
+        private final File mProjectDir;
+        private final List<String> mEntries;
+        private final int mFrom;
+        private final int mTo;
+        private final Set<String> mRestored;
+        private final AtomicInteger mUnchanged;
+        private final AtomicReference<IOException> mError;
+
+        RestoreTask(Source source, File projectDir, List<String> entries, int from, int to,
+                    Set<String> restored, AtomicInteger unchanged, AtomicReference<IOException> error) {
+            mSource = source;
+            mProjectDir = projectDir;
+            mEntries = entries;
+            mFrom = from;
+            mTo = to;
+            mRestored = restored;
+            mUnchanged = unchanged;
+            mError = error;
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > BATCH_SIZE) {
+                final int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new RestoreTask(mSource, mProjectDir, mEntries, mFrom, middle, mRestored, mUnchanged, mError),
+                        new RestoreTask(mSource, mProjectDir, mEntries, middle, mTo, mRestored, mUnchanged, mError));
+                return;
+            }
+            final byte[] buffer = BufferPool.acquire();
+            try {
+                for (int i = mFrom; i < mTo && mError.get() == null; i++) {
+                    final String name = mEntries.get(i);
+                    final File target = new File(mProjectDir, name);
+                    if (mSource.matches(name, target, buffer)) {
+                        mUnchanged.incrementAndGet();
+                        continue;
+                    }
+                    if (target.isDirectory())
+                        FileUtil.wipe(target);
+                    Files.createDirectories(target.getParentFile().toPath());
+                    // Replaces the file rather than writing through it, in case it's linked into a snapshot
+                    try (InputStream in = mSource.open(name)) {
+                        Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    final long time = mSource.time(name);
+                    if (time != -1)
+                        target.setLastModified(time);
+                    mRestored.add(name);
+                }
+            } catch (IOException e) {
+                mError.compareAndSet(null, e);
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * @param backup A backup ZIP, or the snapshot folder.
+     * @param all    Whether to restore every file in the backup, rather than only the paths touched by
+     *               the last upgrade. Files the last upgrade created are deleted either way, as long as
+     *               the backup is the one made before it.
+     */
+    public static Result restore(File projectDir, File backup, boolean all) throws IOException {
+        final Touched touched = loadTouched(projectDir);
+        try (Source source = backup.isDirectory() ? new FolderSource(backup) : new ZipSource(backup)) {
+            // Whether the backup was made right before the recorded upgrade
+            final boolean lastUpgrade = touched != null && source.name().equals(touched.backup);
+            if (!all) {
+                if (touched == null)
+                    throw new IOException("There's no record of the files changed by the last upgrade, restore everything instead.");
+                if (!lastUpgrade)
+                    throw new IOException(String.format("The last upgrade was backed up to %s, not %s; restore everything instead.",
+                            touched.backup, source.name()));
+            }
+
+            // Entries and the folders they're in, to tell which touched paths the backup has
+            final Set<String> inBackup = new HashSet<>();
+            final List<String> entries = new ArrayList<>();
+            for (String name : source.list()) {
+                if (name.equals(TOUCHED_FILE)) continue;
+                for (int i = name.lastIndexOf('/'); i > 0; i = name.lastIndexOf('/', i - 1))
+                    inBackup.add(name.substring(0, i));
+                inBackup.add(name);
+                if (all || isTouched(name, touched.paths))
+                    entries.add(name);
+            }
+
+            final Set<String> restored = Collections.synchronizedSet(new TreeSet<>());
+            final AtomicInteger unchanged = new AtomicInteger();
+            final AtomicReference<IOException> error = new AtomicReference<>();
+            if (!entries.isEmpty())
+                ParallelCopy.pool().invoke(new RestoreTask(source, projectDir, entries, 0, entries.size(), restored, unchanged, error));
+            for (String name : restored)
+                Main.DEBUG("[RESTORED]: %s", name);
+            if (error.get() != null)
+                throw error.get();
+
+            // Whatever the upgrade touched that isn't in its backup was created by it
+            int deleted = 0;
+            if (lastUpgrade) {
+                for (String path : new TreeSet<>(touched.paths)) {
+                    final File file = new File(projectDir, path);
+                    if (inBackup.contains(path) || !file.exists()) continue;
+                    Main.LOG("[DELETE]: %s", path);
+                    if (file.isDirectory()) {
+                        FileUtil.wipe(file);
+                    } else if (!file.delete()) {
+                        throw new IOException("Unable to delete " + path);
+                    }
+                    deleted++;
+                }
+                // The project is back to before the upgrade, so the record no longer applies
+                Files.deleteIfExists(new File(projectDir, TOUCHED_FILE).toPath());
+            }
+            return new Result(restored.size(), unchanged.get(), deleted);
+        }
+    }
+
+    // A touched folder covers everything in it
+    private static boolean isTouched(String name, Set<String> touched) {
+        if (touched.contains(name)) return true;
+        for (int i = name.lastIndexOf('/'); i > 0; i = name.lastIndexOf('/', i - 1)) {
+            if (touched.contains(name.substring(0, i)))
+                return true;
+        }
+        return false;
+    }
+
+    // Rejects absolute names and ".." segments, which would point outside of the project
+    private static boolean isSafe(String name) {
+        if (name.isEmpty() || name.charAt(0) == '/' || name.charAt(0) == '\\' || name.indexOf(':') != -1)
+            return false;
+        int start = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '/' || name.charAt(i) == '\\') {
+                if (i - start == 2 && name.charAt(start) == '.' && name.charAt(start + 1) == '.')
+                    return false;
+                start = i + 1;
+            }
+        }
+        return true;
+    }
+
+    // The project's backup, as named in the record of the last upgrade or the only one there is
+    private static File findBackup(File projectDir) throws IOException {
+        final Touched touched = loadTouched(projectDir);
+        if (touched != null && touched.backup != null && new File(projectDir, touched.backup).exists())
+            return new File(projectDir, touched.backup);
+        final File[] backups = projectDir.listFiles((dir, name) -> name.endsWith("-BACKUP.zip"));
+        if (backups == null || backups.length == 0) {
+            if (touched != null && touched.backup != null && touched.backup.startsWith(BackupStore.BACKUP_NAME_PREFIX))
+                throw new IOException("The last upgrade was backed up incrementally, export it with BackupStore first.");
+            throw new IOException("No backup ZIP was found in " + projectDir.getAbsolutePath());
+        }
+        if (backups.length > 1)
+            throw new IOException("Several backup ZIPs were found in " + projectDir.getAbsolutePath() + ", pass the one to restore.");
+        return backups[0];
+    }
+
+    public static void main(String[] args) {
+        boolean all = false;
+        final List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--all")) {
+                all = true;
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty() || paths.size() > 2) {
+            System.out.println("Usage: BackupRestore [--all] <project folder> [backup zip or snapshot folder]\n" +
+                    "Restores the files changed by the last upgrade, or every file with --all.");
+            System.exit(2);
+            return;
+        }
+
+        final File projectDir = new File(paths.get(0)).getAbsoluteFile();
+        try {
+            final File backup = paths.size() > 1 ? new File(paths.get(1)).getAbsoluteFile() : findBackup(projectDir);
+            Main.LOG("[INFO]: Restoring %s from %s...", all ? "every file" : "the files changed by the last upgrade",
+                    backup.getAbsolutePath());
+            final long start = System.nanoTime();
+            final Result result = restore(projectDir, backup, all);
+            Main.LOG("[INFO]: Restored %d files and deleted %d in %d ms, %d files already matched the backup.",
+                    result.restored, result.deleted, (System.nanoTime() - start) / 1000000, result.unchanged);
+        } catch (Exception e) {
+            Main.LOG("[ERROR]: Failed to restore %s: %s", projectDir.getAbsolutePath(), e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,409 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * A content-addressed backup store. File contents are stored once under objects/, keyed by their
+ * SHA-1 hash, and each backup run only records a manifest of the files that changed since the
+ * previous run of the same project. The store can live inside the project or be shared between
+ * projects, in which case identical files (e.g. common icons) are only stored once.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class BackupStore {
+
+    public static final String DEFAULT_FOLDER = ".polar-backup";
+    // Names incremental backups in .polar-touched and the comments of exported ZIPs
+    static final String BACKUP_NAME_PREFIX = "incremental ";
+
+    private static final String OBJECTS_FOLDER = "objects";
+    private static final String SNAPSHOTS_FOLDER = "snapshots";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String MANIFEST_HEADER = "# polar-backup-manifest 1";
+    private static final String PARENT_PREFIX = "# parent ";
+
+    private final File mRoot;
+
+    public BackupStore(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * @return The store a project is backed up to, Main.BACKUP_STORE_DIR if it's set.
+     */
+    static File storeDir(File projectDir) {
+        return Main.BACKUP_STORE_DIR != null ? Main.BACKUP_STORE_DIR : new File(projectDir, DEFAULT_FOLDER);
+    }
+
+    /**
+     * @return The name a project's snapshots are kept under in its store.
+     */
+    static String projectKey(File projectDir, String appName) {
+        // A shared store may hold several projects with the same name
+        if (Main.BACKUP_STORE_DIR != null)
+            return String.format("%s-%08x", appName.replace(" ", "_"), projectDir.getAbsolutePath().hashCode());
+        return appName.replace(" ", "_");
+    }
+
+    static class FileRecord {
+
+        final String hash;
+        final long size;
+        final long lastModified;
+
+        FileRecord(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public static class Result {
+
+        public final String snapshot;
+        public final int totalFiles;
+        public final int changedFiles;
+        public final int deletedFiles;
+        public final int storedObjects;
+        public final long storedBytes;
+
+        Result(String snapshot, int totalFiles, int changedFiles, int deletedFiles, int storedObjects, long storedBytes) {
+            this.snapshot = snapshot;
+            this.totalFiles = totalFiles;
+            this.changedFiles = changedFiles;
+            this.deletedFiles = deletedFiles;
+            this.storedObjects = storedObjects;
+            this.storedBytes = storedBytes;
+        }
+    }
+
+    /**
+     * Records the current state of a project directory, storing the contents of any new or changed files.
+     * Files whose size and modification time match the previous snapshot are not read again.
+     */
+    public Result backup(File projectDir, String projectKey) throws IOException {
+        final File snapshotDir = new File(new File(mRoot, SNAPSHOTS_FOLDER), projectKey);
+        if (!snapshotDir.exists() && !snapshotDir.mkdirs())
+            throw new IOException("Unable to create " + snapshotDir.getAbsolutePath());
+
+        final String parent = latestSnapshot(projectKey);
+        final Map<String, FileRecord> previous = parent != null ? readState(projectKey, parent) : new HashMap<>();
+        final Map<String, FileRecord> changed = new TreeMap<>();
+        final Set<String> seen = new HashSet<>();
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = BufferPool.acquire();
+        final Path root = projectDir.toPath();
+        final int[] stored = new int[1];
+        final long[] storedBytes = new long[1];
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && (ZipUtil.isExcludedFolder(dir.getFileName().toString()) ||
+                            dir.toFile().getAbsoluteFile().equals(mRoot.getAbsoluteFile())))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile() || file.getFileName().toString().endsWith("-BACKUP.zip"))
+                        return FileVisitResult.CONTINUE;
+                    final String path = ZipUtil.entryName(root, file);
+                    final long size = attrs.size();
+                    final long lastModified = attrs.lastModifiedTime().toMillis();
+                    seen.add(path);
+
+                    final FileRecord old = previous.get(path);
+                    if (old != null && old.size == size && old.lastModified == lastModified)
+                        return FileVisitResult.CONTINUE;
+
+                    final String hash = hash(file, digest, buffer);
+                    FileRecord record = new FileRecord(hash, size, lastModified);
+                    if (!objectFile(hash).exists()) {
+                        // Hashed again as it's copied, since the file may have changed in between
+                        record = storeObject(file, lastModified, digest, buffer);
+                        stored[0]++;
+                        storedBytes[0] += record.size;
+                    }
+                    changed.put(path, record);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    throw exc;
+                }
+            });
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        final List<String> deleted = new ArrayList<>();
+        for (String path : previous.keySet()) {
+            if (!seen.contains(path))
+                deleted.add(path);
+        }
+        Collections.sort(deleted);
+
+        final String snapshot = newSnapshotName(snapshotDir);
+        writeManifest(new File(snapshotDir, snapshot + MANIFEST_EXTENSION), parent, changed, deleted);
+        return new Result(snapshot, seen.size(), changed.size(), deleted.size(), stored[0], storedBytes[0]);
+    }
+
+    /**
+     * Writes a snapshot out as a ZIP file with the same layout as a regular project backup.
+     *
+     * @param snapshot The snapshot to export, or null to export the most recent one.
+     */
+    public void exportZip(String projectKey, String snapshot, File destZipFile) throws IOException {
+        if (snapshot == null)
+            snapshot = latestSnapshot(projectKey);
+        if (snapshot == null)
+            throw new FileNotFoundException("No backups have been made of " + projectKey + " yet.");
+        final Map<String, FileRecord> state = readState(projectKey, snapshot);
+        ZipUtil.ParallelZip zip = null;
+        try {
+            zip = new ZipUtil.ParallelZip(destZipFile, Runtime.getRuntime().availableProcessors(), null);
+            // Lets BackupRestore tell that the ZIP holds the backup an upgrade recorded in .polar-touched
+            zip.setComment(backupName(projectKey, snapshot));
+            for (Map.Entry<String, FileRecord> entry : state.entrySet()) {
+                final FileRecord record = entry.getValue();
+                zip.add(objectFile(record.hash).toPath(), entry.getKey(), record.size, record.lastModified);
+            }
+            zip.finish();
+        } finally {
+            Util.closeQuietely(zip);
+        }
+    }
+
+    /**
+     * @return The name a snapshot is recorded under in .polar-touched, and in the comment of the ZIP files it's exported to.
+     */
+    static String backupName(String projectKey, String snapshot) {
+        return BACKUP_NAME_PREFIX + projectKey + "/" + snapshot;
+    }
+
+    /**
+     * @return The keys of the projects that have been backed up to this store.
+     */
+    String[] projectKeys() {
+        final String[] keys = new File(mRoot, SNAPSHOTS_FOLDER).list();
+        return keys != null ? keys : new String[0];
+    }
+
+    public String latestSnapshot(String projectKey) {
+        final File[] manifests = new File(new File(mRoot, SNAPSHOTS_FOLDER), projectKey).listFiles(
+                (dir, name) -> name.endsWith(MANIFEST_EXTENSION));
+        if (manifests == null || manifests.length == 0) return null;
+        String latest = null;
+        for (File manifest : manifests) {
+            final String name = manifest.getName();
+            final String snapshot = name.substring(0, name.length() - MANIFEST_EXTENSION.length());
+            // Snapshot names are timestamps, so they sort chronologically
+            if (latest == null || snapshot.compareTo(latest) > 0)
+                latest = snapshot;
+        }
+        return latest;
+    }
+
+    /**
+     * Resolves the full state of a project at a snapshot by replaying its chain of manifests.
+     */
+    Map<String, FileRecord> readState(String projectKey, String snapshot) throws IOException {
+        final File snapshotDir = new File(new File(mRoot, SNAPSHOTS_FOLDER), projectKey);
+        final Deque<File> chain = new ArrayDeque<>();
+        String current = snapshot;
+        while (current != null) {
+            final File manifest = new File(snapshotDir, current + MANIFEST_EXTENSION);
+            if (!manifest.exists())
+                throw new FileNotFoundException("Backup manifest " + manifest.getAbsolutePath() + " is missing.");
+            chain.push(manifest);
+            current = readParent(manifest);
+        }
+
+        final Map<String, FileRecord> state = new TreeMap<>();
+        while (!chain.isEmpty()) {
+            try (BufferedReader reader = Files.newBufferedReader(chain.pop().toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    final String[] parts = line.split("\t", 4);
+                    if (parts[0].equals("-")) {
+                        state.remove(parts[1]);
+                    } else {
+                        state.put(parts[3], new FileRecord(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                    }
+                }
+            }
+        }
+        return state;
+    }
+
+    private static String readParent(File manifest) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && line.startsWith("#")) {
+                if (line.startsWith(PARENT_PREFIX))
+                    return line.substring(PARENT_PREFIX.length());
+            }
+        }
+        return null;
+    }
+
+    private static void writeManifest(File manifest, String parent, Map<String, FileRecord> changed,
+                                      List<String> deleted) throws IOException {
+        final File temp = new File(manifest.getParentFile(), manifest.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER);
+            writer.write('\n');
+            if (parent != null) {
+                writer.write(PARENT_PREFIX);
+                writer.write(parent);
+                writer.write('\n');
+            }
+            for (Map.Entry<String, FileRecord> entry : changed.entrySet()) {
+                final FileRecord record = entry.getValue();
+                writer.write(record.hash + '\t' + record.size + '\t' + record.lastModified + '\t' + entry.getKey());
+                writer.write('\n');
+            }
+            for (String path : deleted) {
+                writer.write("-\t" + path);
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String newSnapshotName(File snapshotDir) {
+        final String base = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ENGLISH).format(new Date());
+        String name = base;
+        for (int i = 1; new File(snapshotDir, name + MANIFEST_EXTENSION).exists(); i++)
+            name = base + "-" + i;
+        return name;
+    }
+
+    File objectFile(String hash) {
+        return new File(new File(new File(mRoot, OBJECTS_FOLDER), hash.substring(0, 2)), hash.substring(2));
+    }
+
+    // Copies the file into the store, hashing it on the way so the object is named after exactly what was stored
+    private FileRecord storeObject(Path file, long lastModified, MessageDigest digest, byte[] buffer) throws IOException {
+        final File objects = new File(mRoot, OBJECTS_FOLDER);
+        if (!objects.exists() && !objects.mkdirs() && !objects.exists())
+            throw new IOException("Unable to create " + objects.getAbsolutePath());
+        // Copy to a unique temporary file first so concurrent runs sharing the store never see partial objects
+        final Path temp = Files.createTempFile(objects.toPath(), "object", ".tmp");
+        try {
+            digest.reset();
+            long size = 0;
+            try (InputStream is = Files.newInputStream(file); OutputStream os = Files.newOutputStream(temp)) {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    os.write(buffer, 0, read);
+                    size += read;
+                }
+            }
+            final String hash = Util.toHex(digest.digest());
+            final File object = objectFile(hash);
+            final File folder = object.getParentFile();
+            if (!folder.exists() && !folder.mkdirs() && !folder.exists())
+                throw new IOException("Unable to create " + folder.getAbsolutePath());
+            try {
+                Files.move(temp, object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ignored) {
+                // Stored by another run sharing the store in the meantime
+            }
+            return new FileRecord(hash, size, lastModified);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String hash(Path file, MessageDigest digest, byte[] buffer) throws IOException {
+        digest.reset();
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+        return Util.toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) {
+        String snapshot = null;
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--snapshot") && i + 1 < args.length) {
+                snapshot = args[++i];
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.isEmpty() || paths.size() > 2) {
+            System.out.println("Usage: BackupStore [--snapshot <name>] <project folder> [backup zip]\n" +
+                    "Exports the latest incremental backup of the project, or the named one, as a ZIP file that\n" +
+                    "BackupRestore can restore from. It's written to <AppName>-BACKUP.zip in the project by default.");
+            System.exit(2);
+            return;
+        }
+
+        final File projectDir = new File(paths.get(0)).getAbsoluteFile();
+        final File storeDir = storeDir(projectDir);
+        final BackupStore store = new BackupStore(storeDir);
+        final String[] keys = store.projectKeys();
+        final String appName;
+        final String projectKey;
+        if (Main.BACKUP_STORE_DIR == null && keys.length == 1) {
+            // The project's own store only holds the project, which then doesn't need to be detected;
+            // it may well be too broken for that
+            appName = keys[0];
+            projectKey = keys[0];
+        } else {
+            final SilentCallback callback = new SilentCallback();
+            final UpgradeContext ctx = new UpgradeContext(projectDir, callback);
+            if (!Main.detectProject(ctx) || ctx.getAppName() == null) {
+                Main.LOG("[FAILED]: The project couldn't be detected, so its backups in %s aren't known.",
+                        storeDir.getAbsolutePath());
+                System.exit(1);
+                return;
+            }
+            appName = ctx.getAppName();
+            projectKey = projectKey(projectDir, appName);
+        }
+        final File zip = paths.size() > 1 ? new File(paths.get(1)).getAbsoluteFile() :
+                new File(projectDir, String.format("%s-BACKUP.zip", appName.replace(" ", "_")));
+        try {
+            if (snapshot == null)
+                snapshot = store.latestSnapshot(projectKey);
+            if (snapshot == null)
+                throw new FileNotFoundException("No backups have been made of " + projectKey + " in " + storeDir.getAbsolutePath() + " yet.");
+            Main.LOG("[INFO]: Exporting backup %s of %s to %s...", snapshot, projectKey, zip.getAbsolutePath());
+            final long start = System.nanoTime();
+            store.exportZip(projectKey, snapshot, zip);
+            Main.LOG("[INFO]: Exported %s in %d ms.", FileUtil.readableFileSize(zip.length()),
+                    (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            Main.LOG("[ERROR]: Failed to export the backup of %s: %s", projectDir.getAbsolutePath(), e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
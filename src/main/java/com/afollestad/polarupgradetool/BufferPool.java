@@ -0,0 +1,32 @@
+package com.afollestad.polarupgradetool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small pool of I/O buffers shared by the copy, zip, unzip and download paths that have to go
+ * through streams. Buffers are large enough to keep system calls infrequent, and are reused rather
+ * than allocated for every file.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class BufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // Enough for every copy and zip worker to hold one at a time; extra buffers are simply dropped
+    private static final ArrayBlockingQueue<byte[]> POOL =
+            new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    public static byte[] acquire() {
+        final byte[] buffer = POOL.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer != null && buffer.length == BUFFER_SIZE)
+            POOL.offer(buffer);
+    }
+
+    private BufferPool() {
+    }
+}
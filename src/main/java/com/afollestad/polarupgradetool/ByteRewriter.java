@@ -0,0 +1,188 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Replaces several byte patterns at once while streaming a file, using an Aho-Corasick automaton
+ * compiled into a transition table. Files are never decoded, so line endings and encodings come out
+ * exactly as they went in, and runs of bytes without a match are written out as they are.
+ * <p>
+ * Like String.replace, matches are found from left to right and don't overlap. Where patterns
+ * overlap, the one that ends first wins, and of those the longest.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ByteRewriter {
+
+    // Copies files as they are
+    public static final ByteRewriter NONE = new ByteRewriter(new String[0], new String[0]);
+
+    private final byte[][] mReplacements;
+    private final int[] mLengths;
+    // mNext[state * 256 + b] is the state reached by reading b in the given state
+    private final int[] mNext;
+    // Length of the input that the state represents, i.e. bytes that might still become a match
+    private final int[] mDepth;
+    // Index of the pattern that ends in the given state, or -1
+    private final int[] mMatch;
+    private final int mMaxLength;
+
+    public ByteRewriter(String pattern, String replacement) {
+        this(new String[]{pattern}, new String[]{replacement});
+    }
+
+    public ByteRewriter(String[] patterns, String[] replacements) {
+        if (patterns.length != replacements.length)
+            throw new IllegalArgumentException("Every pattern needs a replacement.");
+        final byte[][] encoded = new byte[patterns.length][];
+        mReplacements = new byte[replacements.length][];
+        mLengths = new int[patterns.length];
+        int maxLength = 0;
+        int maxStates = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            encoded[i] = patterns[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length == 0)
+                throw new IllegalArgumentException("Patterns can't be empty.");
+            mReplacements[i] = replacements[i].getBytes(StandardCharsets.UTF_8);
+            mLengths[i] = encoded[i].length;
+            maxLength = Math.max(maxLength, encoded[i].length);
+            maxStates += encoded[i].length;
+        }
+        mMaxLength = maxLength;
+
+        // Build the trie
+        final int[] next = new int[maxStates * 256];
+        Arrays.fill(next, -1);
+        final int[] depth = new int[maxStates];
+        final int[] match = new int[maxStates];
+        Arrays.fill(match, -1);
+        int states = 1;
+        for (int i = 0; i < encoded.length; i++) {
+            int state = 0;
+            for (byte b : encoded[i]) {
+                final int slot = state * 256 + (b & 0xFF);
+                if (next[slot] == -1) {
+                    depth[states] = depth[state] + 1;
+                    next[slot] = states++;
+                }
+                state = next[slot];
+            }
+            match[state] = i;
+        }
+
+        // Fill in failure transitions breadth first, turning the trie into a complete automaton
+        final int[] fail = new int[states];
+        final ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int b = 0; b < 256; b++) {
+            if (next[b] == -1) {
+                next[b] = 0;
+            } else {
+                queue.add(next[b]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            // A pattern that is a suffix of this state's input also ends here, unless a longer one does
+            if (match[state] == -1) match[state] = match[fail[state]];
+            for (int b = 0; b < 256; b++) {
+                final int slot = state * 256 + b;
+                final int target = next[slot];
+                if (target == -1) {
+                    next[slot] = next[fail[state] * 256 + b];
+                } else {
+                    fail[target] = next[fail[state] * 256 + b];
+                    queue.add(target);
+                }
+            }
+        }
+        mNext = Arrays.copyOf(next, states * 256);
+        mDepth = Arrays.copyOf(depth, states);
+        mMatch = Arrays.copyOf(match, states);
+    }
+
+    public boolean isEmpty() {
+        return mReplacements.length == 0;
+    }
+
+    /**
+     * Copies the stream, replacing every occurrence of the patterns. Neither stream is closed.
+     *
+     * @return The number of replacements made.
+     */
+    public int rewrite(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = BufferPool.acquire();
+        // Unwritten bytes from the end of the previous chunk that may be the start of a match
+        final byte[] carry = new byte[Math.max(1, mMaxLength)];
+        int carryLength = 0;
+        int state = 0;
+        int count = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                // Bytes before start have been written (or replaced); carry comes logically before start
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    state = mNext[state * 256 + (buffer[i] & 0xFF)];
+                    final int pattern = mMatch[state];
+                    if (pattern == -1) continue;
+                    // Write what comes before the match, then the replacement instead of the match
+                    final int matchLength = mLengths[pattern];
+                    int before = carryLength + (i + 1 - start) - matchLength;
+                    if (before > 0) {
+                        final int fromCarry = Math.min(before, carryLength);
+                        out.write(carry, 0, fromCarry);
+                        out.write(buffer, start, before - fromCarry);
+                    }
+                    out.write(mReplacements[pattern]);
+                    carryLength = 0;
+                    start = i + 1;
+                    state = 0;
+                    count++;
+                }
+                // Hold back only the bytes the automaton might still turn into a match
+                final int pending = carryLength + (read - start);
+                final int keep = mDepth[state];
+                int flush = pending - keep;
+                if (flush > 0) {
+                    final int fromCarry = Math.min(flush, carryLength);
+                    out.write(carry, 0, fromCarry);
+                    out.write(buffer, start, flush - fromCarry);
+                    if (fromCarry < carryLength)
+                        System.arraycopy(carry, fromCarry, carry, 0, carryLength - fromCarry);
+                    carryLength -= fromCarry;
+                    start += flush - fromCarry;
+                }
+                System.arraycopy(buffer, start, carry, carryLength, read - start);
+                carryLength += read - start;
+            }
+            out.write(carry, 0, carryLength);
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return count;
+    }
+
+    /**
+     * Rewrites data held in memory.
+     *
+     * @return The same array when nothing matched, otherwise a new one.
+     */
+    public byte[] rewrite(byte[] data) throws IOException {
+        if (isEmpty() || !contains(data)) return data;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+        rewrite(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    public boolean contains(byte[] data) {
+        int state = 0;
+        for (byte b : data) {
+            state = mNext[state * 256 + (b & 0xFF)];
+            if (mMatch[state] != -1) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,225 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers what was copied into a project on previous runs, so files whose copied output would be
+ * byte-identical to what's already there are left untouched. That keeps their modification times,
+ * which spares Gradle and AAPT from rebuilding everything after an upgrade.
+ * <p>
+ * For every destination file the index stores the size and modification time of its source and of
+ * the destination, and a hash of the copied output. When neither file changed since, nothing is read
+ * at all. Otherwise the output is produced in memory, or in a temporary file for text files larger
+ * than FileUtil's in-memory limit, and only written if its hash differs from the destination's.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class CopyIndex {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("user.home"),
+            ".polar-upgrade-tool" + File.separator + "index");
+
+    private static final String HEADER = "# polar-copy-index 1";
+    private static final String FINGERPRINT_PREFIX = "# fingerprint ";
+    // Bumped whenever the tool writes something else for the same source, e.g. when the package name
+    // is replaced differently. Development builds all have the same tool version, so that isn't enough.
+    private static final int OUTPUT_REVISION = 1;
+
+    private static class Record {
+
+        final long sourceSize;
+        final long sourceTime;
+        final long destSize;
+        final long destTime;
+        final String hash;
+
+        Record(long sourceSize, long sourceTime, long destSize, long destTime, String hash) {
+            this.sourceSize = sourceSize;
+            this.sourceTime = sourceTime;
+            this.destSize = destSize;
+            this.destTime = destTime;
+            this.hash = hash;
+        }
+    }
+
+    private final File mFile;
+    private final String mRoot;
+    private final String mFingerprint;
+    private final Map<String, Record> mRecords = new ConcurrentHashMap<>();
+    private final AtomicInteger mAvoided = new AtomicInteger();
+    private final AtomicInteger mWritten = new AtomicInteger();
+
+    private CopyIndex(File file, File projectDir, String fingerprint) {
+        mFile = file;
+        mRoot = projectDir.getAbsolutePath();
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * @return The fingerprint of the files this build of the tool copies into a project with the
+     * given package name.
+     */
+    static String fingerprint(String packageName) {
+        return String.format("%s tool=%s output=%d", packageName, RunReport.toolVersion(), OUTPUT_REVISION);
+    }
+
+    /**
+     * Loads the index of a project from the given folder. The fingerprint describes everything the
+     * copied output depends on besides the source files (e.g. the package name that gets substituted);
+     * an index written with a different fingerprint is ignored.
+     */
+    public static CopyIndex load(File dir, File projectDir, String fingerprint) {
+        final File file = new File(dir, hash(projectDir.getAbsolutePath().getBytes(StandardCharsets.UTF_8)) + ".index");
+        final CopyIndex index = new CopyIndex(file, projectDir, fingerprint);
+        if (!file.exists()) return index;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine()) || !(FINGERPRINT_PREFIX + fingerprint).equals(reader.readLine()))
+                return index;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", 6);
+                if (parts.length < 6) continue;
+                index.mRecords.put(parts[5], new Record(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            Main.LOG("[WARNING]: Ignoring unreadable copy index %s: %s", file.getAbsolutePath(), e.getMessage());
+            index.mRecords.clear();
+        }
+        return index;
+    }
+
+    public void save() throws IOException {
+        final File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists())
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        final File temp = new File(dir, mFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(FINGERPRINT_PREFIX + mFingerprint);
+            writer.write('\n');
+            for (Map.Entry<String, Record> entry : new TreeMap<>(mRecords).entrySet()) {
+                // Files deleted since they were copied don't need to be remembered
+                if (!new File(mRoot + entry.getKey()).exists()) continue;
+                final Record record = entry.getValue();
+                writer.write(String.format("%d\t%d\t%d\t%d\t%s\t%s\n", record.sourceSize, record.sourceTime,
+                        record.destSize, record.destTime, record.hash, entry.getKey()));
+            }
+        }
+        Files.move(temp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int avoidedWrites() {
+        return mAvoided.get();
+    }
+
+    public int writes() {
+        return mWritten.get();
+    }
+
+    /**
+     * Copies a file unless the destination already holds exactly what would be written.
+     *
+     * @param interceptor Rewrites the lines of text files; null for binary files, which are copied as-is.
+     * @param detach      Whether to remove the destination before writing it; see {@link FileUtil#detach(File)}.
+     * @return True if the destination was written.
+     */
+    public boolean copy(File src, File dst, FileUtil.CopyInterceptor interceptor, boolean binary, boolean detach) throws Exception {
+        final String key = dst.getAbsolutePath().startsWith(mRoot) ?
+                dst.getAbsolutePath().substring(mRoot.length()) : dst.getAbsolutePath();
+        final Record record = mRecords.get(key);
+        final long sourceSize = src.length();
+        final long sourceTime = src.lastModified();
+        final boolean destKnown = record != null && dst.isFile() &&
+                dst.length() == record.destSize && dst.lastModified() == record.destTime;
+        if (destKnown && record.sourceSize == sourceSize && record.sourceTime == sourceTime) {
+            mAvoided.incrementAndGet();
+            return false;
+        }
+
+        byte[] output = null;
+        File temp = null;
+        try {
+            final long outputSize;
+            final String hash;
+            if (binary) {
+                outputSize = sourceSize;
+                hash = hash(src);
+            } else if (sourceSize <= FileUtil.MAX_IN_MEMORY_SIZE) {
+                output = FileUtil.renderText(src, interceptor);
+                outputSize = output.length;
+                hash = hash(output);
+            } else {
+                // Rendered next to the destination and hashed on the way, so it can be moved into place
+                temp = new File(dst.getAbsolutePath() + ".tmp");
+                final MessageDigest digest = newDigest();
+                FileUtil.writeText(src, new DigestOutputStream(new FileOutputStream(temp), digest), interceptor);
+                outputSize = temp.length();
+                hash = Util.toHex(digest.digest());
+            }
+            final String destHash;
+            if (destKnown) destHash = record.hash;
+            else if (dst.isFile() && dst.length() == outputSize) destHash = hash(dst);
+            else destHash = null;
+
+            final boolean write = !hash.equals(destHash);
+            if (write) {
+                if (detach)
+                    FileUtil.detach(dst);
+                if (binary) {
+                    FileUtil.copyFileBinary(src, dst);
+                } else if (temp != null) {
+                    Files.move(temp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    try (OutputStream os = new FileOutputStream(dst)) {
+                        os.write(output);
+                    }
+                }
+                mWritten.incrementAndGet();
+            } else {
+                mAvoided.incrementAndGet();
+            }
+            mRecords.put(key, new Record(sourceSize, sourceTime, dst.length(), dst.lastModified(), hash));
+            return write;
+        } finally {
+            if (temp != null)
+                Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    static String hash(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = BufferPool.acquire();
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return Util.toHex(digest.digest());
+    }
+
+    static String hash(byte[] data) {
+        return Util.toHex(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
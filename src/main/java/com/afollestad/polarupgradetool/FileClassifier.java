@@ -0,0 +1,127 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells binary files apart from text files, so that images, fonts, archives and other assets are
+ * copied byte for byte instead of going through the text rewriting path.
+ * <p>
+ * Files are recognized by their magic bytes, or else by sniffing their first few kilobytes for
+ * NUL and other control characters. Well known extensions skip the sniff entirely, and once an
+ * unknown extension has been sniffed several times with the same outcome, that outcome is cached
+ * and used for the rest of the files with that extension.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class FileClassifier {
+
+    private static final int SNIFF_SIZE = 8 * 1024;
+    // Number of files with the same verdict needed before an extension's verdict is trusted
+    private static final int VERDICTS_TO_CACHE = 8;
+
+    private static final String[] BINARY_EXTENSIONS = {
+            "png", "jpg", "jpeg", "gif", "webp", "bmp", "ico", "ttf", "otf", "woff", "woff2",
+            "jar", "aar", "apk", "zip", "gz", "so", "dex", "class", "keystore", "jks",
+            "mp3", "ogg", "wav", "mp4", "pdf"};
+    private static final String[] TEXT_EXTENSIONS = {
+            "java", "kt", "xml", "gradle", "properties", "pro", "txt", "md", "json", "html", "css", "js"};
+
+    private static final byte[][] MAGIC = {
+            {(byte) 0x89, 'P', 'N', 'G'}, // PNG
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // JPEG
+            {'G', 'I', 'F', '8'}, // GIF
+            {'R', 'I', 'F', 'F'}, // WebP, WAV
+            {'P', 'K', 3, 4}, // ZIP, JAR, AAR, APK
+            {0x1F, (byte) 0x8B}, // GZIP
+            {0, 1, 0, 0}, // TrueType
+            {'O', 'T', 'T', 'O'}, // OpenType
+            {'w', 'O', 'F', 'F'}, // WOFF
+            {'w', 'O', 'F', '2'}, // WOFF2
+            {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE}, // Java class
+            {'d', 'e', 'x', '\n'}, // DEX
+            {0x7F, 'E', 'L', 'F'}, // Native libraries
+            {'%', 'P', 'D', 'F'}, // PDF
+            {'I', 'D', '3'}, // MP3
+            {'O', 'g', 'g', 'S'}, // OGG
+    };
+
+    // Verdicts by extension (true for binary)
+    private static final ConcurrentHashMap<String, Boolean> DECIDED = new ConcurrentHashMap<>();
+    // Consecutive identical verdicts of extensions that are still being sniffed
+    private static final ConcurrentHashMap<String, Integer> STREAKS = new ConcurrentHashMap<>();
+
+    static {
+        for (String extension : BINARY_EXTENSIONS) DECIDED.put(extension, true);
+        for (String extension : TEXT_EXTENSIONS) DECIDED.put(extension, false);
+    }
+
+    public static boolean isBinary(File file) throws IOException {
+        final String extension = extension(file.getName());
+        if (extension != null) {
+            final Boolean decided = DECIDED.get(extension);
+            if (decided != null) return decided;
+        }
+        final boolean binary = sniff(file);
+        if (extension != null) {
+            // Positive streaks count binary verdicts, negative ones text verdicts
+            final int streak = STREAKS.merge(extension, binary ? 1 : -1, (old, one) ->
+                    Integer.signum(old) == Integer.signum(one) ? old + one : one);
+            if (Math.abs(streak) >= VERDICTS_TO_CACHE) {
+                DECIDED.putIfAbsent(extension, binary);
+                STREAKS.remove(extension);
+            }
+        }
+        return binary;
+    }
+
+    static boolean sniff(File file) throws IOException {
+        final byte[] head = new byte[(int) Math.min(SNIFF_SIZE, file.length())];
+        int length = 0;
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while (length < head.length && (read = is.read(head, length, head.length - length)) != -1)
+                length += read;
+        }
+        return isBinary(head, length);
+    }
+
+    static boolean isBinary(byte[] head, int length) {
+        for (byte[] magic : MAGIC) {
+            if (startsWith(head, length, magic)) return true;
+        }
+        // UTF-16 text has lots of NULs, but is still text
+        if (length >= 2 && ((head[0] == (byte) 0xFE && head[1] == (byte) 0xFF) ||
+                (head[0] == (byte) 0xFF && head[1] == (byte) 0xFE)))
+            return false;
+        int control = 0;
+        for (int i = 0; i < length; i++) {
+            final int b = head[i] & 0xFF;
+            if (b == 0) return true;
+            // Tabs, line breaks, form feeds and escapes show up in text; other control characters don't
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1B) control++;
+        }
+        return control * 10 > length;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static String extension(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) return null;
+        return name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    private FileClassifier() {
+    }
+}
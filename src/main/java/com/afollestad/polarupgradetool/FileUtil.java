@@ -1,7 +1,9 @@
 package com.afollestad.polarupgradetool;
 
 import java.io.*;
-import java.util.Locale;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -49,25 +51,62 @@ class FileUtil {
         String onCopyLine(File file, String line);
 
         boolean loggingEnabled();
+
+        /**
+         * Rewrites the raw bytes of text files instead of onCopyLine, which keeps their line endings and
+         * encoding intact. When null, files are decoded and passed through onCopyLine line by line.
+         */
+        default ByteRewriter rewriter() {
+            return null;
+        }
     }
 
-    private static File mLastFolder;
+    // Text files larger than this are rewritten as a stream rather than in memory
+    static final long MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
 
     private static void copyFileText(File src, File dst, CopyInterceptor interceptor) throws Exception {
+        final ByteRewriter rewriter = interceptor.rewriter();
+        if (rewriter != null && src.length() <= MAX_IN_MEMORY_SIZE) {
+            // Files without a match come back as they are, and are written out without any further work
+            final byte[] output = rewriter.rewrite(Files.readAllBytes(src.toPath()));
+            try (OutputStream os = new FileOutputStream(dst)) {
+                os.write(output);
+            }
+            return;
+        }
+        writeText(src, new FileOutputStream(dst), interceptor);
+    }
+
+    // Produces exactly what copyFileText would write, without touching the destination
+    static byte[] renderText(File src, CopyInterceptor interceptor) throws Exception {
+        final ByteRewriter rewriter = interceptor.rewriter();
+        if (rewriter != null)
+            return rewriter.rewrite(Files.readAllBytes(src.toPath()));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(src.length() + 256, Integer.MAX_VALUE - 8));
+        writeText(src, out, interceptor);
+        return out.toByteArray();
+    }
+
+    // Closes the output stream when done
+    static void writeText(File src, OutputStream out, CopyInterceptor interceptor) throws Exception {
         InputStream in = null;
-        OutputStream out = null;
         BufferedReader reader = null;
         BufferedWriter writer = null;
         try {
             in = new FileInputStream(src);
+            final ByteRewriter rewriter = interceptor.rewriter();
+            if (rewriter != null) {
+                final OutputStream buffered = new BufferedOutputStream(out);
+                rewriter.rewrite(in, buffered);
+                buffered.flush();
+                return;
+            }
             reader = new BufferedReader(new InputStreamReader(in));
-            out = new FileOutputStream(dst);
             writer = new BufferedWriter(new OutputStreamWriter(out));
 
             String line;
             while ((line = reader.readLine()) != null) {
-                if (interceptor != null)
-                    line = interceptor.onCopyLine(src, line);
+                line = interceptor.onCopyLine(src, line);
                 writer.write(line);
                 writer.newLine();
             }
@@ -79,56 +118,156 @@ class FileUtil {
         }
     }
 
-    private static void copyFileBinary(File src, File dst) throws Exception {
-        InputStream in = null;
-        OutputStream out = null;
+    static void copyFileBinary(File src, File dst) throws Exception {
+        FileInputStream in = null;
+        FileOutputStream out = null;
         try {
             in = new FileInputStream(src);
             out = new FileOutputStream(dst);
-            byte[] buffer = new byte[Main.BUFFER_SIZE];
-            int read;
-            while ((read = in.read(buffer)) != -1)
-                out.write(buffer, 0, read);
+            transfer(in.getChannel(), out.getChannel());
         } finally {
             Util.closeQuietely(in);
             Util.closeQuietely(out);
         }
     }
 
-    // Checks for files in the project folder that no longer exist in the latest code
+    /**
+     * Copies the rest of a file to the sink with FileChannel.transferTo, which lets the kernel move
+     * the bytes without passing them through the Java heap where the platform supports it.
+     *
+     * @return The number of bytes copied.
+     */
+    static long transfer(FileChannel source, WritableByteChannel sink) throws IOException {
+        final long size = source.size();
+        long position = source.position();
+        final long start = position;
+        while (position < size) {
+            final long transferred = source.transferTo(position, size - position, sink);
+            if (transferred <= 0) break; // The file was truncated while it was being copied
+            position += transferred;
+        }
+        return position - start;
+    }
+
+    static void copyFile(UpgradeContext ctx, File src, File dst, CopyInterceptor interceptor) throws Exception {
+        final boolean binary = FileClassifier.isBinary(src);
+        // Files that nothing would be replaced in are copied byte for byte
+        final boolean rewrite = !binary && interceptor != null &&
+                (interceptor.rewriter() == null || !interceptor.rewriter().isEmpty());
+        final boolean detach = ctx != null && ctx.isSnapshotLinked();
+        final CopyIndex index = ctx != null ? ctx.getCopyIndex() : null;
+        final Trace.Span span = Trace.begin(rewrite ? Trace.Op.REWRITE : Trace.Op.COPY, src);
+        // Failed writes count as touched too, since the file may have been left half written
+        boolean written = true;
+        boolean failed = true;
+        try {
+            if (index != null) {
+                written = index.copy(src, dst, rewrite ? interceptor : null, !rewrite, detach);
+                failed = false;
+                return;
+            }
+            if (detach)
+                detach(dst);
+            if (!rewrite) {
+                copyFileBinary(src, dst);
+            } else {
+                copyFileText(src, dst, interceptor);
+            }
+            failed = false;
+        } finally {
+            final long size = src.length();
+            if (ctx != null) {
+                if (written)
+                    ctx.touch(dst);
+                ctx.getProgress().addDone(1, size);
+            }
+            span.end(size, failed ? Trace.CodePath.FAILED : !written ? Trace.CodePath.SKIPPED :
+                    binary ? Trace.CodePath.BINARY : Trace.CodePath.TEXT);
+        }
+    }
+
+    /**
+     * Removes a file that's about to be written, so that a snapshot hard-linked to it keeps its
+     * contents; writing through the link would change the snapshot's copy as well.
+     */
+    static void detach(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    // Checks for files in the project folder that no longer exist in the latest code, returns the number deleted
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static void checkDiff(File project, File latest, SkipInterceptor interceptor) {
+    public static int checkDiff(UpgradeContext ctx, File project, File latest, SkipInterceptor interceptor) {
         if (interceptor.skip(project))
-            return;
+            return 0;
+        int deleted = 0;
         if (project.exists() && !latest.exists()) {
-            Main.LOG("[DELETE]: %s no longer exists in the latest code, deleting...", Main.cleanupPath(project.getAbsolutePath()));
+            Main.LOG("[DELETE]: %s no longer exists in the latest code, deleting...", ctx.cleanupPath(project.getAbsolutePath()));
+            ctx.touch(project);
+            final Trace.Span span = Trace.begin(Trace.Op.DELETE, project);
+            final long size = project.length();
             if (project.isDirectory()) {
                 wipe(project);
             } else {
                 project.delete();
             }
+            span.end(size, project.exists() ? Trace.CodePath.FAILED : null);
+            deleted++;
         } else if (project.isDirectory()) {
             String files[] = project.list();
             for (String file : files) {
                 File srcFile = new File(project, file);
                 File destFile = new File(latest, file);
-                checkDiff(srcFile, destFile, interceptor);
+                deleted += checkDiff(ctx, srcFile, destFile, interceptor);
             }
         }
+        return deleted;
+    }
+
+    /**
+     * Copies a file or folder, rewriting the raw bytes of text files with the interceptor's rewriter, or
+     * passing them through onCopyLine line by line when it has none. Folders are copied by several
+     * threads when Main.COPY_PARALLELISM is above 1, in which case the interceptor is called
+     * concurrently and must be thread-safe.
+     */
+    public static boolean copyFolder(UpgradeContext ctx, File source, File destination, CopyInterceptor interceptor) {
+        if (Main.COPY_PARALLELISM > 1 && source.isDirectory())
+            return ParallelCopy.copyFolder(ctx, source, destination, interceptor);
+        final long[] totals = new long[2];
+        countFiles(source, interceptor, totals);
+        ctx.getProgress().addTotal(totals[0], totals[1]);
+        return copyFolderSerial(ctx, source, destination, interceptor);
+    }
+
+    // Adds up the number and size of the files copyFolderSerial would copy
+    private static void countFiles(File source, CopyInterceptor interceptor, long[] totals) {
+        if (interceptor != null && interceptor.skip(source))
+            return;
+        final File[] files = source.listFiles();
+        if (files == null) {
+            if (source.isFile()) {
+                totals[0]++;
+                totals[1] += source.length();
+            }
+            return;
+        }
+        for (File file : files)
+            countFiles(file, interceptor, totals);
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static boolean copyFolder(File source, File destination, CopyInterceptor interceptor) {
+    static boolean copyFolderSerial(UpgradeContext ctx, File source, File destination, CopyInterceptor interceptor) {
         if (interceptor != null && interceptor.skip(source)) {
             if (interceptor.loggingEnabled())
-                Main.LOG("[INFO]: Ignored %s", Main.cleanupPath(source.getAbsolutePath()));
+                Main.LOG("[INFO]: Ignored %s", ctx.cleanupPath(source.getAbsolutePath()));
+            ctx.getProgress().addSkipped(1);
+            Trace.begin(Trace.Op.COPY, source).end(0, Trace.CodePath.SKIPPED);
             return true;
         }
 
         if (source.isDirectory() && (interceptor == null || interceptor.loggingEnabled())) {
-            if (mLastFolder == null || !mLastFolder.getAbsolutePath().equals(source.getAbsolutePath()))
-                Main.LOG("%s -> %s", Main.cleanupPath(source.getAbsolutePath()), Main.cleanupPath(destination.getAbsolutePath()));
-            mLastFolder = source;
+            if (ctx.lastFolder == null || !ctx.lastFolder.getAbsolutePath().equals(source.getAbsolutePath()))
+                Main.DEBUG("%s -> %s", ctx.cleanupPath(source.getAbsolutePath()), ctx.cleanupPath(destination.getAbsolutePath()));
+            ctx.lastFolder = source;
         }
         if (source.isDirectory()) {
             if (!destination.exists())
@@ -137,18 +276,13 @@ class FileUtil {
             for (String file : files) {
                 File srcFile = new File(source, file);
                 File destFile = new File(destination, file);
-                if (!copyFolder(srcFile, destFile, interceptor))
+                if (!copyFolderSerial(ctx, srcFile, destFile, interceptor))
                     return false;
             }
             return true;
         } else {
             try {
-                final String name = source.getName().toLowerCase(Locale.getDefault());
-                if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
-                    copyFileBinary(source, destination);
-                } else {
-                    copyFileText(source, destination, interceptor);
-                }
+                copyFile(ctx, source, destination, interceptor);
             } catch (Exception e) {
                 Main.LOG("[ERROR]: An error occurred while copying files: %s", e.getMessage());
                 return false;
@@ -0,0 +1,119 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Upgrades several projects at once. Polar's latest code is downloaded and extracted a single time,
+ * and the extracted tree is shared by all of the upgrades, which run on a bounded pool of threads.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class FleetUpgrade {
+
+    public static class Result {
+
+        public final File project;
+        public final boolean success;
+        public final String error;
+
+        Result(File project, boolean success, String error) {
+            this.project = project;
+            this.success = success;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param projects    The root folders of the projects to upgrade.
+     * @param parallelism The maximum number of projects upgraded at the same time.
+     * @param workDir     Where Polar's latest code is downloaded and extracted to; it's removed afterwards.
+     */
+    public static List<Result> upgradeAll(List<File> projects, int parallelism, File workDir) {
+        final List<Result> results = new ArrayList<>(projects.size());
+        final SilentCallback downloadCallback = new SilentCallback();
+        final UpgradeContext downloadCtx = new UpgradeContext(workDir, downloadCallback);
+        if (!Main.downloadArchive(downloadCtx, workDir)) {
+            for (File project : projects)
+                results.add(new Result(project, false, downloadCallback.getError()));
+            return results;
+        }
+        final File latestDir = downloadCtx.getExtractedRoot();
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, projects.size())));
+        try {
+            final List<Future<Result>> futures = new ArrayList<>(projects.size());
+            for (File project : projects) {
+                futures.add(pool.submit(() -> {
+                    Main.LOG_PREFIX.set("[" + project.getName() + "] ");
+                    try {
+                        final SilentCallback callback = new SilentCallback();
+                        final UpgradeContext ctx = new UpgradeContext(project, callback).setSharedUpstream(latestDir);
+                        final boolean success = Main.upgrade(ctx);
+                        return new Result(project, success, callback.getError());
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        return new Result(project, false, t.toString());
+                    } finally {
+                        Main.LOG_PREFIX.remove();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(new Result(projects.get(i), false, "Interrupted"));
+                } catch (ExecutionException e) {
+                    results.add(new Result(projects.get(i), false, e.getCause().toString()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            FileUtil.wipe(new File(workDir, "PolarLatest"));
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        final List<File> projects = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else {
+                projects.add(new File(args[i]).getAbsoluteFile());
+            }
+        }
+        if (projects.isEmpty()) {
+            System.out.println("Usage: FleetUpgrade [-j <parallel upgrades>] <project folder>...");
+            System.exit(2);
+            return;
+        }
+
+        final File workDir = Files.createTempDirectory("polar-fleet").toFile();
+        final List<Result> results = upgradeAll(projects, parallelism, workDir);
+        FileUtil.wipe(workDir);
+
+        int failed = 0;
+        Main.PRINT("\n--------------------------------------\n");
+        for (Result result : results) {
+            if (result.success) {
+                Main.LOG("[UPGRADED]: %s", result.project.getAbsolutePath());
+            } else {
+                failed++;
+                Main.LOG("[FAILED]: %s: %s", result.project.getAbsolutePath(), result.error);
+            }
+        }
+        Main.PRINT(String.format("%d of %d projects upgraded.\n", results.size() - failed, results.size()));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
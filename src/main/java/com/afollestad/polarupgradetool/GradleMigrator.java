@@ -12,12 +12,14 @@ public class GradleMigrator {
 
     private final File mProject;
     private final File mLatest;
+    private final UpgradeContext ctx;
     private final UICallback uiCallback;
 
-    public GradleMigrator(File project, File latest, UICallback uiCallback) {
+    public GradleMigrator(UpgradeContext ctx, File project, File latest) {
         mProject = project;
         mLatest = latest;
-        this.uiCallback = uiCallback;
+        this.ctx = ctx;
+        this.uiCallback = ctx.getUiCallback();
     }
 
     private String processLineProperty(String propertyName, String line, String propertyValue) {
@@ -26,8 +28,8 @@ public class GradleMigrator {
         return String.format("        %s %s", propertyName, propertyValue);
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    public boolean process() {
+    // The latest build.gradle's lines, with the project's info put in
+    private ArrayList<String> migratedLines() throws IOException {
         final ArrayList<String> lines = new ArrayList<>();
         InputStream is = null;
         BufferedReader reader = null;
@@ -39,22 +41,47 @@ public class GradleMigrator {
 
             while ((line = reader.readLine()) != null) {
                 line = line.replace("output.outputFile.parent, \"MyPolarPack-${variant.versionName}.apk\")",
-                        "output.outputFile.parent, \"" + Main.USER_APPNAME + "-${variant.versionName}.apk\")");
-                line = processLineProperty("applicationId", line, "\"" + Main.USER_PACKAGE + "\"");
-                line = processLineProperty("versionName", line, "\"" + Main.USER_VERSION_NAME + "\"");
-                line = processLineProperty("versionCode", line, Main.USER_VERSION_CODE);
+                        "output.outputFile.parent, \"" + ctx.getAppName() + "-${variant.versionName}.apk\")");
+                line = processLineProperty("applicationId", line, "\"" + ctx.getPackage() + "\"");
+                line = processLineProperty("versionName", line, "\"" + ctx.getVersionName() + "\"");
+                line = processLineProperty("versionCode", line, ctx.getVersionCode());
                 lines.add(line);
             }
-        } catch (Exception e) {
-            Main.LOG("[ERROR]: Failed to migrate a Gradle file: %s", e.getMessage());
-            if (uiCallback != null) uiCallback.onErrorOccurred("Failed to migrate Gradle file:\n" + e.getMessage());
-            e.printStackTrace();
-            return false;
         } finally {
             Util.closeQuietely(reader);
             Util.closeQuietely(is);
         }
+        return lines;
+    }
+
+    /**
+     * @return Exactly what {@link #process()} would write to the project's build.gradle, without writing it.
+     */
+    byte[] render() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        final ArrayList<String> lines = migratedLines();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) writer.newLine();
+            writer.write(lines.get(i));
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public boolean process() {
+        final ArrayList<String> lines;
+        try {
+            lines = migratedLines();
+        } catch (Exception e) {
+            Main.ERROR(uiCallback, "Failed to migrate a Gradle file: %s", e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
 
+        ctx.getProgress().addTotal(1, 0);
+        ctx.touch(mProject);
         mProject.delete();
         OutputStream os = null;
         BufferedWriter writer = null;
@@ -68,8 +95,7 @@ public class GradleMigrator {
                 writer.write(lines.get(i));
             }
         } catch (Exception e) {
-            Main.LOG("[ERROR]: Failed to migrate a Gradle file: %s", e.getMessage());
-            if (uiCallback != null) uiCallback.onErrorOccurred("Failed to migrate Gradle file:\n" + e.getMessage());
+            Main.ERROR(uiCallback, "Failed to migrate a Gradle file: %s", e.getMessage());
             e.printStackTrace();
             return false;
         } finally {
@@ -77,9 +103,8 @@ public class GradleMigrator {
             Util.closeQuietely(os);
         }
 
-        Main.LOG("[INFO]: Migrated Gradle file %s", Main.cleanupPath(mProject.getAbsolutePath()));
-        if (uiCallback != null)
-            uiCallback.onStatusUpdate("Migrated Gradle file: " + Main.cleanupPath(mProject.getAbsolutePath()));
+        ctx.getProgress().addDone(1, mProject.length());
+        Main.STATUS(uiCallback, "Migrated Gradle file: %s", ctx.cleanupPath(mProject.getAbsolutePath()));
         return true;
     }
 }
\ No newline at end of file
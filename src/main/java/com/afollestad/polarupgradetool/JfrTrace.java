@@ -0,0 +1,170 @@
+package com.afollestad.polarupgradetool;
+
+import jdk.jfr.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * The Flight Recorder events behind {@link Trace}. This is the only class that uses jdk.jfr, and it's
+ * only loaded by Trace once Flight Recorder is known to be there.
+ * <p>
+ * Whether a recording is running is tracked by a listener rather than asked for on every file, since
+ * asking would start Flight Recorder itself in a JVM that isn't recording.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class JfrTrace implements Trace.Backend, FlightRecorderListener {
+
+    @Category({"Polar", "Upgrade"})
+    @StackTrace(false)
+    abstract static class FileEvent extends Event implements Trace.Span {
+
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Code Path")
+        @Description("How the file was handled: binary, text, skipped, stored, deflated or failed")
+        String codePath;
+
+        @Override
+        public void end(long size, Trace.CodePath path) {
+            end();
+            if (shouldCommit()) {
+                this.size = size;
+                this.codePath = path != null ? path.name().toLowerCase(Locale.ENGLISH) : null;
+                commit();
+            }
+        }
+    }
+
+    @Name("polar.FileCopy")
+    @Label("File Copy")
+    @Description("A file copied from Polar's latest code into the project, byte for byte")
+    static class FileCopy extends FileEvent {
+    }
+
+    @Name("polar.FileRewrite")
+    @Label("File Rewrite")
+    @Description("A text file copied into the project with Polar's package name replaced")
+    static class FileRewrite extends FileEvent {
+    }
+
+    @Name("polar.FileDelete")
+    @Label("File Delete")
+    @Description("A file or folder deleted from the project because it's gone from Polar's latest code")
+    static class FileDelete extends FileEvent {
+    }
+
+    @Name("polar.ZipEntry")
+    @Label("Zip Entry")
+    @Description("A file read and compressed into the backup ZIP")
+    static class ZipEntry extends FileEvent {
+    }
+
+    @Name("polar.UnzipEntry")
+    @Label("Unzip Entry")
+    @Description("A file extracted from Polar's latest code")
+    static class UnzipEntry extends FileEvent {
+    }
+
+    @Name("polar.XmlMigration")
+    @Label("XML Migration")
+    @Description("The project's values of an XML resource file merged into its latest version")
+    static class XmlMigration extends FileEvent {
+    }
+
+    private volatile boolean mRunning;
+    // Started by startRecording(), when Main.JFR_RECORDING is set
+    private Recording mRecording;
+    private Path mDestination;
+
+    public JfrTrace() {
+        FlightRecorder.addListener(this);
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+    }
+
+    @Override
+    public void recordingStateChanged(Recording recording) {
+        update(FlightRecorder.getFlightRecorder());
+    }
+
+    private void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            if (recording.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        mRunning = running;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRunning;
+    }
+
+    @Override
+    public Trace.Span begin(Trace.Op op, String path) {
+        final FileEvent event;
+        switch (op) {
+            case REWRITE:
+                event = new FileRewrite();
+                break;
+            case DELETE:
+                event = new FileDelete();
+                break;
+            case ZIP_ENTRY:
+                event = new ZipEntry();
+                break;
+            case UNZIP_ENTRY:
+                event = new UnzipEntry();
+                break;
+            case XML_MIGRATION:
+                event = new XmlMigration();
+                break;
+            default:
+                event = new FileCopy();
+                break;
+        }
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void startRecording(File destination) throws Exception {
+        if (mRecording != null) return;
+        // The default settings, plus every event of the tool however short it is
+        final Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.enable(FileCopy.class).withoutThreshold();
+        recording.enable(FileRewrite.class).withoutThreshold();
+        recording.enable(FileDelete.class).withoutThreshold();
+        recording.enable(ZipEntry.class).withoutThreshold();
+        recording.enable(UnzipEntry.class).withoutThreshold();
+        recording.enable(XmlMigration.class).withoutThreshold();
+        recording.setName("Polar upgrade");
+        // Dumped after every upgrade instead of being given a destination, which would be written to
+        // again at exit with every event in it a second time
+        mDestination = destination.toPath();
+        recording.start();
+        mRecording = recording;
+        Main.LOG("[INFO]: Recording Flight Recorder events to %s", destination.getAbsolutePath());
+    }
+
+    @Override
+    public void dumpRecording() throws Exception {
+        if (mRecording != null)
+            mRecording.dump(mDestination);
+    }
+}
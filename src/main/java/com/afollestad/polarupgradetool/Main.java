@@ -3,6 +3,7 @@ package com.afollestad.polarupgradetool;
 import com.afollestad.polarupgradetool.jfx.UICallback;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
@@ -10,198 +11,299 @@ import java.util.HashMap;
  */
 public class Main extends MainBase {
 
-    public static String USER_PACKAGE;
-    public static String USER_VERSION_NAME;
-    public static String USER_VERSION_CODE;
-    public static String USER_APPNAME;
+    final static String LICENSING_MODULE_ROOT = File.separator + "licensing";
+    final static String GRADLE_FILE_PATH = File.separator + "app" + File.separator + "build.gradle";
+    final static String MAIN_FOLDER = File.separator + "app" + File.separator + "src" + File.separator + "main";
+    final static String JAVA_FOLDER_PATH = MAIN_FOLDER + File.separator + "java";
+    final static String RES_FOLDER_PATH = MAIN_FOLDER + File.separator + "res";
+    final static String VALUES_FOLDER_PATH = MAIN_FOLDER + File.separator + "res" + File.separator + "values";
+    final static String MANIFEST_FILE_PATH = MAIN_FOLDER + File.separator + "AndroidManifest.xml";
 
-    private final static String LICENSING_MODULE_ROOT = File.separator + "licensing";
-    private final static String GRADLE_FILE_PATH = File.separator + "app" + File.separator + "build.gradle";
-    private final static String MAIN_FOLDER = File.separator + "app" + File.separator + "src" + File.separator + "main";
-    private final static String JAVA_FOLDER_PATH = MAIN_FOLDER + File.separator + "java";
-    private final static String RES_FOLDER_PATH = MAIN_FOLDER + File.separator + "res";
-    private final static String VALUES_FOLDER_PATH = MAIN_FOLDER + File.separator + "res" + File.separator + "values";
-    private final static String MANIFEST_FILE_PATH = MAIN_FOLDER + File.separator + "AndroidManifest.xml";
+    public static boolean upgrade(String projectPath, UICallback uiCallback) {
+        return upgrade(new UpgradeContext(new File(projectPath), uiCallback));
+    }
+
+    public static boolean upgrade(UpgradeContext ctx) {
+        final long startedAt = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        boolean success = false;
+        Trace.startRecording();
+        ctx.getProgress().start(progressSink(ctx.getUiCallback()), PROGRESS_INTERVAL);
+        try {
+            success = runUpgrade(ctx);
+            return success;
+        } finally {
+            // Ends the phase a failed upgrade stopped in, so it's timed too
+            ctx.endPhase();
+            ctx.getProgress().stop();
+            // Also when the upgrade failed part of the way, which is when a restore is needed most
+            BackupRestore.saveTouched(ctx);
+            if (REPORT && ctx.getAppName() != null)
+                new RunReport(ctx, success, startedAt, System.nanoTime() - start).write(REPORT_PROMETHEUS);
+            Trace.dumpRecording();
+            FLUSH_LOG();
+        }
+    }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static void upgrade(String projectPath, UICallback uiCallback) {
-        //CURRENT_DIR = new File(System.getProperty("user.dir"));
-        CURRENT_DIR = new File(projectPath);
-        System.out.println("\n--------------------------------------\n" +
+    private static boolean runUpgrade(UpgradeContext ctx) {
+        final File projectDir = ctx.getProjectDir();
+        final UICallback uiCallback = ctx.getUiCallback();
+        PRINT("\n--------------------------------------\n" +
                 "| Welcome to the Polar upgrade tool! |\n" +
-                "--------------------------------------");
+                "--------------------------------------\n");
 
-        // Use app/build.gradle and /res/values/strings.xml to load info about icon pack
-        File gradleFile = new File(CURRENT_DIR, GRADLE_FILE_PATH);
-        AttributeExtractor gradleExtractor = new AttributeExtractor(gradleFile,
-                new String[]{"applicationId", "versionName", "versionCode"}, AttributeExtractor.MODE_GRADLE, uiCallback);
-        XmlElementExtractor stringsExtractor = new XmlElementExtractor(new File(CURRENT_DIR,
-                String.format("%s%s%s%s%s", RES_FOLDER_PATH, File.separator, "values", File.separator, "strings.xml")),
-                new String[]{"string"}, new String[]{"app_name"}, uiCallback);
-        HashMap<String, String> gradleAttrs = gradleExtractor.find();
-        if (gradleAttrs == null) return;
-        HashMap<String, String> stringsAttrs = stringsExtractor.find();
-        if (stringsAttrs == null) return;
+        ctx.beginPhase(UpgradeContext.Phase.DETECT);
+        if (!detectProject(ctx)) return false;
 
-        USER_APPNAME = stringsAttrs.get("app_name");
-        USER_PACKAGE = gradleAttrs.get("applicationId");
-        USER_VERSION_NAME = gradleAttrs.get("versionName");
-        USER_VERSION_CODE = gradleAttrs.get("versionCode");
-        LOG("[DETECTED]: app_name = %s, applicationId = %s, versionName = %s, versionCode = %s",
-                USER_APPNAME, USER_PACKAGE, USER_VERSION_NAME, USER_VERSION_CODE);
-        uiCallback.onProjectDetected(USER_APPNAME, USER_PACKAGE, USER_VERSION_NAME, USER_VERSION_CODE);
-
-        final File projectBackup = new File(CURRENT_DIR,
-                String.format("%s-BACKUP.zip", USER_APPNAME.replace(" ", "_")));
-        if (projectBackup.exists())
-            projectBackup.delete();
-        LOG("[INFO]: Backing up your existing project to %s...", Main.cleanupPath(projectBackup.getAbsolutePath()));
-        uiCallback.onStatusUpdate(String.format("Backing up your existing project to %s...", Main.cleanupPath(projectBackup.getAbsolutePath())));
-        try {
-            ZipUtil.writeZipFile(CURRENT_DIR, projectBackup);
-        } catch (Exception e) {
-            e.printStackTrace();
-            LOG("[ERROR]: Failed to make a backup of your project: %s", e.getMessage());
-            uiCallback.onErrorOccurred("Failed to make a backup of your project! " + e.getMessage());
-            return;
-        }
-        uiCallback.onStatusUpdate("Project backed up successfully!");
+        ctx.beginPhase(UpgradeContext.Phase.BACKUP);
+        if (!backupProject(ctx)) return false;
 
-        // Download latest code
-        if (!downloadArchive(uiCallback)) return;
+        // Download latest code, unless a shared copy was provided
+        if (!ctx.isUpstreamShared() && !downloadArchive(ctx, projectDir)) return false;
+        final File latestDir = ctx.getExtractedRoot();
+        final ByteRewriter packageRewriter = new ByteRewriter("com.afollestad.polar", ctx.getPackage());
+        if (SKIP_IDENTICAL)
+            ctx.setCopyIndex(CopyIndex.load(COPY_INDEX_DIR, projectDir, CopyIndex.fingerprint(ctx.getPackage())));
 
         // Copy manifest
-        File source = new File(EXTRACTED_ZIP_ROOT, MANIFEST_FILE_PATH);
-        File dest = new File(CURRENT_DIR, MANIFEST_FILE_PATH);
-        LOG("[INFO]: Migrating AndroidManifest.xml...");
-        uiCallback.onStatusUpdate("Migrating AndroidManifest.xml...");
+        ctx.beginPhase(UpgradeContext.Phase.MANIFEST);
+        File source = new File(latestDir, MANIFEST_FILE_PATH);
+        File dest = new File(projectDir, MANIFEST_FILE_PATH);
+        STATUS(uiCallback, "Migrating AndroidManifest.xml...");
 
-        FileUtil.copyFolder(source, dest, new FileUtil.CopyInterceptor() {
-            @Override
-            public String onCopyLine(File file, String line) {
-                return line.replace("com.afollestad.polar", USER_PACKAGE);
-            }
-
-            @Override
-            public boolean skip(File file) {
-                return isBlacklisted(file);
-            }
-
-            @Override
-            public boolean loggingEnabled() {
-                return false;
-            }
-        });
+        FileUtil.copyFolder(ctx, source, dest, packageInterceptor(ctx, packageRewriter, false));
 
         // Copy build.gradle
-        source = new File(CURRENT_DIR, GRADLE_FILE_PATH);
-        dest = new File(EXTRACTED_ZIP_ROOT, GRADLE_FILE_PATH);
-        GradleMigrator gradleMigrator = new GradleMigrator(source, dest, uiCallback);
-        if (!gradleMigrator.process()) return;
+        ctx.beginPhase(UpgradeContext.Phase.GRADLE);
+        source = new File(projectDir, GRADLE_FILE_PATH);
+        dest = new File(latestDir, GRADLE_FILE_PATH);
+        GradleMigrator gradleMigrator = new GradleMigrator(ctx, source, dest);
+        if (!gradleMigrator.process()) return false;
 
         // Copy licensing module
-        LOG("[INFO]: Migrating the licensing module...");
-        uiCallback.onStatusUpdate("Migrating the licensing module...");
-        source = new File(EXTRACTED_ZIP_ROOT, LICENSING_MODULE_ROOT);
-        dest = new File(CURRENT_DIR, LICENSING_MODULE_ROOT);
-        FileUtil.copyFolder(source, dest, new FileUtil.CopyInterceptor() {
-            @Override
-            public String onCopyLine(File file, String line) {
-                return line;
-            }
-
-            @Override
-            public boolean skip(File file) {
-                return false;
-            }
-
-            @Override
-            public boolean loggingEnabled() {
-                return false;
-            }
-        });
+        ctx.beginPhase(UpgradeContext.Phase.LICENSING);
+        STATUS(uiCallback, "Migrating the licensing module...");
+        source = new File(latestDir, LICENSING_MODULE_ROOT);
+        dest = new File(projectDir, LICENSING_MODULE_ROOT);
+        FileUtil.copyFolder(ctx, source, dest, VERBATIM_INTERCEPTOR);
 
-        System.out.println();
+        PRINT("\n");
 
         // Check for Java files that no longer exist in the latest code
-        source = new File(EXTRACTED_ZIP_ROOT, JAVA_FOLDER_PATH);
+        ctx.beginPhase(UpgradeContext.Phase.JAVA_COPY);
+        source = new File(latestDir, JAVA_FOLDER_PATH);
         source = Util.skipPackage(source);
-        dest = new File(CURRENT_DIR, JAVA_FOLDER_PATH);
+        dest = new File(projectDir, JAVA_FOLDER_PATH);
         dest = Util.skipPackage(dest);
-        FileUtil.checkDiff(dest, source, Main::isBlacklisted);
+        RunReport.StepTimer step = ctx.beginStep("checkDiff");
+        step.end(FileUtil.checkDiff(ctx, dest, source, Main::isBlacklisted), 0);
         // Copy Java files
-        FileUtil.copyFolder(source, dest, new FileUtil.CopyInterceptor() {
-            @Override
-            public String onCopyLine(File file, String line) {
-                return line.replace("com.afollestad.polar", USER_PACKAGE);
-            }
-
-            @Override
-            public boolean skip(File file) {
-                return isBlacklisted(file);
-            }
-
-            @Override
-            public boolean loggingEnabled() {
-                return true;
-            }
-        });
+        step = ctx.beginStep("copy");
+        FileUtil.copyFolder(ctx, source, dest, packageInterceptor(ctx, packageRewriter, true));
+        step.end();
 
         // If changelog.xml is still used, rename it to dev_changelog.xml before migrating.
-        source = new File(CURRENT_DIR, VALUES_FOLDER_PATH);
+        ctx.beginPhase(UpgradeContext.Phase.RES_COPY);
+        step = ctx.beginStep("renames");
+        int renamed = 0;
+        source = new File(projectDir, VALUES_FOLDER_PATH);
         source = new File(source, "changelog.xml");
         if (source.exists()) {
-            dest = new File(CURRENT_DIR, VALUES_FOLDER_PATH);
+            dest = new File(projectDir, VALUES_FOLDER_PATH);
             dest = new File(dest, "dev_changelog.xml");
             if (!dest.exists()) {
-                LOG("[RENAMING]: %s -> %s", cleanupPath(source.getAbsolutePath()), cleanupPath(dest.getAbsolutePath()));
-                uiCallback.onStatusUpdate(String.format("Renaming %s -> %s", cleanupPath(source.getAbsolutePath()), cleanupPath(dest.getAbsolutePath())));
-
-                if (!source.renameTo(dest)) {
-                    LOG("[ERROR]: Unable to rename %s", cleanupPath(source.getAbsolutePath()));
-                    uiCallback.onErrorOccurred("Unable to rename: " + cleanupPath(source.getAbsolutePath()));
+                STATUS(uiCallback, "Renaming %s -> %s", ctx.cleanupPath(source.getAbsolutePath()), ctx.cleanupPath(dest.getAbsolutePath()));
+                ctx.touch(source);
+                ctx.touch(dest);
+
+                if (source.renameTo(dest)) {
+                    renamed++;
+                } else {
+                    ERROR(uiCallback, "Unable to rename %s", ctx.cleanupPath(source.getAbsolutePath()));
                 }
             } else {
-                source.delete();
+                ctx.touch(source);
+                if (source.delete()) renamed++;
             }
         } else {
-            LOG("[INFO] changelog.xml file wasn't found (in %s), assuming dev_changelog.xml is used already.",
-                    cleanupPath(source.getParent()));
-            uiCallback.onStatusUpdate(String.format("changelog.xml file wasn't found (in %s), assuming dev_changelog.xml is used already.",
-                    cleanupPath(source.getParent())));
+            STATUS(uiCallback, "changelog.xml file wasn't found (in %s), assuming dev_changelog.xml is used already.",
+                    ctx.cleanupPath(source.getParent()));
         }
 
         // If dev_options is still used, rename it to dev_customization before migrating.
-        source = new File(CURRENT_DIR, VALUES_FOLDER_PATH);
+        source = new File(projectDir, VALUES_FOLDER_PATH);
         source = new File(source, "dev_options.xml");
         if (source.exists()) {
-            dest = new File(CURRENT_DIR, VALUES_FOLDER_PATH);
+            dest = new File(projectDir, VALUES_FOLDER_PATH);
             dest = new File(dest, "dev_customization.xml");
             if (!dest.exists()) {
-                LOG("[RENAMING]: %s -> %s", cleanupPath(source.getAbsolutePath()), cleanupPath(dest.getAbsolutePath()));
-                uiCallback.onStatusUpdate("Renaming " + cleanupPath(source.getAbsolutePath()) + " -> " + cleanupPath(dest.getAbsolutePath()));
-                if (!source.renameTo(dest)) {
-                    LOG("[ERROR]: Unable to rename %s", cleanupPath(source.getAbsolutePath()));
-                    uiCallback.onErrorOccurred("Unable to rename " + cleanupPath(source.getAbsolutePath()));
+                STATUS(uiCallback, "Renaming %s -> %s", ctx.cleanupPath(source.getAbsolutePath()), ctx.cleanupPath(dest.getAbsolutePath()));
+                ctx.touch(source);
+                ctx.touch(dest);
+                if (source.renameTo(dest)) {
+                    renamed++;
+                } else {
+                    ERROR(uiCallback, "Unable to rename %s", ctx.cleanupPath(source.getAbsolutePath()));
                 }
             } else {
-                source.delete();
+                ctx.touch(source);
+                if (source.delete()) renamed++;
             }
         } else {
-            LOG("[INFO] dev_options.xml file wasn't found (in %s), assuming dev_customization.xml is used already.",
-                    cleanupPath(source.getParent()));
-            uiCallback.onStatusUpdate("dev_options.xml file wasn't found (in" + cleanupPath(source.getParent()) + "), assuming dev_customization.xml is used already.");
+            STATUS(uiCallback, "dev_options.xml file wasn't found (in %s), assuming dev_customization.xml is used already.",
+                    ctx.cleanupPath(source.getParent()));
         }
 
+        step.end(renamed, 0);
+
         // Check for resource files that were deleted from the latest code
-        source = new File(EXTRACTED_ZIP_ROOT, RES_FOLDER_PATH);
-        dest = new File(CURRENT_DIR, RES_FOLDER_PATH);
-        FileUtil.checkDiff(dest, source, Main::isBlacklisted);
+        source = new File(latestDir, RES_FOLDER_PATH);
+        dest = new File(projectDir, RES_FOLDER_PATH);
+        step = ctx.beginStep("checkDiff");
+        step.end(FileUtil.checkDiff(ctx, dest, source, Main::isBlacklisted), 0);
         // Copy resource files, minus blacklisted files
-        FileUtil.copyFolder(source, dest, new FileUtil.CopyInterceptor() {
+        step = ctx.beginStep("copy");
+        FileUtil.copyFolder(ctx, source, dest, packageInterceptor(ctx, packageRewriter, true));
+        step.end();
+
+        // Migrate the files ignored during direct copy
+        ctx.beginPhase(UpgradeContext.Phase.XML_MIGRATION);
+        File projectValues = new File(new File(projectDir, RES_FOLDER_PATH), "values");
+        File latestValues = new File(new File(latestDir, RES_FOLDER_PATH), "values");
+        File projectChangelog = new File(projectValues, "dev_changelog.xml");
+        File latestChangelog = new File(latestValues, "dev_changelog.xml");
+        if (!projectChangelog.exists())
+            FileUtil.copyFolder(ctx, latestChangelog, projectChangelog, null);
+
+        // The files are independent of each other, so they're migrated at the same time
+        ParallelMigration migration = new ParallelMigration(ctx)
+                .add(new File(projectValues, "strings.xml"), new File(latestValues, "strings.xml"))
+                .add(new File(projectValues, "dev_about.xml"), new File(latestValues, "dev_about.xml"))
+                .add(projectChangelog, latestChangelog)
+                .add(new File(projectValues, "dev_customization.xml"), new File(latestValues, "dev_customization.xml"))
+                .add(new File(projectValues, "dev_theming.xml"), new File(latestValues, "dev_theming.xml"));
+        if (!migration.process()) return false;
+
+        if (ctx.getCopyIndex() != null) {
+            LOG("[INFO]: Wrote %d files, left %d identical files untouched.",
+                    ctx.getCopyIndex().writes(), ctx.getCopyIndex().avoidedWrites());
+            try {
+                ctx.getCopyIndex().save();
+            } catch (IOException e) {
+                LOG("[WARNING]: Failed to save the copy index: %s", e.getMessage());
+            }
+        }
+        ctx.endPhase();
+
+        PRINT("\n");
+        STATUS(uiCallback, "Upgrade is complete for %s!", ctx.getAppName());
+        if (!ctx.isUpstreamShared())
+            latestDir.delete();
+        uiCallback.onUpdateSuccessful();
+        return true;
+    }
+
+    /**
+     * Reads the icon pack's name, package and version from app/build.gradle and strings.xml into the context.
+     */
+    static boolean detectProject(UpgradeContext ctx) {
+        // Use app/build.gradle and /res/values/strings.xml to load info about icon pack
+        final File projectDir = ctx.getProjectDir();
+        final UICallback uiCallback = ctx.getUiCallback();
+        File gradleFile = new File(projectDir, GRADLE_FILE_PATH);
+        AttributeExtractor gradleExtractor = new AttributeExtractor(gradleFile,
+                new String[]{"applicationId", "versionName", "versionCode"}, AttributeExtractor.MODE_GRADLE, uiCallback);
+        XmlElementExtractor stringsExtractor = new XmlElementExtractor(new File(projectDir,
+                String.format("%s%s%s%s%s", RES_FOLDER_PATH, File.separator, "values", File.separator, "strings.xml")),
+                new String[]{"string"}, new String[]{"app_name"}, uiCallback);
+        HashMap<String, String> gradleAttrs = gradleExtractor.find();
+        if (gradleAttrs == null) return false;
+        HashMap<String, String> stringsAttrs = stringsExtractor.find();
+        if (stringsAttrs == null) return false;
+
+        ctx.setProjectInfo(stringsAttrs.get("app_name"), gradleAttrs.get("applicationId"),
+                gradleAttrs.get("versionName"), gradleAttrs.get("versionCode"));
+        LOG("[DETECTED]: app_name = %s, applicationId = %s, versionName = %s, versionCode = %s",
+                ctx.getAppName(), ctx.getPackage(), ctx.getVersionName(), ctx.getVersionCode());
+        uiCallback.onProjectDetected(ctx.getAppName(), ctx.getPackage(), ctx.getVersionName(), ctx.getVersionCode());
+        return true;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static boolean backupProject(UpgradeContext ctx) {
+        final File projectDir = ctx.getProjectDir();
+        final UICallback uiCallback = ctx.getUiCallback();
+        BackupMode mode = BACKUP_MODE;
+        if (mode == BackupMode.SNAPSHOT) {
+            final File snapshotDir = new File(projectDir, SnapshotBackup.DEFAULT_FOLDER);
+            STATUS(uiCallback, "Taking a snapshot of your project in %s...", ctx.cleanupPath(snapshotDir.getAbsolutePath()));
+            try {
+                final int linked = SnapshotBackup.take(projectDir);
+                ctx.getProgress().addTotal(linked, 0);
+                ctx.getProgress().addDone(linked, 0);
+                ctx.setSnapshotLinked(true);
+                ctx.setBackup(SnapshotBackup.DEFAULT_FOLDER);
+                LOG("[INFO]: Snapshot of %d files taken.", linked);
+            } catch (SnapshotBackup.LinksUnsupportedException e) {
+                LOG("[WARNING]: Hard links aren't supported here (%s), making a ZIP backup instead.", e.getMessage());
+                mode = BackupMode.ZIP;
+            } catch (Exception e) {
+                e.printStackTrace();
+                ERROR(uiCallback, "Failed to make a backup of your project: %s", e.getMessage());
+                return false;
+            }
+        }
+        if (mode == BackupMode.INCREMENTAL) {
+            final File storeDir = BackupStore.storeDir(projectDir);
+            final String projectKey = BackupStore.projectKey(projectDir, ctx.getAppName());
+            STATUS(uiCallback, "Backing up changes in your project to %s...", ctx.cleanupPath(storeDir.getAbsolutePath()));
+            try {
+                final BackupStore.Result result = new BackupStore(storeDir).backup(projectDir, projectKey);
+                ctx.getProgress().addTotal(result.totalFiles, 0);
+                ctx.getProgress().addDone(result.totalFiles, 0);
+                LOG("[INFO]: Backup %s recorded %d changed and %d deleted files out of %d (%d new objects, %s).",
+                        result.snapshot, result.changedFiles, result.deletedFiles, result.totalFiles,
+                        result.storedObjects, FileUtil.readableFileSize(result.storedBytes));
+                ctx.setBackup(BackupStore.backupName(projectKey, result.snapshot));
+            } catch (Exception e) {
+                e.printStackTrace();
+                ERROR(uiCallback, "Failed to make a backup of your project: %s", e.getMessage());
+                return false;
+            }
+        } else if (mode == BackupMode.ZIP) {
+            final File projectBackup = new File(projectDir,
+                    String.format("%s-BACKUP.zip", ctx.getAppName().replace(" ", "_")));
+            if (projectBackup.exists())
+                projectBackup.delete();
+            STATUS(uiCallback, "Backing up your existing project to %s...", ctx.cleanupPath(projectBackup.getAbsolutePath()));
+            try {
+                ZipUtil.writeZipFile(projectDir, projectBackup, Runtime.getRuntime().availableProcessors(),
+                        ctx.getProgress());
+                ctx.setBackup(projectBackup.getName());
+            } catch (Exception e) {
+                e.printStackTrace();
+                ERROR(uiCallback, "Failed to make a backup of your project: %s", e.getMessage());
+                return false;
+            }
+        }
+        STATUS(uiCallback, "Project backed up successfully!");
+        return true;
+    }
+
+    /**
+     * Copies text files with Polar's package name replaced by the project's, skipping blacklisted files.
+     */
+    static FileUtil.CopyInterceptor packageInterceptor(UpgradeContext ctx, ByteRewriter packageRewriter, boolean logging) {
+        return new FileUtil.CopyInterceptor() {
             @Override
             public String onCopyLine(File file, String line) {
-                return line.replace("com.afollestad.polar", USER_PACKAGE);
+                return line.replace("com.afollestad.polar", ctx.getPackage());
+            }
+
+            @Override
+            public ByteRewriter rewriter() {
+                return packageRewriter;
             }
 
             @Override
@@ -211,45 +313,35 @@ public class Main extends MainBase {
 
             @Override
             public boolean loggingEnabled() {
-                return true;
+                return logging;
             }
-        });
+        };
+    }
 
-        // Migrate the files ignored during direct copy
-        File projectValues = new File(new File(CURRENT_DIR, RES_FOLDER_PATH), "values");
-        File latestValues = new File(new File(EXTRACTED_ZIP_ROOT, RES_FOLDER_PATH), "values");
-        XmlMigrator migrator = new XmlMigrator(
-                new File(projectValues, "strings.xml"), new File(latestValues, "strings.xml"),
-                uiCallback);
-        if (!migrator.process()) return;
-        migrator = new XmlMigrator(
-                new File(projectValues, "dev_about.xml"), new File(latestValues, "dev_about.xml"), uiCallback);
-        if (!migrator.process()) return;
+    // Copies everything as it is, e.g. the licensing module
+    static final FileUtil.CopyInterceptor VERBATIM_INTERCEPTOR = new FileUtil.CopyInterceptor() {
+        @Override
+        public String onCopyLine(File file, String line) {
+            return line;
+        }
 
-        File projectChangelog = new File(projectValues, "dev_changelog.xml");
-        File latestChangelog = new File(latestValues, "dev_changelog.xml");
-        if (!projectChangelog.exists())
-            FileUtil.copyFolder(latestChangelog, projectChangelog, null);
-
-        migrator = new XmlMigrator(projectChangelog, latestChangelog, uiCallback);
-        if (!migrator.process()) return;
-
-        migrator = new XmlMigrator(
-                new File(projectValues, "dev_customization.xml"), new File(latestValues, "dev_customization.xml"),
-                uiCallback);
-        if (!migrator.process()) return;
-        migrator = new XmlMigrator(
-                new File(projectValues, "dev_theming.xml"), new File(latestValues, "dev_theming.xml"),
-                uiCallback);
-        if (!migrator.process()) return;
-
-        System.out.println(String.format("\nUpgrade is complete for %s!", USER_APPNAME));
-        uiCallback.onStatusUpdate(String.format("Upgrade is complete for %s!", USER_APPNAME));
-        EXTRACTED_ZIP_ROOT.delete();
-        uiCallback.onUpdateSuccessful();
-    }
+        @Override
+        public ByteRewriter rewriter() {
+            return ByteRewriter.NONE;
+        }
+
+        @Override
+        public boolean skip(File file) {
+            return false;
+        }
+
+        @Override
+        public boolean loggingEnabled() {
+            return false;
+        }
+    };
 
-    private static boolean isBlacklisted(File file) {
+    static boolean isBlacklisted(File file) {
         if (file.isDirectory()) {
             return file.getName().startsWith("mipmap") ||
                     file.getName().equals("drawable-nodpi") ||
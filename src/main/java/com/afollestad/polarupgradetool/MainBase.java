@@ -2,40 +2,149 @@ package com.afollestad.polarupgradetool;
 
 import com.afollestad.polarupgradetool.jfx.UICallback;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.*;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.List;
 
 /**
  * @author Aidan Follestad (afollestad)
  */
 class MainBase {
 
-    private final static String ARCHIVE_URL = "https://github.com/afollestad/polar-dashboard/archive/master.zip";
+    // Where Polar's latest code is downloaded from
+    static String ARCHIVE_URL = System.getProperty("polar.archive.url",
+            "https://github.com/afollestad/polar-dashboard/archive/master.zip");
     public final static int BUFFER_SIZE = 2048;
 
-    protected static File EXTRACTED_ZIP_ROOT;
-    protected static File CURRENT_DIR;
+    public enum BackupMode {
+        // Writes a full <AppName>-BACKUP.zip on every run
+        ZIP,
+        // Records only changed files in a content-addressed BackupStore
+        INCREMENTAL,
+        // Hard-links every file into a SnapshotBackup, falling back to ZIP where links aren't supported
+        SNAPSHOT
+    }
+
+    // Settings, configurable through system properties (e.g. -Dpolar.backup=incremental)
+    public static BackupMode BACKUP_MODE = Util.enumProperty("polar.backup", BackupMode.ZIP);
+    // A backup store shared between projects; when null, each project keeps its own store
+    public static File BACKUP_STORE_DIR = Util.fileProperty("polar.backup.store");
+    // Extract the upstream archive while it downloads, rather than saving it to disk first
+    public static boolean STREAM_DOWNLOAD = Util.booleanProperty("polar.download.stream", true);
+    // Number of connections used to fetch byte ranges of the archive in parallel
+    public static int DOWNLOAD_CONNECTIONS = Util.intProperty("polar.download.connections", 4);
+    // Expected SHA-256 of the archive, verified as it downloads when set
+    public static String DOWNLOAD_SHA256 = System.getProperty("polar.download.sha256");
+    // Cache of upstream archives, revalidated with conditional requests; when null, nothing is cached
+    public static File ARCHIVE_CACHE_DIR = Util.booleanProperty("polar.cache", false) ?
+            ArchiveCache.DEFAULT_DIR : Util.fileProperty("polar.cache.dir");
+    // Maximum number of archives kept in the cache before the least recently used are evicted
+    public static int ARCHIVE_CACHE_ENTRIES = Util.intProperty("polar.cache.entries", 3);
+
+    // Number of threads used to copy folders and migrate XML files; 1 does one file at a time
+    public static int COPY_PARALLELISM = Util.intProperty("polar.copy.parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    // Leave files untouched when the copied output would be identical to what's already there
+    public static boolean SKIP_IDENTICAL = Util.booleanProperty("polar.copy.skip-identical", true);
+    // Where the index of previously copied files is kept, one file per project
+    public static File COPY_INDEX_DIR = Util.fileProperty("polar.copy.index.dir") != null ?
+            Util.fileProperty("polar.copy.index.dir") : CopyIndex.DEFAULT_DIR;
+
+    // Milliseconds between the progress updates published to the console and the UI
+    public static int PROGRESS_INTERVAL = Util.intProperty("polar.progress.interval", 200);
+
+    // Least severe messages written to the console and the JSON log; debug adds every file zipped and folder copied
+    public static AsyncLog.Level LOG_LEVEL = Util.enumProperty("polar.log.level", AsyncLog.Level.INFO);
+    // A file that messages are also appended to as JSON lines; when null, they're only written to the console
+    public static File LOG_JSON = Util.fileProperty("polar.log.json");
+
+    // Writes the timings, files and bytes of every phase into the project after an upgrade
+    public static boolean REPORT = Util.booleanProperty("polar.report", true);
+    // Also writes the report in the Prometheus text format, e.g. for a node exporter's textfile collector
+    public static boolean REPORT_PROMETHEUS = Util.booleanProperty("polar.report.prometheus", false);
+
+    // Emits a Flight Recorder event for every file copied, deleted, zipped or migrated while a recording runs
+    public static boolean JFR_EVENTS = Util.booleanProperty("polar.jfr.events", true);
+    // A .jfr file the tool records its own events to, rewritten after every upgrade
+    public static File JFR_RECORDING = Util.fileProperty("polar.jfr");
+
     private final static String ARCHIVE_ROOT = File.separator + "polar-dashboard-master";
 
-    public static String cleanupPath(String from) {
-        if (from.startsWith(CURRENT_DIR.getAbsolutePath())) {
-            from = from.substring(CURRENT_DIR.getAbsolutePath().length());
-        } else if (from.startsWith(EXTRACTED_ZIP_ROOT.getAbsolutePath())) {
-            from = from.substring(EXTRACTED_ZIP_ROOT.getAbsolutePath().length());
+    // Set on threads working on one of several concurrent upgrades, to tell their output apart
+    static final ThreadLocal<String> LOG_PREFIX = new ThreadLocal<>();
+    // Set on threads whose output is held back and printed later, so that work done concurrently
+    // is still printed in a fixed order
+    static final ThreadLocal<List<Runnable>> LOG_BUFFER = new ThreadLocal<>();
+
+    /**
+     * Logs a message, with a level told by its tag: [ERROR] and [FAILED] are errors, [WARNING] is a
+     * warning, and everything else is info. The message is formatted and written on the log thread,
+     * so the arguments mustn't be changed after the call.
+     */
+    public static void LOG(String msg, Object... args) {
+        final AsyncLog.Level level = msg.startsWith("[ERROR]") || msg.startsWith("[FAILED]") ? AsyncLog.Level.ERROR :
+                msg.startsWith("[WARNING]") ? AsyncLog.Level.WARNING : AsyncLog.Level.INFO;
+        log(AsyncLog.get().event(level, LOG_PREFIX.get(), msg, args));
+    }
+
+    /**
+     * Logs per-file output, which isn't written unless polar.log.level is debug.
+     */
+    public static void DEBUG(String msg, Object... args) {
+        log(AsyncLog.get().event(AsyncLog.Level.DEBUG, LOG_PREFIX.get(), msg, args));
+    }
+
+    /**
+     * Logs an info message and shows it in the UI, if there is one, formatting it once for both. The
+     * UI is updated right away, so it stays in order with the other callbacks.
+     */
+    static void STATUS(UICallback uiCallback, String msg, Object... args) {
+        final String status = String.format(msg, args);
+        log(AsyncLog.get().event(AsyncLog.Level.INFO, LOG_PREFIX.get(), "[INFO]: " + status, null));
+        if (uiCallback != null)
+            uiCallback.onStatusUpdate(status);
+    }
+
+    /**
+     * Logs an error and reports it to the UI, if there is one, the same way as {@link #STATUS}.
+     */
+    static void ERROR(UICallback uiCallback, String msg, Object... args) {
+        final String error = String.format(msg, args);
+        log(AsyncLog.get().event(AsyncLog.Level.ERROR, LOG_PREFIX.get(), "[ERROR]: " + error, null));
+        if (uiCallback != null)
+            uiCallback.onErrorOccurred(error);
+    }
+
+    /**
+     * Writes text to the console as is, in order with the logged messages.
+     */
+    static void PRINT(String text) {
+        log(AsyncLog.get().raw(text));
+    }
+
+    private static void log(AsyncLog.Event event) {
+        if (event == null) return;
+        final List<Runnable> buffer = LOG_BUFFER.get();
+        if (buffer != null) {
+            buffer.add(() -> AsyncLog.get().enqueue(event));
+            return;
         }
-        return from;
+        AsyncLog.get().enqueue(event);
     }
 
-    public static void LOG(String msg, Object... args) {
-        if (args != null)
-            msg = String.format(msg, args);
-        System.out.println(msg);
+    /**
+     * Waits until everything logged so far has been written.
+     */
+    static void FLUSH_LOG() {
+        AsyncLog.get().flush();
     }
 
     public static String PROGRESS(String label, long read, long total) {
+        if (total <= 0) {
+            PRINT(String.format("\r%s%s", label != null ? label + "  " : "", Util.readableFileSizeMB(read)));
+            return Util.readableFileSizeMB(read);
+        }
         final int percent = (int) Math.ceil(((double) read / (double) total) * 100d);
         StringBuilder sb = new StringBuilder(13);
         sb.append('\r');
@@ -55,100 +164,152 @@ class MainBase {
         sb.append(Util.readableFileSizeMB(read));
         sb.append('/');
         sb.append(Util.readableFileSizeMB(total));
-        System.out.print(sb.toString());
+        PRINT(sb.toString());
         return String.format("%s/%s (%s%%)", Util.readableFileSizeMB(read),
                 Util.readableFileSizeMB(total), Util.round(percent));
     }
 
-    public static int TRIES = 0;
+    /**
+     * @return A listener that shows the progress of the download on the console, and the progress of
+     * every phase in the UI.
+     */
+    static ProgressModel.Listener progressSink(UICallback uiCallback) {
+        return snapshot -> {
+            if (snapshot.phase == UpgradeContext.Phase.DOWNLOAD && snapshot.bytes > 0)
+                uiCallback.onArchiveDownloadProgress(PROGRESS(null, snapshot.bytes, snapshot.totalBytes));
+            uiCallback.onProgress(snapshot);
+        };
+    }
+
+    // Keeps ZipInputStream from closing the download before the rest of it has been read
+    private static class UnclosableInputStream extends FilterInputStream {
 
+        UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Downloads and extracts Polar's latest code into a PolarLatest folder inside of workDir, and points
+     * the context at the extracted tree.
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    protected static boolean downloadArchive(UICallback uiCallback) {
+    protected static boolean downloadArchive(UpgradeContext ctx, File workDir) {
+        final UICallback uiCallback = ctx.getUiCallback();
+        final ProgressModel progress = ctx.getProgress();
         InputStream is = null;
-        FileOutputStream os = null;
 
-        if (TRIES == 0) {
-            LOG("[INFO]: Contacting GitHub...");
-            uiCallback.onStatusUpdate("Contacting GitHub...");
-        }
+        ctx.beginPhase(UpgradeContext.Phase.DOWNLOAD);
+        STATUS(uiCallback, "Contacting GitHub...");
 
         try {
-            URL url = new URL(ARCHIVE_URL);
-            URLConnection conn = url.openConnection();
-            is = conn.getInputStream();
+            final URL url = new URL(ARCHIVE_URL);
+            final ArchiveDownloader downloader = new ArchiveDownloader(url)
+                    .setConnections(DOWNLOAD_CONNECTIONS)
+                    .setExpectedSha256(DOWNLOAD_SHA256);
+            final ArchiveDownloader.Listener progressListener = new ArchiveDownloader.Listener() {
+                @Override
+                public void onStarted(long total) {
+                    final String sizeStr = total >= 0 ? FileUtil.readableFileSize(total) : "unknown size";
+                    LOG("[INFO]: Downloading a ZIP of Polar's latest code (%s)...", sizeStr);
+                    uiCallback.onArchiveDownloadStarted(sizeStr);
+                    if (total > 0) progress.setTotalBytes(total);
+                }
 
-            long contentLength;
-            try {
-                final String contentLengthStr = conn.getHeaderField("Content-Length");
-                if (contentLengthStr == null || contentLengthStr.trim().isEmpty()) {
-                    if (TRIES > 0) {
-                        LOG("[ERROR]: No Content-Length header was returned by GitHub. Try running this app again.");
-                        uiCallback.onErrorOccurred("GitHub did not report a Content-Length, please try again.");
-                        return false;
-                    }
-                    TRIES++;
-                    Thread.sleep(2000);
-                    return downloadArchive(uiCallback);
+                // Called for every chunk read, so only the counters are updated here; the console and
+                // the UI are updated by the progress model's publisher
+                @Override
+                public void onProgress(long read, long total) {
+                    progress.setBytesDone(read);
                 }
-                contentLength = Long.parseLong(contentLengthStr);
-            } catch (Throwable e) {
-                e.printStackTrace();
-                LOG("[ERROR]: Failed to get the size of Polar's latest code archive. Please try running this app again.", e.getMessage());
-                uiCallback.onArchiveDownloadFailed("Failed to get the size of Polar's latest code archive. Please try running this app again.");
-                return false;
-            }
+            };
 
-            final File destZip = new File(CURRENT_DIR, "PolarLatest.zip");
-            if (destZip.exists()) destZip.delete();
-            os = new FileOutputStream(destZip);
+            final File extractDir = new File(workDir, "PolarLatest");
+            if (extractDir.exists()) {
+                final int removedCount = FileUtil.wipe(extractDir);
+                STATUS(uiCallback, "Removed %d files/folders from %s.", removedCount,
+                        ctx.cleanupPath(extractDir.getAbsolutePath()));
+            }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            int totalRead = 0;
+            if (ARCHIVE_CACHE_DIR != null) {
+                // Revalidate or fill the shared cache, then extract the cached copy
+                final ArchiveCache.Result cached = new ArchiveCache(ARCHIVE_CACHE_DIR, ARCHIVE_CACHE_ENTRIES)
+                        .fetch(url, downloader, progressListener);
+                if (cached.hit) {
+                    STATUS(uiCallback, "Polar's latest code is already cached (%s), nothing to download.", cached.etag);
+                } else {
+                    progress.flush();
+                    PRINT("\n");
+                    LOG("[INFO]: Download complete!");
+                    uiCallback.onArchiveDownloadSuccess();
+                }
+                LOG("[INFO]: Archive cache %s (%d hits, %d misses in total).", cached.hit ? "hit" : "miss",
+                        cached.totalHits, cached.totalMisses);
 
-            LOG("[INFO]: Downloading a ZIP of Polar's latest code (%s)...", FileUtil.readableFileSize(contentLength));
-            uiCallback.onArchiveDownloadStarted(FileUtil.readableFileSize(contentLength));
+                ctx.beginPhase(UpgradeContext.Phase.EXTRACT);
+                STATUS(uiCallback, "Extracting %s to %s...", cached.archive.getAbsolutePath(),
+                        ctx.cleanupPath(extractDir.getAbsolutePath()));
+                UnzipUtil.unzip(cached.archive.getAbsolutePath(), extractDir.getAbsolutePath(), progress);
+                STATUS(uiCallback, "Extraction complete!");
+                ctx.setExtractedRoot(new File(extractDir, ARCHIVE_ROOT));
+                return true;
+            }
 
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
-                totalRead += read;
-                final String progressStr = PROGRESS(null, totalRead, contentLength);
-                uiCallback.onArchiveDownloadProgress(progressStr);
+            try {
+                downloader.probe();
+            } catch (Exception e) {
+                e.printStackTrace();
+                LOG("[ERROR]: Failed to get the size of Polar's latest code archive. Please try running this app again.", e.getMessage());
+                uiCallback.onArchiveDownloadFailed("Failed to get the size of Polar's latest code archive. Please try running this app again.");
+                return false;
             }
 
-            PROGRESS(null, contentLength, contentLength);
-            System.out.println();
-            LOG("[INFO]: Download complete!");
-            uiCallback.onArchiveDownloadSuccess();
-            os.flush();
+            if (STREAM_DOWNLOAD) {
+                // Extract entries as they arrive, so network and disk work overlap
+                STATUS(uiCallback, "Extracting to %s while downloading...", ctx.cleanupPath(extractDir.getAbsolutePath()));
+                try {
+                    is = downloader.openStream(progressListener);
+                    UnzipUtil.unzip(new UnclosableInputStream(is), extractDir.getAbsolutePath(), progress);
+                    // The central directory at the end of the archive isn't needed, but the stream only
+                    // checks the length and checksum of the download once it reaches the end
+                    final byte[] buffer = BufferPool.acquire();
+                    //noinspection StatementWithEmptyBody
+                    while (is.read(buffer) != -1) ;
+                    BufferPool.release(buffer);
+                } catch (Exception e) {
+                    FileUtil.wipe(extractDir);
+                    throw e;
+                }
+                progress.flush();
+                PRINT("\n");
+                uiCallback.onArchiveDownloadSuccess();
+                STATUS(uiCallback, "Download and extraction complete!");
+            } else {
+                final File destZip = new File(workDir, "PolarLatest.zip");
+                downloader.download(destZip, progressListener);
+                progress.flush();
+                PRINT("\n");
+                LOG("[INFO]: Download complete!");
+                uiCallback.onArchiveDownloadSuccess();
 
-            Util.closeQuietely(is);
-            Util.closeQuietely(os);
-
-            EXTRACTED_ZIP_ROOT = new File(CURRENT_DIR, "PolarLatest");
-            if (EXTRACTED_ZIP_ROOT.exists()) {
-                final int removedCount = FileUtil.wipe(EXTRACTED_ZIP_ROOT);
-                LOG("[INFO]: Removed %d files/folders from %s.", removedCount,
-                        Main.cleanupPath(EXTRACTED_ZIP_ROOT.getAbsolutePath()));
-                uiCallback.onStatusUpdate(String.format("Removed %d files/folders from %s.", removedCount, Main.cleanupPath(EXTRACTED_ZIP_ROOT.getAbsolutePath())));
+                ctx.beginPhase(UpgradeContext.Phase.EXTRACT);
+                STATUS(uiCallback, "Extracting %s to %s...", ctx.cleanupPath(destZip.getAbsolutePath()),
+                        ctx.cleanupPath(extractDir.getAbsolutePath()));
+                UnzipUtil.unzip(destZip.getAbsolutePath(), extractDir.getAbsolutePath(), progress);
+                STATUS(uiCallback, "Extraction complete!");
+                destZip.delete();
             }
-
-            LOG("[INFO]: Extracting %s to %s...", cleanupPath(destZip.getAbsolutePath()),
-                    cleanupPath(EXTRACTED_ZIP_ROOT.getAbsolutePath()));
-            uiCallback.onStatusUpdate(String.format("Extracting %s to %s...",
-                    cleanupPath(destZip.getAbsolutePath()), cleanupPath(EXTRACTED_ZIP_ROOT.getAbsolutePath())));
-            UnzipUtil.unzip(destZip.getAbsolutePath(), EXTRACTED_ZIP_ROOT.getAbsolutePath());
-            LOG("[INFO]: Extraction complete!\n");
-            uiCallback.onStatusUpdate("Extraction complete!");
-            destZip.delete();
-            EXTRACTED_ZIP_ROOT = new File(EXTRACTED_ZIP_ROOT, ARCHIVE_ROOT);
+            LOG("[INFO]: SHA-256 of the downloaded archive: %s", downloader.actualSha256());
+            ctx.setExtractedRoot(new File(extractDir, ARCHIVE_ROOT));
         } catch (Exception e) {
-            LOG("[ERROR]: An error occurred during download or extraction: %s\n", e.getMessage());
-            uiCallback.onErrorOccurred("An error occurred during download or extraction: " + e.getMessage());
+            ERROR(uiCallback, "An error occurred during download or extraction: %s", e.getMessage());
             return false;
         } finally {
             Util.closeQuietely(is);
-            Util.closeQuietely(os);
         }
         return true;
     }
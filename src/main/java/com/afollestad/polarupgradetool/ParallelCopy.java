@@ -0,0 +1,216 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a folder on a ForkJoinPool. The tree is first scanned in parallel, one task per folder,
+ * which also creates the destination folders. Log output is then replayed in the same order as a
+ * serial copy, and the files are copied largest first so a big file doesn't end up alone at the end.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ParallelCopy {
+
+    private static ForkJoinPool sPool;
+
+    static synchronized ForkJoinPool pool() {
+        if (sPool == null)
+            sPool = new ForkJoinPool(Math.max(1, Main.COPY_PARALLELISM));
+        return sPool;
+    }
+
+    private static class Node {
+
+        final File source;
+        final File destination;
+        boolean skipped;
+        boolean directory;
+        long size;
+        Node[] children;
+        IOException error;
+
+        Node(File source, File destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    private static class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node mNode;
+        private final FileUtil.CopyInterceptor mInterceptor;
+
+        ScanTask(Node node, FileUtil.CopyInterceptor interceptor) {
+            mNode = node;
+            mInterceptor = interceptor;
+        }
+
+        @Override
+        protected void compute() {
+            if (mInterceptor != null && mInterceptor.skip(mNode.source)) {
+                mNode.skipped = true;
+                return;
+            }
+            mNode.directory = mNode.source.isDirectory();
+            if (!mNode.directory) {
+                mNode.size = mNode.source.length();
+                return;
+            }
+            try {
+                // Tolerates the folder (or its parents) being created by another task at the same time
+                Files.createDirectories(mNode.destination.toPath());
+            } catch (IOException e) {
+                mNode.error = e;
+                return;
+            }
+            final String[] names = mNode.source.list();
+            mNode.children = new Node[names != null ? names.length : 0];
+            final List<ScanTask> tasks = new ArrayList<>(mNode.children.length);
+            for (int i = 0; i < mNode.children.length; i++) {
+                mNode.children[i] = new Node(new File(mNode.source, names[i]), new File(mNode.destination, names[i]));
+                tasks.add(new ScanTask(mNode.children[i], mInterceptor));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // Copies the next file not yet taken from a list sorted largest first, until there are none left
+    private static class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final UpgradeContext mCtx;
+        private final List<Node> mFiles;
+        private final AtomicInteger mNext;
+        private final FileUtil.CopyInterceptor mInterceptor;
+        private final AtomicReference<Exception> mError;
+
+        CopyTask(UpgradeContext ctx, List<Node> files, AtomicInteger next, FileUtil.CopyInterceptor interceptor,
+                 AtomicReference<Exception> error) {
+            mCtx = ctx;
+            mFiles = files;
+            mNext = next;
+            mInterceptor = interceptor;
+            mError = error;
+        }
+
+        @Override
+        protected void compute() {
+            int i;
+            while (mError.get() == null && (i = mNext.getAndIncrement()) < mFiles.size()) {
+                final Node node = mFiles.get(i);
+                try {
+                    FileUtil.copyFile(mCtx, node.source, node.destination, mInterceptor);
+                } catch (Exception e) {
+                    mError.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+
+    public static boolean copyFolder(UpgradeContext ctx, File source, File destination, FileUtil.CopyInterceptor interceptor) {
+        final Node root = new Node(source, destination);
+        pool().invoke(new ScanTask(root, interceptor));
+
+        final List<Node> files = new ArrayList<>();
+        if (!replay(ctx, root, interceptor, files))
+            return false;
+        if (files.isEmpty())
+            return true;
+        final Exception error = copy(ctx, files, interceptor);
+        if (error != null) {
+            Main.LOG("[ERROR]: An error occurred while copying files: %s", error.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies each source file to the destination at the same index, like copyFolder copies the files
+     * it found. Nothing is logged, and the destination folders must exist already.
+     *
+     * @throws Exception The first error that occurred, once the copies in flight have finished.
+     */
+    static void copyFiles(UpgradeContext ctx, List<File> sources, List<File> destinations,
+                          FileUtil.CopyInterceptor interceptor) throws Exception {
+        final List<Node> files = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            final Node node = new Node(sources.get(i), destinations.get(i));
+            node.size = node.source.length();
+            files.add(node);
+        }
+        if (files.isEmpty()) return;
+        final Exception error = copy(ctx, files, interceptor);
+        if (error != null) throw error;
+    }
+
+    /**
+     * @return The first error that occurred, or null if every file was copied.
+     */
+    private static Exception copy(UpgradeContext ctx, List<Node> files, FileUtil.CopyInterceptor interceptor) {
+        final ForkJoinPool pool = pool();
+        long bytes = 0;
+        for (Node file : files)
+            bytes += file.size;
+        ctx.getProgress().addTotal(files.size(), bytes);
+
+        // One task per worker, each taking the largest file left whenever it's done with one, so the
+        // big files are started first and the small ones fill in around them at the end
+        files.sort((a, b) -> Long.compare(b.size, a.size));
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final int workers = Math.min(files.size(), pool.getParallelism());
+        final List<CopyTask> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++)
+            tasks.add(new CopyTask(ctx, files, next, interceptor, error));
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return error.get();
+    }
+
+    // Logs the scanned tree like FileUtil.copyFolderSerial would, and collects the files to copy
+    private static boolean replay(UpgradeContext ctx, Node node, FileUtil.CopyInterceptor interceptor, List<Node> files) {
+        if (node.skipped) {
+            if (interceptor.loggingEnabled())
+                Main.LOG("[INFO]: Ignored %s", ctx.cleanupPath(node.source.getAbsolutePath()));
+            ctx.getProgress().addSkipped(1);
+            Trace.begin(Trace.Op.COPY, node.source).end(0, Trace.CodePath.SKIPPED);
+            return true;
+        }
+        if (!node.directory) {
+            files.add(node);
+            return true;
+        }
+        if (interceptor == null || interceptor.loggingEnabled()) {
+            if (ctx.lastFolder == null || !ctx.lastFolder.getAbsolutePath().equals(node.source.getAbsolutePath()))
+                Main.DEBUG("%s -> %s", ctx.cleanupPath(node.source.getAbsolutePath()), ctx.cleanupPath(node.destination.getAbsolutePath()));
+            ctx.lastFolder = node.source;
+        }
+        if (node.error != null) {
+            Main.LOG("[ERROR]: An error occurred while copying files: %s", node.error.getMessage());
+            return false;
+        }
+        for (Node child : node.children) {
+            if (!replay(ctx, child, interceptor, files))
+                return false;
+        }
+        return true;
+    }
+
+    private ParallelCopy() {
+    }
+}
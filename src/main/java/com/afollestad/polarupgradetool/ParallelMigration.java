@@ -0,0 +1,182 @@
+package com.afollestad.polarupgradetool;
+
+import com.afollestad.polarupgradetool.jfx.UICallback;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs several independent XML migrations at once on the copy pool, each reading its project and
+ * latest files in parallel. Everything a migration logs or reports to the UI is held back, and
+ * replayed in the order the migrations were added as each one completes, so the output is the same
+ * as when they run one after another. A failed migration doesn't stop the others; they all run, and
+ * the failures are reported together at the end.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ParallelMigration {
+
+    // Queues every call, to be made on the real callback later
+    private static class BufferedCallback implements UICallback {
+
+        private final UICallback mCallback;
+        private final List<Runnable> mBuffer;
+
+        BufferedCallback(UICallback callback, List<Runnable> buffer) {
+            mCallback = callback;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void onProjectDetected(String applicationName, String applicationPackage, String applicationVersionName, String applicationVersionCode) {
+            mBuffer.add(() -> mCallback.onProjectDetected(applicationName, applicationPackage, applicationVersionName, applicationVersionCode));
+        }
+
+        @Override
+        public void onErrorOccurred(String errorMessage) {
+            mBuffer.add(() -> mCallback.onErrorOccurred(errorMessage));
+        }
+
+        @Override
+        public void onArchiveDownloadStarted(String sizeStr) {
+            mBuffer.add(() -> mCallback.onArchiveDownloadStarted(sizeStr));
+        }
+
+        @Override
+        public void onArchiveDownloadProgress(String progressStr) {
+            mBuffer.add(() -> mCallback.onArchiveDownloadProgress(progressStr));
+        }
+
+        @Override
+        public void onArchiveDownloadFailed(String errorMessage) {
+            mBuffer.add(() -> mCallback.onArchiveDownloadFailed(errorMessage));
+        }
+
+        @Override
+        public void onArchiveDownloadSuccess() {
+            mBuffer.add(mCallback::onArchiveDownloadSuccess);
+        }
+
+        @Override
+        public void onStatusUpdate(String statusMessage) {
+            mBuffer.add(() -> mCallback.onStatusUpdate(statusMessage));
+        }
+
+        @Override
+        public void onUpdateSuccessful() {
+            mBuffer.add(mCallback::onUpdateSuccessful);
+        }
+    }
+
+    private final UpgradeContext ctx;
+    private final List<File[]> mMigrations = new ArrayList<>();
+
+    ParallelMigration(UpgradeContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Adds a migration of the latest file into the project file, which mustn't be touched by any
+     * of the other migrations.
+     */
+    ParallelMigration add(File project, File latest) {
+        mMigrations.add(new File[]{project, latest});
+        return this;
+    }
+
+    /**
+     * @return True if every migration succeeded.
+     */
+    boolean process() {
+        long bytes = 0;
+        for (File[] migration : mMigrations)
+            bytes += migration[1].length();
+        ctx.getProgress().addTotal(mMigrations.size(), bytes);
+        if (Main.COPY_PARALLELISM <= 1)
+            return processSerial();
+
+        final String prefix = Main.LOG_PREFIX.get();
+        final List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(mMigrations.size());
+        final List<List<Runnable>> buffers = new ArrayList<>(mMigrations.size());
+        final long[] nanos = new long[mMigrations.size()];
+        for (int i = 0; i < mMigrations.size(); i++) {
+            final File[] migration = mMigrations.get(i);
+            final int index = i;
+            final List<Runnable> buffer = new ArrayList<>();
+            final UICallback callback = ctx.getUiCallback() != null ? new BufferedCallback(ctx.getUiCallback(), buffer) : null;
+            final XmlMigrator migrator = new XmlMigrator(ctx, migration[0], migration[1], callback);
+            buffers.add(buffer);
+            tasks.add(ParallelCopy.pool().submit(() -> {
+                // Restored afterwards, in case the thread was running another migration while it waited
+                final String previousPrefix = Main.LOG_PREFIX.get();
+                final List<Runnable> previousBuffer = Main.LOG_BUFFER.get();
+                Main.LOG_PREFIX.set(prefix);
+                Main.LOG_BUFFER.set(buffer);
+                final long start = System.nanoTime();
+                final Trace.Span span = Trace.begin(Trace.Op.XML_MIGRATION, migration[0]);
+                boolean succeeded = false;
+                try {
+                    succeeded = migrator.process(true);
+                    return succeeded;
+                } catch (RuntimeException e) {
+                    Main.ERROR(callback, "Failed to process %s for XML migration: %s",
+                            ctx.cleanupPath(migration[0].getAbsolutePath()), e.getMessage());
+                    return false;
+                } finally {
+                    Main.LOG_PREFIX.set(previousPrefix);
+                    Main.LOG_BUFFER.set(previousBuffer);
+                    nanos[index] = System.nanoTime() - start;
+                    span.end(migration[1].length(), succeeded ? Trace.CodePath.TEXT : Trace.CodePath.FAILED);
+                    ctx.getProgress().addDone(1, migration[1].length());
+                }
+            }));
+        }
+
+        final List<File> failed = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            // Failures are caught by the task itself
+            final boolean succeeded = tasks.get(i).join();
+            for (Runnable output : buffers.get(i))
+                output.run();
+            // join() makes the task's timing visible here; steps are added in order, like the output
+            addStep(mMigrations.get(i), nanos[i]);
+            if (!succeeded)
+                failed.add(mMigrations.get(i)[0]);
+        }
+        return report(failed);
+    }
+
+    private boolean processSerial() {
+        final List<File> failed = new ArrayList<>();
+        for (File[] migration : mMigrations) {
+            final long start = System.nanoTime();
+            final Trace.Span span = Trace.begin(Trace.Op.XML_MIGRATION, migration[0]);
+            final boolean succeeded = new XmlMigrator(ctx, migration[0], migration[1]).process();
+            span.end(migration[1].length(), succeeded ? Trace.CodePath.TEXT : Trace.CodePath.FAILED);
+            if (!succeeded)
+                failed.add(migration[0]);
+            ctx.getProgress().addDone(1, migration[1].length());
+            addStep(migration, System.nanoTime() - start);
+        }
+        return report(failed);
+    }
+
+    private void addStep(File[] migration, long nanos) {
+        ctx.addStep(new RunReport.Step(UpgradeContext.Phase.XML_MIGRATION, migration[0].getName(),
+                nanos, 1, migration[1].length(), 0));
+    }
+
+    private boolean report(List<File> failed) {
+        if (failed.isEmpty())
+            return true;
+        final StringBuilder names = new StringBuilder();
+        for (File file : failed) {
+            if (names.length() > 0) names.append(", ");
+            names.append(file.getName());
+        }
+        Main.ERROR(ctx.getUiCallback(), "%d of %d XML migrations failed: %s", failed.size(), mMigrations.size(), names);
+        return false;
+    }
+}
@@ -0,0 +1,284 @@
+package com.afollestad.polarupgradetool;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the files and bytes each phase of an upgrade has done, out of the totals it knows of. Phases
+ * add to the counters from any thread without locking, at whatever rate they work at; snapshots are
+ * published to a listener at a fixed rate instead (Main.PROGRESS_INTERVAL), and only when something
+ * changed, so the console and the UI are updated a few times per second at most.
+ * <p>
+ * Totals are added as soon as a phase knows them, e.g. when the download's length is known or when a
+ * folder has been scanned, before any of its files are counted as done.
+ * <p>
+ * Each snapshot published also carries the progress of the upgrade as a whole, see {@link #overall()}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class ProgressModel {
+
+    private static final int PHASES = UpgradeContext.Phase.values().length;
+
+    private static ScheduledExecutorService sPublisher;
+
+    // Publishes the snapshots of every upgrade in the process
+    private static synchronized ScheduledExecutorService publisher() {
+        if (sPublisher == null) {
+            sPublisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "polar-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sPublisher;
+    }
+
+    public interface Listener {
+        void onProgress(Snapshot snapshot);
+    }
+
+    /**
+     * The progress of one phase at one point in time, or of the whole upgrade when phase is null.
+     */
+    public static class Snapshot {
+
+        public final UpgradeContext.Phase phase;
+        public final long files;
+        public final long totalFiles;
+        public final long bytes;
+        public final long totalBytes;
+        // Files and folders left out by an interceptor, e.g. blacklisted files
+        public final long skipped;
+        public final long elapsedMillis;
+        // The progress of the whole upgrade at the same time, on published snapshots only
+        public final Snapshot overall;
+
+        Snapshot(UpgradeContext.Phase phase, long files, long totalFiles, long bytes, long totalBytes, long skipped,
+                 long elapsedMillis, Snapshot overall) {
+            this.phase = phase;
+            this.files = files;
+            this.totalFiles = totalFiles;
+            this.bytes = bytes;
+            this.totalBytes = totalBytes;
+            this.skipped = skipped;
+            this.elapsedMillis = elapsedMillis;
+            this.overall = overall;
+        }
+
+        /**
+         * @return How much of the phase is done, from 0 to 1, by bytes where their total is known and by
+         * files otherwise; -1 if neither total is known.
+         */
+        public double fraction() {
+            if (totalBytes > 0) return Math.min(1d, (double) bytes / totalBytes);
+            if (totalFiles > 0) return Math.min(1d, (double) files / totalFiles);
+            return -1;
+        }
+
+        /**
+         * @return The time the rest of the phase (or upgrade) should take at the rate it has gone at so
+         * far, or -1 if that can't be told yet.
+         */
+        public long etaMillis() {
+            final double fraction = fraction();
+            if (fraction <= 0 || elapsedMillis <= 0) return -1;
+            return (long) (elapsedMillis * (1d - fraction) / fraction);
+        }
+
+        boolean isEmpty() {
+            return files == 0 && totalFiles == 0 && bytes == 0 && totalBytes == 0;
+        }
+
+        boolean sameCounts(Snapshot other) {
+            return other != null && phase == other.phase && files == other.files && totalFiles == other.totalFiles &&
+                    bytes == other.bytes && totalBytes == other.totalBytes;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(64).append(phase != null ? phase.name() : "OVERALL");
+            if (totalFiles > 0) {
+                sb.append("  ").append(files).append('/').append(totalFiles).append(" files");
+            } else if (files > 0) {
+                sb.append("  ").append(files).append(" files");
+            }
+            if (totalBytes > 0) {
+                sb.append("  ").append(Util.readableFileSizeMB(bytes)).append('/').append(Util.readableFileSizeMB(totalBytes));
+            } else if (bytes > 0) {
+                sb.append("  ").append(Util.readableFileSizeMB(bytes));
+            }
+            final double fraction = fraction();
+            if (fraction >= 0)
+                sb.append("  ").append((int) (fraction * 100)).append('%');
+            final long eta = etaMillis();
+            if (eta >= 0 && fraction < 1)
+                sb.append("  ").append(Util.round(eta / 1000d)).append("s left");
+            final long overallEta = overall != null ? overall.etaMillis() : -1;
+            if (overallEta >= 0 && overall.fraction() < 1)
+                sb.append(" (").append(Util.round(overallEta / 1000d)).append("s overall)");
+            return sb.toString();
+        }
+    }
+
+    private final AtomicLongArray mFiles = new AtomicLongArray(PHASES);
+    private final AtomicLongArray mTotalFiles = new AtomicLongArray(PHASES);
+    private final AtomicLongArray mBytes = new AtomicLongArray(PHASES);
+    private final AtomicLongArray mTotalBytes = new AtomicLongArray(PHASES);
+    private final AtomicLongArray mSkipped = new AtomicLongArray(PHASES);
+
+    private volatile UpgradeContext.Phase mPhase;
+    private volatile long mPhaseStart;
+    // When the first phase began, 0 before that
+    private volatile long mStart;
+
+    private Listener mListener;
+    private ScheduledFuture<?> mSchedule;
+    private Snapshot mPublished;
+
+    /**
+     * Moves on to the given phase, publishing the last progress of the previous one first. Null when
+     * no phase is running.
+     */
+    void begin(UpgradeContext.Phase phase) {
+        flush();
+        mPhase = phase;
+        mPhaseStart = System.nanoTime();
+        if (phase != null && mStart == 0)
+            mStart = mPhaseStart;
+    }
+
+    /**
+     * Adds to the totals of the current phase.
+     */
+    public void addTotal(long files, long bytes) {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return;
+        if (files != 0) mTotalFiles.addAndGet(phase.ordinal(), files);
+        if (bytes != 0) mTotalBytes.addAndGet(phase.ordinal(), bytes);
+    }
+
+    /**
+     * Adds to what the current phase has done.
+     */
+    public void addDone(long files, long bytes) {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return;
+        if (files != 0) mFiles.addAndGet(phase.ordinal(), files);
+        if (bytes != 0) mBytes.addAndGet(phase.ordinal(), bytes);
+    }
+
+    /**
+     * Counts files or folders the current phase left out, without changing its totals.
+     */
+    public void addSkipped(long entries) {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return;
+        mSkipped.addAndGet(phase.ordinal(), entries);
+    }
+
+    /**
+     * Sets the bytes the current phase has done, for work that reports a running total, e.g. the
+     * download. Never goes backwards, since the total may be reported from several threads.
+     */
+    public void setBytesDone(long bytes) {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return;
+        mBytes.accumulateAndGet(phase.ordinal(), bytes, Math::max);
+    }
+
+    /**
+     * Sets the total bytes of the current phase.
+     */
+    public void setTotalBytes(long bytes) {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return;
+        mTotalBytes.set(phase.ordinal(), bytes);
+    }
+
+    /**
+     * @return The progress of the current phase, or null when no phase is running.
+     */
+    public Snapshot snapshot() {
+        final UpgradeContext.Phase phase = mPhase;
+        if (phase == null) return null;
+        final int i = phase.ordinal();
+        return new Snapshot(phase, mFiles.get(i), mTotalFiles.get(i), mBytes.get(i), mTotalBytes.get(i), mSkipped.get(i),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mPhaseStart), overall());
+    }
+
+    /**
+     * @return The counts of a phase so far, all zero if it hasn't run. The elapsed time isn't set.
+     */
+    public Snapshot snapshot(UpgradeContext.Phase phase) {
+        final int i = phase.ordinal();
+        return new Snapshot(phase, mFiles.get(i), mTotalFiles.get(i), mBytes.get(i), mTotalBytes.get(i), mSkipped.get(i), 0, null);
+    }
+
+    /**
+     * @return The progress of the upgrade as a whole, with a null phase: the counts of every phase
+     * added up, and the time since the first phase began. Only what's done towards a known total is
+     * counted, and a phase only adds its totals once it's running, so the ETA covers the work known
+     * of so far and grows as later phases begin.
+     */
+    public Snapshot overall() {
+        long files = 0, totalFiles = 0, bytes = 0, totalBytes = 0, skipped = 0;
+        for (int i = 0; i < PHASES; i++) {
+            final long phaseTotalFiles = mTotalFiles.get(i);
+            if (phaseTotalFiles > 0) {
+                files += Math.min(mFiles.get(i), phaseTotalFiles);
+                totalFiles += phaseTotalFiles;
+            }
+            final long phaseTotalBytes = mTotalBytes.get(i);
+            if (phaseTotalBytes > 0) {
+                bytes += Math.min(mBytes.get(i), phaseTotalBytes);
+                totalBytes += phaseTotalBytes;
+            }
+            skipped += mSkipped.get(i);
+        }
+        final long start = mStart;
+        return new Snapshot(null, files, totalFiles, bytes, totalBytes, skipped,
+                start != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) : 0, null);
+    }
+
+    /**
+     * Starts publishing snapshots to the listener every intervalMillis, on a background thread.
+     */
+    synchronized void start(Listener listener, long intervalMillis) {
+        stop();
+        mListener = listener;
+        mSchedule = publisher().scheduleAtFixedRate(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing, after publishing the last progress.
+     */
+    synchronized void stop() {
+        if (mSchedule == null) return;
+        mSchedule.cancel(false);
+        mSchedule = null;
+        flush();
+        mListener = null;
+    }
+
+    /**
+     * Publishes the current progress right away, if it changed since it was last published. Called
+     * before output that would otherwise be mixed up with a progress update published later.
+     */
+    synchronized void flush() {
+        if (mListener == null) return;
+        final Snapshot snapshot = snapshot();
+        // Phases that count nothing, like DETECT, aren't published
+        if (snapshot == null || snapshot.isEmpty() || snapshot.sameCounts(mPublished)) return;
+        mPublished = snapshot;
+        try {
+            mListener.onProgress(snapshot);
+        } catch (RuntimeException e) {
+            // A failing listener mustn't stop the schedule
+            e.printStackTrace();
+        }
+    }
+}
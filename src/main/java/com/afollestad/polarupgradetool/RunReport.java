@@ -0,0 +1,249 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records where the time of an upgrade went: the wall time, files and bytes of every phase and of the
+ * steps within them (e.g. the checkDiff and copy of JAVA_COPY, or each XML file migrated), and the
+ * files interceptors left out. The report is written into the project, next to its backup, as JSON,
+ * and optionally in the Prometheus text format, so runs can be compared across projects and tool
+ * versions.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class RunReport {
+
+    public static final String JSON_FILE = ".polar-report.json";
+    public static final String PROMETHEUS_FILE = ".polar-report.prom";
+
+    /**
+     * A timed part of a phase.
+     */
+    public static class Step {
+
+        public final UpgradeContext.Phase phase;
+        public final String name;
+        public final long nanos;
+        public final long files;
+        public final long bytes;
+        public final long skipped;
+
+        Step(UpgradeContext.Phase phase, String name, long nanos, long files, long bytes, long skipped) {
+            this.phase = phase;
+            this.name = name;
+            this.nanos = nanos;
+            this.files = files;
+            this.bytes = bytes;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Times a step of the current phase, from when it's created until {@link #end()}.
+     */
+    static class StepTimer {
+
+        private final UpgradeContext mCtx;
+        private final UpgradeContext.Phase mPhase;
+        private final String mName;
+        private final ProgressModel.Snapshot mBefore;
+        private final long mStart;
+
+        StepTimer(UpgradeContext ctx, UpgradeContext.Phase phase, String name) {
+            mCtx = ctx;
+            mPhase = phase;
+            mName = name;
+            mBefore = ctx.getProgress().snapshot(phase);
+            mStart = System.nanoTime();
+        }
+
+        /**
+         * Records the step with the files and bytes the phase counted while it ran.
+         */
+        void end() {
+            final ProgressModel.Snapshot after = mCtx.getProgress().snapshot(mPhase);
+            end(after.files - mBefore.files, after.bytes - mBefore.bytes);
+        }
+
+        /**
+         * Records the step with files and bytes it counted itself, e.g. files deleted or renamed.
+         */
+        void end(long files, long bytes) {
+            final long nanos = System.nanoTime() - mStart;
+            final long skipped = mCtx.getProgress().snapshot(mPhase).skipped - mBefore.skipped;
+            mCtx.addStep(new Step(mPhase, mName, nanos, files, bytes, skipped));
+        }
+    }
+
+    private final UpgradeContext mCtx;
+    private final boolean mSuccess;
+    private final long mStartedAt;
+    private final long mNanos;
+
+    /**
+     * @param startedAt When the upgrade started, in milliseconds since the epoch.
+     * @param nanos     How long the whole upgrade took.
+     */
+    RunReport(UpgradeContext ctx, boolean success, long startedAt, long nanos) {
+        mCtx = ctx;
+        mSuccess = success;
+        mStartedAt = startedAt;
+        mNanos = nanos;
+    }
+
+    /**
+     * @return The version in the tool's jar manifest, or "dev" when it's run from classes.
+     */
+    public static String toolVersion() {
+        final String version = RunReport.class.getPackage() != null ?
+                RunReport.class.getPackage().getImplementationVersion() : null;
+        return version != null ? version : "dev";
+    }
+
+    /**
+     * Writes the report into the project folder, and logs a warning rather than failing if it can't be.
+     */
+    void write(boolean prometheus) {
+        final File projectDir = mCtx.getProjectDir();
+        try {
+            writeFile(new File(projectDir, JSON_FILE), toJson());
+            if (prometheus)
+                writeFile(new File(projectDir, PROMETHEUS_FILE), toPrometheus());
+        } catch (IOException e) {
+            Main.LOG("[WARNING]: Failed to write the run report: %s", e.getMessage());
+        }
+    }
+
+    // Replaces the file rather than writing through it, in case it's linked into a snapshot
+    private static void writeFile(File file, String contents) throws IOException {
+        final File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(contents);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    String toJson() {
+        final ProgressModel progress = mCtx.getProgress();
+        final StringBuilder json = new StringBuilder(4096);
+        json.append("{\n  \"tool\": ").append(Util.jsonString(toolVersion()))
+                .append(",\n  \"java\": ").append(Util.jsonString(System.getProperty("java.version")))
+                .append(",\n  \"project\": ").append(Util.jsonString(mCtx.getProjectDir().getAbsolutePath()))
+                .append(",\n  \"app\": ").append(Util.jsonString(String.valueOf(mCtx.getAppName())))
+                .append(",\n  \"backup\": ").append(mCtx.getBackup() != null ? Util.jsonString(mCtx.getBackup()) : "null")
+                .append(",\n  \"startedAt\": \"").append(Instant.ofEpochMilli(mStartedAt))
+                .append("\",\n  \"success\": ").append(mSuccess)
+                .append(",\n  \"totalMs\": ").append(millis(mNanos));
+        if (mCtx.getCopyIndex() != null) {
+            json.append(",\n  \"filesWritten\": ").append(mCtx.getCopyIndex().writes())
+                    .append(",\n  \"filesUntouched\": ").append(mCtx.getCopyIndex().avoidedWrites());
+        }
+
+        json.append(",\n  \"phases\": [");
+        boolean first = true;
+        for (Map.Entry<UpgradeContext.Phase, Long> phase : mCtx.getPhaseTimes().entrySet()) {
+            final ProgressModel.Snapshot counts = progress.snapshot(phase.getKey());
+            json.append(first ? "\n" : ",\n").append("    {\"phase\": \"").append(phase.getKey())
+                    .append("\", \"ms\": ").append(millis(phase.getValue()));
+            appendCounts(json, counts.files, counts.bytes, counts.skipped, phase.getValue());
+            json.append('}');
+            first = false;
+        }
+        json.append("\n  ],\n  \"steps\": [");
+        first = true;
+        for (Step step : mCtx.getSteps()) {
+            json.append(first ? "\n" : ",\n").append("    {\"phase\": \"").append(step.phase)
+                    .append("\", \"step\": ").append(Util.jsonString(step.name))
+                    .append(", \"ms\": ").append(millis(step.nanos));
+            appendCounts(json, step.files, step.bytes, step.skipped, step.nanos);
+            json.append('}');
+            first = false;
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static void appendCounts(StringBuilder json, long files, long bytes, long skipped, long nanos) {
+        json.append(", \"files\": ").append(files)
+                .append(", \"bytes\": ").append(bytes)
+                .append(", \"skipped\": ").append(skipped);
+        if (bytes > 0 && nanos > 0)
+            json.append(", \"bytesPerSecond\": ").append((long) (bytes / (nanos / 1e9)));
+    }
+
+    String toPrometheus() {
+        final ProgressModel progress = mCtx.getProgress();
+        final String labels = String.format("project=%s,app=%s,tool=%s",
+                label(mCtx.getProjectDir().getAbsolutePath()), label(String.valueOf(mCtx.getAppName())), label(toolVersion()));
+        final StringBuilder prom = new StringBuilder(4096);
+        final List<String> run = Collections.singletonList(labels);
+        gauge(prom, "polar_upgrade_success", "Whether the last upgrade succeeded.", run,
+                Collections.singletonList(mSuccess ? 1 : 0));
+        gauge(prom, "polar_upgrade_started_timestamp_seconds", "When the last upgrade started.", run,
+                Collections.singletonList(mStartedAt / 1000));
+        gauge(prom, "polar_upgrade_duration_seconds", "Wall time of the last upgrade.", run,
+                Collections.singletonList(seconds(mNanos)));
+
+        final List<String> phaseLabels = new ArrayList<>();
+        final List<Object> phaseSeconds = new ArrayList<>();
+        final List<Object> phaseFiles = new ArrayList<>();
+        final List<Object> phaseBytes = new ArrayList<>();
+        final List<Object> phaseSkipped = new ArrayList<>();
+        for (Map.Entry<UpgradeContext.Phase, Long> phase : mCtx.getPhaseTimes().entrySet()) {
+            final ProgressModel.Snapshot counts = progress.snapshot(phase.getKey());
+            phaseLabels.add(String.format("%s,phase=%s", labels, label(phase.getKey().name().toLowerCase(Locale.ENGLISH))));
+            phaseSeconds.add(seconds(phase.getValue()));
+            phaseFiles.add(counts.files);
+            phaseBytes.add(counts.bytes);
+            phaseSkipped.add(counts.skipped);
+        }
+        gauge(prom, "polar_upgrade_phase_duration_seconds", "Wall time of each phase of the last upgrade.", phaseLabels, phaseSeconds);
+        gauge(prom, "polar_upgrade_phase_files", "Files processed by each phase of the last upgrade.", phaseLabels, phaseFiles);
+        gauge(prom, "polar_upgrade_phase_bytes", "Bytes processed by each phase of the last upgrade.", phaseLabels, phaseBytes);
+        gauge(prom, "polar_upgrade_phase_skipped", "Files and folders left out by each phase of the last upgrade.", phaseLabels, phaseSkipped);
+
+        final List<String> stepLabels = new ArrayList<>();
+        final List<Object> stepSeconds = new ArrayList<>();
+        final List<Object> stepFiles = new ArrayList<>();
+        final List<Object> stepBytes = new ArrayList<>();
+        for (Step step : mCtx.getSteps()) {
+            stepLabels.add(String.format("%s,phase=%s,step=%s", labels,
+                    label(step.phase.name().toLowerCase(Locale.ENGLISH)), label(step.name)));
+            stepSeconds.add(seconds(step.nanos));
+            stepFiles.add(step.files);
+            stepBytes.add(step.bytes);
+        }
+        gauge(prom, "polar_upgrade_step_duration_seconds", "Wall time of each step of the last upgrade.", stepLabels, stepSeconds);
+        gauge(prom, "polar_upgrade_step_files", "Files processed by each step of the last upgrade.", stepLabels, stepFiles);
+        gauge(prom, "polar_upgrade_step_bytes", "Bytes processed by each step of the last upgrade.", stepLabels, stepBytes);
+        return prom.toString();
+    }
+
+    private static void gauge(StringBuilder prom, String name, String help, List<String> labels, List<?> values) {
+        prom.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" gauge\n");
+        for (int i = 0; i < labels.size(); i++)
+            prom.append(name).append('{').append(labels.get(i)).append("} ").append(values.get(i)).append('\n');
+    }
+
+    // A quoted label value, escaped as the text format requires
+    private static String label(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,55 @@
+package com.afollestad.polarupgradetool;
+
+import com.afollestad.polarupgradetool.jfx.UICallback;
+
+/**
+ * A callback for upgrades run without the UI, e.g. from FleetUpgrade or UpgradePlanner. Output is
+ * already logged to the console, so this only remembers the first thing that went wrong.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class SilentCallback implements UICallback {
+
+    private volatile String mError;
+
+    /**
+     * @return The first error reported, or null if there was none.
+     */
+    String getError() {
+        return mError;
+    }
+
+    @Override
+    public void onProjectDetected(String applicationName, String applicationPackage, String applicationVersionName, String applicationVersionCode) {
+    }
+
+    @Override
+    public synchronized void onErrorOccurred(String errorMessage) {
+        if (mError == null) mError = errorMessage;
+    }
+
+    @Override
+    public void onArchiveDownloadStarted(String sizeStr) {
+    }
+
+    @Override
+    public void onArchiveDownloadProgress(String progressStr) {
+    }
+
+    @Override
+    public void onArchiveDownloadFailed(String errorMessage) {
+        onErrorOccurred(errorMessage);
+    }
+
+    @Override
+    public void onArchiveDownloadSuccess() {
+    }
+
+    @Override
+    public void onStatusUpdate(String statusMessage) {
+    }
+
+    @Override
+    public void onUpdateSuccessful() {
+    }
+}
@@ -0,0 +1,190 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Backs up a project by hard-linking every file into a snapshot folder inside of it, which takes one
+ * link per file no matter how large the files are, and doesn't take up any extra space. The snapshot
+ * shares its files' contents with the project, so the upgrade has to remove a file before writing it
+ * (see {@link FileUtil#detach(File)}), which leaves the snapshot with the old contents. Files that are
+ * renamed, deleted or replaced by a move are left alone in the snapshot as they are.
+ * <p>
+ * Only the latest snapshot is kept. Links are made, and the previous snapshot is removed, on the
+ * copy pool, since both take a system call per file.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class SnapshotBackup {
+
+    public static final String DEFAULT_FOLDER = ".polar-snapshot";
+
+    // Files linked or removed per task
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Thrown when files can't be hard-linked into the snapshot, e.g. because the file system doesn't
+     * support links. The partial snapshot has been removed by then.
+     */
+    static class LinksUnsupportedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LinksUnsupportedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private interface FileAction {
+        void run(Path file) throws IOException;
+    }
+
+    // Runs the action over a range of the files, splitting it up until it's one batch
+    private static class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> mFiles;
+        private final int mFrom;
+        private final int mTo;
+        private final FileAction mAction;
+        private final AtomicReference<IOException> mError;
+
+        BatchTask(List<Path> files, int from, int to, FileAction action, AtomicReference<IOException> error) {
+            mFiles = files;
+            mFrom = from;
+            mTo = to;
+            mAction = action;
+            mError = error;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > BATCH_SIZE) {
+                final int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new BatchTask(mFiles, mFrom, middle, mAction, mError),
+                        new BatchTask(mFiles, middle, mTo, mAction, mError));
+                return;
+            }
+            for (int i = mFrom; i < mTo && mError.get() == null; i++) {
+                try {
+                    mAction.run(mFiles.get(i));
+                } catch (IOException e) {
+                    mError.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the project's snapshot with one of its current state. Excluded folders, backup zips,
+     * the tool's own records and reports and the snapshot folder itself are left out.
+     *
+     * @return The number of files linked into the snapshot.
+     */
+    public static int take(File projectDir) throws IOException {
+        final Path root = projectDir.toPath();
+        final Path target = root.resolve(DEFAULT_FOLDER);
+        // Moved out of the way, and only removed once the new snapshot is complete
+        final Path previous = root.resolve(DEFAULT_FOLDER + ".old");
+        if (Files.exists(previous))
+            remove(previous);
+        if (Files.exists(target))
+            Files.move(target, previous);
+
+        // Folders are created during the walk, so that the files can be linked in any order after it
+        final List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (dir.equals(target) || dir.equals(previous) ||
+                            (!dir.equals(root) && ZipUtil.isExcludedFolder(dir.getFileName().toString())))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    Files.createDirectories(target.resolve(root.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.getFileName().toString().endsWith("-BACKUP.zip") &&
+                            !isMetadata(root.relativize(file).toString()))
+                        files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    throw exc;
+                }
+            });
+            forEach(files, file -> {
+                try {
+                    Files.createLink(target.resolve(root.relativize(file)), file);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    throw new LinksUnsupportedException(String.format("Unable to link %s: %s",
+                            root.relativize(file), e.getMessage()), e);
+                }
+            });
+        } catch (IOException e) {
+            remove(target);
+            throw e;
+        }
+
+        if (Files.exists(previous)) {
+            try {
+                remove(previous);
+            } catch (IOException e) {
+                // Left for the next snapshot to remove
+                Main.LOG("[WARNING]: Failed to remove the previous snapshot: %s", e.getMessage());
+            }
+        }
+        return files.size();
+    }
+
+    // Files the tool writes into the project about its runs, which aren't part of the project
+    private static boolean isMetadata(String path) {
+        return path.equals(BackupRestore.TOUCHED_FILE) || path.equals(RunReport.JSON_FILE) ||
+                path.equals(RunReport.PROMETHEUS_FILE);
+    }
+
+    private static void forEach(List<Path> files, FileAction action) throws IOException {
+        if (files.isEmpty()) return;
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        ParallelCopy.pool().invoke(new BatchTask(files, 0, files.size(), action, error));
+        if (error.get() != null)
+            throw error.get();
+    }
+
+    // Deletes a snapshot, its files in parallel and then its folders, deepest first
+    private static void remove(Path snapshot) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final List<Path> folders = new ArrayList<>();
+        Files.walkFileTree(snapshot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                folders.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        forEach(files, Files::delete);
+        for (Path folder : folders)
+            Files.delete(folder);
+    }
+
+    private SnapshotBackup() {
+    }
+}
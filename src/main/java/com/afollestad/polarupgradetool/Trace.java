@@ -0,0 +1,128 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.File;
+
+/**
+ * Marks the work done on single files as Java Flight Recorder events: every file copied or rewritten,
+ * deleted, zipped or unzipped, and every XML migration, with its path, size, duration and the code
+ * path it took. A slow upgrade can then be opened in JDK Mission Control and broken down by file.
+ * <p>
+ * The events themselves are defined in JfrTrace, which is only loaded on a JVM with Flight Recorder
+ * (8u262 and later, or 11 and later) and when Main.JFR_EVENTS is on. Spans are only made while a
+ * recording is running, e.g. one started with -XX:StartFlightRecording or by setting Main.JFR_RECORDING;
+ * otherwise {@link #begin(Op, File)} costs a volatile read and returns a span that does nothing.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class Trace {
+
+    public enum Op {
+        COPY,
+        // A text file copied through the package rewriter
+        REWRITE,
+        DELETE,
+        ZIP_ENTRY,
+        UNZIP_ENTRY,
+        XML_MIGRATION
+    }
+
+    public enum CodePath {
+        BINARY,
+        TEXT,
+        // Left out by an interceptor, or identical to what the copy index last wrote
+        SKIPPED,
+        // ZIP entries, written as they are or compressed
+        STORED,
+        DEFLATED,
+        FAILED
+    }
+
+    /**
+     * An operation on a single file, recorded when it ends.
+     */
+    interface Span {
+        /**
+         * @param path How the file was handled, or null when that doesn't apply, e.g. to a file deleted.
+         */
+        void end(long size, CodePath path);
+    }
+
+    /**
+     * Implemented by JfrTrace, kept apart so that this class loads on JVMs without Flight Recorder.
+     */
+    interface Backend {
+        boolean isRecording();
+
+        Span begin(Op op, String path);
+
+        void startRecording(File destination) throws Exception;
+
+        void dumpRecording() throws Exception;
+    }
+
+    private static final Span NONE = (size, path) -> {
+    };
+
+    private static final Backend BACKEND = loadBackend();
+
+    private static Backend loadBackend() {
+        if (!Main.JFR_EVENTS) return null;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return (Backend) Class.forName("com.afollestad.polarupgradetool.JfrTrace").getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // No Flight Recorder, or it's disabled in this JVM
+            return null;
+        }
+    }
+
+    /**
+     * @return True if a Flight Recorder recording is running, in which case spans are recorded.
+     */
+    static boolean isRecording() {
+        return BACKEND != null && BACKEND.isRecording();
+    }
+
+    /**
+     * Starts timing an operation on a file. The span must be ended, also when the operation fails.
+     */
+    static Span begin(Op op, File file) {
+        if (BACKEND == null || !BACKEND.isRecording()) return NONE;
+        return BACKEND.begin(op, file.getPath());
+    }
+
+    /**
+     * Starts a recording of the tool's events to be written to Main.JFR_RECORDING, if it's set and
+     * the recording isn't running yet. It keeps running until the process exits.
+     */
+    static synchronized void startRecording() {
+        if (Main.JFR_RECORDING == null) return;
+        if (BACKEND == null) {
+            Main.LOG("[WARNING]: Flight Recorder isn't available in this JVM, %s won't be written.",
+                    Main.JFR_RECORDING.getAbsolutePath());
+            return;
+        }
+        try {
+            BACKEND.startRecording(Main.JFR_RECORDING);
+        } catch (Exception e) {
+            Main.LOG("[WARNING]: Unable to start a flight recording: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes what the recording started by {@link #startRecording()} has recorded so far, replacing
+     * what was written before.
+     */
+    static synchronized void dumpRecording() {
+        if (Main.JFR_RECORDING == null || BACKEND == null) return;
+        try {
+            BACKEND.dumpRecording();
+        } catch (Exception e) {
+            Main.LOG("[WARNING]: Unable to write the flight recording to %s: %s",
+                    Main.JFR_RECORDING.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private Trace() {
+    }
+}
@@ -9,41 +9,143 @@ import java.util.zip.ZipInputStream;
  */
 class UnzipUtil {
 
-    private static final int BUFFER_SIZE = 4096;
+    public static void unzip(String zipFilePath, String destDirectory) throws IOException {
+        unzip(zipFilePath, destDirectory, null);
+    }
+
+    /**
+     * Counts the bytes of the archive read, out of its length, and the files extracted, in the progress
+     * of the current phase.
+     */
+    public static void unzip(String zipFilePath, String destDirectory, ProgressModel progress) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(zipFilePath);
+            if (progress == null) {
+                unzip(is, destDirectory, null);
+                return;
+            }
+            final long length = new File(zipFilePath).length();
+            progress.addTotal(0, length);
+            final CountingInputStream counting = new CountingInputStream(is, progress);
+            is = counting;
+            unzip(is, destDirectory, progress);
+            // The central directory at the end isn't read, but the archive is done with all the same
+            progress.addDone(0, length - counting.mRead);
+        } finally {
+            Util.closeQuietely(is);
+        }
+    }
 
+    public static void unzip(InputStream in, String destDirectory) throws IOException {
+        unzip(in, destDirectory, null);
+    }
+
+    /**
+     * Extracts entries as they are read from the stream, which may still be arriving over the network.
+     * A stream that ends partway through an entry results in an EOFException. Files extracted are
+     * counted in the progress of the current phase, when one is given.
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static void unzip(String zipFilePath, String destDirectory) throws IOException {
+    public static void unzip(InputStream in, String destDirectory, ProgressModel progress) throws IOException {
         File destDir = new File(destDirectory);
         if (!destDir.exists())
-            destDir.mkdir();
-        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFilePath));
-        ZipEntry entry = zipIn.getNextEntry();
-        // iterates over entries in the zip file
-        while (entry != null) {
-            String filePath = destDirectory + File.separator + entry.getName();
-            if (!entry.isDirectory()) {
-                // if the entry is a file, extracts it
-                extractFile(zipIn, filePath);
-            } else {
-                // if the entry is a directory, make the directory
-                File dir = new File(filePath);
-                dir.mkdir();
+            destDir.mkdirs();
+        final String destPath = destDir.getCanonicalPath() + File.separator;
+        ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(in, BufferPool.BUFFER_SIZE));
+        try {
+            ZipEntry entry = zipIn.getNextEntry();
+            // iterates over entries in the zip file
+            while (entry != null) {
+                String filePath = destDirectory + File.separator + entry.getName();
+                if (!new File(filePath).getCanonicalPath().startsWith(destPath))
+                    throw new IOException("Archive entry " + entry.getName() + " points outside of " + destDirectory);
+                if (!entry.isDirectory()) {
+                    // if the entry is a file, extracts it
+                    new File(filePath).getParentFile().mkdirs();
+                    final Trace.Span span = Trace.begin(Trace.Op.UNZIP_ENTRY, new File(filePath));
+                    long size = -1;
+                    try {
+                        size = extractFile(zipIn, filePath);
+                    } finally {
+                        span.end(Math.max(size, 0), size < 0 ? Trace.CodePath.FAILED :
+                                entry.getMethod() == ZipEntry.DEFLATED ? Trace.CodePath.DEFLATED : Trace.CodePath.STORED);
+                    }
+                    // Keeps unchanged upstream files recognizable by size and time between runs
+                    if (entry.getTime() != -1)
+                        new File(filePath).setLastModified(entry.getTime());
+                    if (progress != null)
+                        progress.addDone(1, 0);
+                } else {
+                    // if the entry is a directory, make the directory
+                    File dir = new File(filePath);
+                    dir.mkdirs();
+                }
+                zipIn.closeEntry();
+                entry = zipIn.getNextEntry();
             }
-            zipIn.closeEntry();
-            entry = zipIn.getNextEntry();
+        } finally {
+            Util.closeQuietely(zipIn);
+        }
+    }
+
+    // Counts the bytes read from the archive as done
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final ProgressModel mProgress;
+        long mRead;
+
+        CountingInputStream(InputStream in, ProgressModel progress) {
+            super(in);
+            mProgress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            if (skipped > 0) count(skipped);
+            return skipped;
+        }
+
+        private void count(long bytes) {
+            mRead += bytes;
+            mProgress.addDone(0, bytes);
         }
-        zipIn.close();
     }
 
-    private static void extractFile(ZipInputStream zipIn, String filePath) throws IOException {
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePath));
-        byte[] bytesIn = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = zipIn.read(bytesIn)) != -1)
-            bos.write(bytesIn, 0, read);
-        bos.close();
+    // Returns the number of bytes extracted
+    private static long extractFile(ZipInputStream zipIn, String filePath) throws IOException {
+        // The pooled buffer is large enough that wrapping the file in a BufferedOutputStream only adds a copy
+        final byte[] bytesIn = BufferPool.acquire();
+        final OutputStream os = new FileOutputStream(filePath);
+        long size = 0;
+        try {
+            int read;
+            while ((read = zipIn.read(bytesIn)) != -1) {
+                os.write(bytesIn, 0, read);
+                size += read;
+            }
+            return size;
+        } finally {
+            os.close();
+            BufferPool.release(bytesIn);
+        }
     }
 
     private UnzipUtil() {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,220 @@
+package com.afollestad.polarupgradetool;
+
+import com.afollestad.polarupgradetool.jfx.UICallback;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the state of a single project upgrade, so that several upgrades can run in the same process.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class UpgradeContext {
+
+    /**
+     * The steps of an upgrade, in the order they run. When the archive is extracted while it
+     * downloads, extraction is part of DOWNLOAD.
+     */
+    public enum Phase {
+        DETECT, BACKUP, DOWNLOAD, EXTRACT, MANIFEST, GRADLE, LICENSING, JAVA_COPY, RES_COPY, XML_MIGRATION
+    }
+
+    private final File mProjectDir;
+    private final UICallback mUiCallback;
+
+    private File mExtractedRoot;
+    private CopyIndex mCopyIndex;
+    private boolean mUpstreamShared;
+    private boolean mSnapshotLinked;
+    private String mBackup;
+    // Paths in the project that were written, renamed or deleted, relative to it
+    private final Set<String> mTouched = ConcurrentHashMap.newKeySet();
+
+    private String mPackage;
+    private String mAppName;
+    private String mVersionName;
+    private String mVersionCode;
+
+    private final EnumMap<Phase, Long> mPhaseNanos = new EnumMap<>(Phase.class);
+    private final ProgressModel mProgress = new ProgressModel();
+    // Added to by the XML migrations concurrently
+    private final List<RunReport.Step> mSteps = Collections.synchronizedList(new ArrayList<>());
+    private Phase mPhase;
+    private long mPhaseStart;
+
+    // Last folder logged by FileUtil.copyFolder, so each folder is only logged once
+    File lastFolder;
+
+    public UpgradeContext(File projectDir, UICallback uiCallback) {
+        mProjectDir = projectDir;
+        mUiCallback = uiCallback;
+    }
+
+    /**
+     * Uses an already downloaded and extracted copy of Polar's latest code instead of downloading it
+     * again. The tree is only read from, so it can be shared by several upgrades at once.
+     */
+    public UpgradeContext setSharedUpstream(File extractedRoot) {
+        mExtractedRoot = extractedRoot;
+        mUpstreamShared = true;
+        return this;
+    }
+
+    public File getProjectDir() {
+        return mProjectDir;
+    }
+
+    public UICallback getUiCallback() {
+        return mUiCallback;
+    }
+
+    public File getExtractedRoot() {
+        return mExtractedRoot;
+    }
+
+    void setExtractedRoot(File extractedRoot) {
+        mExtractedRoot = extractedRoot;
+    }
+
+    CopyIndex getCopyIndex() {
+        return mCopyIndex;
+    }
+
+    void setCopyIndex(CopyIndex copyIndex) {
+        mCopyIndex = copyIndex;
+    }
+
+    public boolean isUpstreamShared() {
+        return mUpstreamShared;
+    }
+
+    /**
+     * @return True if the project's files are hard-linked into a snapshot, so they have to be
+     * detached before they're written to.
+     */
+    boolean isSnapshotLinked() {
+        return mSnapshotLinked;
+    }
+
+    void setSnapshotLinked(boolean snapshotLinked) {
+        mSnapshotLinked = snapshotLinked;
+    }
+
+    /**
+     * @return The name of the backup ZIP or snapshot folder, or of the incremental backup; null if the
+     * project hasn't been backed up yet.
+     */
+    String getBackup() {
+        return mBackup;
+    }
+
+    void setBackup(String backup) {
+        mBackup = backup;
+    }
+
+    /**
+     * Records that a file or folder in the project is about to be written, renamed or deleted, so that
+     * it can be restored from the backup. Safe to call from several threads at once.
+     */
+    void touch(File file) {
+        final Path root = mProjectDir.getAbsoluteFile().toPath();
+        final Path path = file.getAbsoluteFile().toPath();
+        if (path.startsWith(root) && !path.equals(root))
+            mTouched.add(ZipUtil.entryName(root, path));
+    }
+
+    Set<String> getTouched() {
+        return mTouched;
+    }
+
+    void setProjectInfo(String appName, String packageName, String versionName, String versionCode) {
+        mAppName = appName;
+        mPackage = packageName;
+        mVersionName = versionName;
+        mVersionCode = versionCode;
+    }
+
+    public String getPackage() {
+        return mPackage;
+    }
+
+    public String getAppName() {
+        return mAppName;
+    }
+
+    public String getVersionName() {
+        return mVersionName;
+    }
+
+    public String getVersionCode() {
+        return mVersionCode;
+    }
+
+    /**
+     * Ends the current phase, if any, and starts timing the given one.
+     */
+    void beginPhase(Phase phase) {
+        endPhase();
+        mPhase = phase;
+        mPhaseStart = System.nanoTime();
+        mProgress.begin(phase);
+    }
+
+    void endPhase() {
+        if (mPhase == null) return;
+        mPhaseNanos.merge(mPhase, System.nanoTime() - mPhaseStart, Long::sum);
+        mPhase = null;
+        mProgress.begin(null);
+    }
+
+    /**
+     * Starts timing a step of the current phase, for the run report.
+     */
+    RunReport.StepTimer beginStep(String name) {
+        return new RunReport.StepTimer(this, mPhase, name);
+    }
+
+    void addStep(RunReport.Step step) {
+        mSteps.add(step);
+    }
+
+    /**
+     * @return The steps timed within the phases, in the order they ended.
+     */
+    public List<RunReport.Step> getSteps() {
+        synchronized (mSteps) {
+            return new ArrayList<>(mSteps);
+        }
+    }
+
+    /**
+     * @return The files and bytes done by the current phase, out of its totals.
+     */
+    public ProgressModel getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * @return The time spent in each phase that ran, in nanoseconds, in the order the phases run.
+     */
+    public Map<Phase, Long> getPhaseTimes() {
+        return new EnumMap<>(mPhaseNanos);
+    }
+
+    public String cleanupPath(String from) {
+        if (from.startsWith(mProjectDir.getAbsolutePath())) {
+            from = from.substring(mProjectDir.getAbsolutePath().length());
+        } else if (mExtractedRoot != null && from.startsWith(mExtractedRoot.getAbsolutePath())) {
+            from = from.substring(mExtractedRoot.getAbsolutePath().length());
+        }
+        return from;
+    }
+}
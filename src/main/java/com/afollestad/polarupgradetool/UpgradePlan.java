@@ -0,0 +1,218 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Everything an upgrade of a project would do, worked out without writing anything: files deleted
+ * because they're gone from the latest code, files created, overwritten or left as they are, the
+ * renames of old resource files, and the XML values carried over into the latest resource files.
+ * <p>
+ * Every action records hashes of the files it reads and of what it would write, so a plan can be
+ * saved, reviewed, and later applied exactly as it was made; see {@link UpgradePlanner#apply}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class UpgradePlan {
+
+    private static final String HEADER = "# polar-upgrade-plan 1";
+    private static final String NONE = "-";
+
+    public enum Kind {
+        // Backs up the project, with the backup mode as the detail
+        BACKUP,
+        // Deletes a file or folder that no longer exists in the latest code
+        DELETE,
+        // Renames a file to the source path (or deletes it, when the source is absent)
+        RENAME,
+        // Copies a file from the latest code that the project doesn't have yet
+        CREATE,
+        // Copies a file from the latest code over a different one in the project
+        OVERWRITE,
+        // A file from the latest code that would come out identical to the project's copy
+        UNCHANGED,
+        // A blacklisted file or folder of the latest code, which isn't copied
+        IGNORED,
+        // Writes the latest build.gradle with the project's info put in
+        MIGRATE_GRADLE,
+        // Writes the latest XML file with the project's values carried over, named in the detail
+        MIGRATE_XML
+    }
+
+    public static class Action {
+
+        public final Kind kind;
+        public final UpgradeContext.Phase phase;
+        // Path in the project, relative to its folder
+        public final String path;
+        // Path in the latest code relative to its root, or the new path of a rename
+        public final String source;
+        // Hash of the project's file as it is now, null if it's absent or a folder
+        public final String before;
+        // Hash of the latest code's file
+        public final String sourceHash;
+        // Hash of what would be written
+        public final String after;
+        public final String detail;
+
+        Action(Kind kind, UpgradeContext.Phase phase, String path, String source, String before,
+               String sourceHash, String after, String detail) {
+            this.kind = kind;
+            this.phase = phase;
+            this.path = path;
+            this.source = source;
+            this.before = before;
+            this.sourceHash = sourceHash;
+            this.after = after;
+            this.detail = detail;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Action)) return false;
+            final Action other = (Action) o;
+            return kind == other.kind && phase == other.phase && path.equals(other.path) &&
+                    Objects.equals(source, other.source) && Objects.equals(before, other.before) &&
+                    Objects.equals(sourceHash, other.sourceHash) && Objects.equals(after, other.after) &&
+                    Objects.equals(detail, other.detail);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, phase, path, source, before, sourceHash, after, detail);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(kind.name()).append(' ').append(path);
+            if (kind == Kind.RENAME) sb.append(" -> ").append(source != null ? source : "(deleted)");
+            if (kind == Kind.MIGRATE_XML) {
+                sb.append(" (carries over ").append(detail.isEmpty() ? 0 : detail.split(",").length).append(" values)");
+            } else if (detail != null) {
+                sb.append(" (").append(detail).append(')');
+            }
+            return sb.toString();
+        }
+
+        private String toLine() {
+            return String.join("\t", kind.name(), phase.name(), path, orNone(source), orNone(before),
+                    orNone(sourceHash), orNone(after), orNone(detail));
+        }
+
+        private static Action fromLine(String line) throws IOException {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 8)
+                throw new IOException("Malformed plan entry: " + line);
+            try {
+                return new Action(Kind.valueOf(fields[0]), UpgradeContext.Phase.valueOf(fields[1]), fields[2],
+                        orNull(fields[3]), orNull(fields[4]), orNull(fields[5]), orNull(fields[6]), orNull(fields[7]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed plan entry: " + line);
+            }
+        }
+    }
+
+    private final String mProject;
+    private final String mPackage;
+    private final List<Action> mActions;
+
+    UpgradePlan(String project, String packageName, List<Action> actions) {
+        mProject = project;
+        mPackage = packageName;
+        mActions = Collections.unmodifiableList(new ArrayList<>(actions));
+    }
+
+    /**
+     * @return The absolute path of the project the plan was made for.
+     */
+    public String getProject() {
+        return mProject;
+    }
+
+    public String getPackage() {
+        return mPackage;
+    }
+
+    /**
+     * @return The actions in the order they'd be carried out.
+     */
+    public List<Action> getActions() {
+        return mActions;
+    }
+
+    public Map<Kind, Integer> counts() {
+        final EnumMap<Kind, Integer> counts = new EnumMap<>(Kind.class);
+        for (Action action : mActions)
+            counts.merge(action.kind, 1, Integer::sum);
+        return counts;
+    }
+
+    /**
+     * @return A description of the first way this plan differs from the other, or null if they're the same.
+     */
+    public String firstDifference(UpgradePlan other) {
+        if (!mPackage.equals(other.mPackage))
+            return String.format("the package changed from %s to %s", mPackage, other.mPackage);
+        final int common = Math.min(mActions.size(), other.mActions.size());
+        for (int i = 0; i < common; i++) {
+            final Action a = mActions.get(i);
+            final Action b = other.mActions.get(i);
+            if (a.equals(b)) continue;
+            if (a.path.equals(b.path) && a.kind == b.kind)
+                return String.format("%s changed", a.path);
+            return String.format("expected %s, but the project now needs %s", a, b);
+        }
+        if (mActions.size() > common)
+            return String.format("%s is no longer needed", mActions.get(common));
+        if (other.mActions.size() > common)
+            return String.format("%s wasn't planned", other.mActions.get(common));
+        return null;
+    }
+
+    public void save(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            writer.write("# project " + mProject + "\n");
+            writer.write("# package " + mPackage + "\n");
+            for (Action action : mActions)
+                writer.write(action.toLine() + "\n");
+        }
+    }
+
+    public static UpgradePlan load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine()))
+                throw new IOException(file + " isn't an upgrade plan.");
+            String project = null;
+            String packageName = null;
+            final List<Action> actions = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("# project ")) {
+                    project = line.substring("# project ".length());
+                } else if (line.startsWith("# package ")) {
+                    packageName = line.substring("# package ".length());
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    actions.add(Action.fromLine(line));
+                }
+            }
+            if (project == null || packageName == null)
+                throw new IOException(file + " is missing its project or package.");
+            return new UpgradePlan(project, packageName, actions);
+        }
+    }
+
+    private static String orNone(String value) {
+        return value != null ? value : NONE;
+    }
+
+    private static String orNull(String value) {
+        return NONE.equals(value) ? null : value;
+    }
+}
@@ -0,0 +1,461 @@
+package com.afollestad.polarupgradetool;
+
+import com.afollestad.polarupgradetool.jfx.UICallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Works out an {@link UpgradePlan} by walking the project and Polar's latest code the same way
+ * {@link Main#upgrade(UpgradeContext)} does, without writing to the project. The copied output of
+ * every file is produced in memory and hashed on the copy threads, so planning costs about as much
+ * as reading both trees once.
+ * <p>
+ * A saved plan is applied by planning again and checking that nothing changed, then carrying out
+ * exactly the planned actions.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class UpgradePlanner {
+
+    // A file of the latest code to be copied, hashed on the pool
+    private static class Copy {
+
+        final File source;
+        final File destination;
+        final FileUtil.CopyInterceptor interceptor;
+        final int index;
+        String before;
+        String sourceHash;
+        String after;
+
+        Copy(File source, File destination, FileUtil.CopyInterceptor interceptor, int index) {
+            this.source = source;
+            this.destination = destination;
+            this.interceptor = interceptor;
+            this.index = index;
+        }
+    }
+
+    private static class HashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Copy mCopy;
+        private final AtomicReference<Exception> mError;
+
+        HashTask(Copy copy, AtomicReference<Exception> error) {
+            mCopy = copy;
+            mError = error;
+        }
+
+        @Override
+        protected void compute() {
+            if (mError.get() != null) return;
+            try {
+                final File src = mCopy.source;
+                mCopy.sourceHash = CopyIndex.hash(src);
+                // Mirrors FileUtil.copyFile
+                final boolean rewrite = mCopy.interceptor != null && !FileClassifier.isBinary(src) &&
+                        (mCopy.interceptor.rewriter() == null || !mCopy.interceptor.rewriter().isEmpty());
+                mCopy.after = rewrite ? CopyIndex.hash(FileUtil.renderText(src, mCopy.interceptor)) : mCopy.sourceHash;
+                if (mCopy.destination.isFile())
+                    mCopy.before = CopyIndex.hash(mCopy.destination);
+            } catch (Exception e) {
+                mError.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private final UpgradeContext ctx;
+    private final File mProjectDir;
+    private final File mLatestDir;
+    private final List<UpgradePlan.Action> mActions = new ArrayList<>();
+    // Copies are hashed all at once at the end, then their actions are filled in
+    private final List<Copy> mCopies = new ArrayList<>();
+    // Project files that are renamed or deleted before the resources are compared
+    private final Set<String> mMoved = new HashSet<>();
+
+    private UpgradePlanner(UpgradeContext ctx) {
+        this.ctx = ctx;
+        mProjectDir = ctx.getProjectDir();
+        mLatestDir = ctx.getExtractedRoot();
+    }
+
+    /**
+     * Plans the upgrade of a project whose info was detected and whose latest code was extracted.
+     */
+    static UpgradePlan plan(UpgradeContext ctx) throws Exception {
+        return new UpgradePlanner(ctx).build();
+    }
+
+    private UpgradePlan build() throws Exception {
+        final ByteRewriter packageRewriter = new ByteRewriter("com.afollestad.polar", ctx.getPackage());
+        final FileUtil.CopyInterceptor packageInterceptor = Main.packageInterceptor(ctx, packageRewriter, false);
+
+        add(UpgradePlan.Kind.BACKUP, UpgradeContext.Phase.BACKUP, "", null, null, null, null, Main.BACKUP_MODE.name());
+
+        planCopy(UpgradeContext.Phase.MANIFEST, new File(mLatestDir, Main.MANIFEST_FILE_PATH),
+                new File(mProjectDir, Main.MANIFEST_FILE_PATH), packageInterceptor);
+
+        final File projectGradle = new File(mProjectDir, Main.GRADLE_FILE_PATH);
+        final File latestGradle = new File(mLatestDir, Main.GRADLE_FILE_PATH);
+        add(UpgradePlan.Kind.MIGRATE_GRADLE, UpgradeContext.Phase.GRADLE, projectGradle, latestGradle,
+                hashIfFile(projectGradle), CopyIndex.hash(latestGradle),
+                CopyIndex.hash(new GradleMigrator(ctx, projectGradle, latestGradle).render()), null);
+
+        planCopy(UpgradeContext.Phase.LICENSING, new File(mLatestDir, Main.LICENSING_MODULE_ROOT),
+                new File(mProjectDir, Main.LICENSING_MODULE_ROOT), Main.VERBATIM_INTERCEPTOR);
+
+        final File latestJava = Util.skipPackage(new File(mLatestDir, Main.JAVA_FOLDER_PATH));
+        final File projectJava = Util.skipPackage(new File(mProjectDir, Main.JAVA_FOLDER_PATH));
+        planDeletions(UpgradeContext.Phase.JAVA_COPY, projectJava, latestJava);
+        planCopy(UpgradeContext.Phase.JAVA_COPY, latestJava, projectJava, packageInterceptor);
+
+        final File projectValues = new File(mProjectDir, Main.VALUES_FOLDER_PATH);
+        final File latestValues = new File(mLatestDir, Main.VALUES_FOLDER_PATH);
+        final File changelogSource = planRename(new File(projectValues, "changelog.xml"), new File(projectValues, "dev_changelog.xml"));
+        final File customizationSource = planRename(new File(projectValues, "dev_options.xml"), new File(projectValues, "dev_customization.xml"));
+        planDeletions(UpgradeContext.Phase.RES_COPY, new File(mProjectDir, Main.RES_FOLDER_PATH), new File(mLatestDir, Main.RES_FOLDER_PATH));
+        planCopy(UpgradeContext.Phase.RES_COPY, new File(mLatestDir, Main.RES_FOLDER_PATH),
+                new File(mProjectDir, Main.RES_FOLDER_PATH), packageInterceptor);
+
+        planMigration(new File(projectValues, "strings.xml"), new File(latestValues, "strings.xml"), null);
+        planMigration(new File(projectValues, "dev_about.xml"), new File(latestValues, "dev_about.xml"), null);
+        final File projectChangelog = new File(projectValues, "dev_changelog.xml");
+        final File latestChangelog = new File(latestValues, "dev_changelog.xml");
+        if (changelogSource == null && !projectChangelog.exists()) {
+            // The latest changelog is copied in first, and then migrated into itself
+            planCopy(UpgradeContext.Phase.XML_MIGRATION, latestChangelog, projectChangelog, null);
+            planMigration(projectChangelog, latestChangelog, latestChangelog);
+        } else {
+            planMigration(projectChangelog, latestChangelog, changelogSource);
+        }
+        planMigration(new File(projectValues, "dev_customization.xml"), new File(latestValues, "dev_customization.xml"), customizationSource);
+        planMigration(new File(projectValues, "dev_theming.xml"), new File(latestValues, "dev_theming.xml"), null);
+
+        hashCopies();
+        return new UpgradePlan(mProjectDir.getAbsolutePath(), ctx.getPackage(), mActions);
+    }
+
+    // Mirrors FileUtil.copyFolder; the copy's action is filled in once it's hashed
+    private void planCopy(UpgradeContext.Phase phase, File source, File destination, FileUtil.CopyInterceptor interceptor) {
+        if (interceptor != null && interceptor.skip(source)) {
+            add(UpgradePlan.Kind.IGNORED, phase, destination, source, null, null, null, null);
+            return;
+        }
+        if (source.isDirectory()) {
+            final String[] names = source.list();
+            if (names == null) return;
+            // Sorted, so that plans of the same trees are always the same
+            Arrays.sort(names);
+            for (String name : names)
+                planCopy(phase, new File(source, name), new File(destination, name), interceptor);
+        } else if (source.exists()) {
+            mCopies.add(new Copy(source, destination, interceptor, mActions.size()));
+            add(UpgradePlan.Kind.CREATE, phase, destination, source, null, null, null, null);
+        }
+    }
+
+    // Mirrors FileUtil.checkDiff
+    private void planDeletions(UpgradeContext.Phase phase, File project, File latest) throws IOException {
+        if (Main.isBlacklisted(project) || mMoved.contains(relative(mProjectDir, project)))
+            return;
+        if (project.exists() && !latest.exists()) {
+            if (project.isDirectory()) {
+                add(UpgradePlan.Kind.DELETE, phase, project, null, null, null, null, countFiles(project) + " files");
+            } else {
+                add(UpgradePlan.Kind.DELETE, phase, project, null, CopyIndex.hash(project), null, null, null);
+            }
+        } else if (project.isDirectory()) {
+            final String[] names = project.list();
+            if (names == null) return;
+            Arrays.sort(names);
+            for (String name : names)
+                planDeletions(phase, new File(project, name), new File(latest, name));
+        }
+    }
+
+    /**
+     * Mirrors the renames of changelog.xml and dev_options.xml in Main.upgrade.
+     *
+     * @return The file that will be renamed to the new name, or null.
+     */
+    private File planRename(File from, File to) throws IOException {
+        if (!from.exists()) return null;
+        mMoved.add(relative(mProjectDir, from));
+        if (to.exists()) {
+            // The new file is already used, the old one is only deleted
+            add(UpgradePlan.Kind.RENAME, UpgradeContext.Phase.RES_COPY, from, null, CopyIndex.hash(from), null, null, null);
+            return null;
+        }
+        final String hash = CopyIndex.hash(from);
+        mActions.add(new UpgradePlan.Action(UpgradePlan.Kind.RENAME, UpgradeContext.Phase.RES_COPY,
+                relative(mProjectDir, from), relative(mProjectDir, to), hash, null, hash, null));
+        return from;
+    }
+
+    /**
+     * @param renamedFrom The file that will have been renamed to the project file by then, if any.
+     */
+    private void planMigration(File project, File latest, File renamedFrom) throws IOException {
+        final File current = renamedFrom != null ? renamedFrom : project;
+        if (!current.exists())
+            throw new IOException(ctx.cleanupPath(project.getAbsolutePath()) + " doesn't exist.");
+        if (!latest.exists())
+            throw new IOException(ctx.cleanupPath(latest.getAbsolutePath()) + " doesn't exist.");
+        final List<String> names = new XmlMigrator(ctx, project, latest).carriedOverNames(current);
+        // A changelog copied in from the latest code has no hash of its own yet
+        final String before = current.equals(latest) ? null : CopyIndex.hash(current);
+        add(UpgradePlan.Kind.MIGRATE_XML, UpgradeContext.Phase.XML_MIGRATION, project, latest,
+                before, CopyIndex.hash(latest), null, String.join(",", names));
+    }
+
+    private void hashCopies() throws Exception {
+        if (mCopies.isEmpty()) return;
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final List<HashTask> tasks = new ArrayList<>(mCopies.size());
+        for (Copy copy : mCopies)
+            tasks.add(new HashTask(copy, error));
+        ParallelCopy.pool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        if (error.get() != null) throw error.get();
+
+        for (Copy copy : mCopies) {
+            final UpgradePlan.Action planned = mActions.get(copy.index);
+            final UpgradePlan.Kind kind;
+            if (copy.before == null && !copy.destination.exists()) {
+                kind = UpgradePlan.Kind.CREATE;
+            } else if (copy.after.equals(copy.before)) {
+                kind = UpgradePlan.Kind.UNCHANGED;
+            } else {
+                kind = UpgradePlan.Kind.OVERWRITE;
+            }
+            mActions.set(copy.index, new UpgradePlan.Action(kind, planned.phase, planned.path, planned.source,
+                    copy.before, copy.sourceHash, copy.after, null));
+        }
+    }
+
+    private void add(UpgradePlan.Kind kind, UpgradeContext.Phase phase, File project, File latest,
+                     String before, String sourceHash, String after, String detail) {
+        add(kind, phase, relative(mProjectDir, project), latest != null ? relative(mLatestDir, latest) : null,
+                before, sourceHash, after, detail);
+    }
+
+    private void add(UpgradePlan.Kind kind, UpgradeContext.Phase phase, String path, String source,
+                     String before, String sourceHash, String after, String detail) {
+        mActions.add(new UpgradePlan.Action(kind, phase, path, source, before, sourceHash, after, detail));
+    }
+
+    private static String hashIfFile(File file) throws IOException {
+        return file.isFile() ? CopyIndex.hash(file) : null;
+    }
+
+    private static int countFiles(File dir) {
+        final File[] contents = dir.listFiles();
+        if (contents == null) return 1;
+        int count = 0;
+        for (File file : contents)
+            count += file.isDirectory() ? countFiles(file) : 1;
+        return count;
+    }
+
+    // Relative paths use forward slashes, so plans can be moved between platforms
+    private static String relative(File root, File file) {
+        final String rootPath = root.getAbsolutePath();
+        final String path = file.getAbsolutePath();
+        if (!path.startsWith(rootPath)) return path;
+        String result = path.substring(rootPath.length()).replace(File.separatorChar, '/');
+        if (result.startsWith("/")) result = result.substring(1);
+        return result;
+    }
+
+    /**
+     * Carries out a plan made earlier, after checking that the project and Polar's latest code are
+     * still exactly what they were when it was made. The context must have the project's info and
+     * the extracted latest code, as for {@link #plan(UpgradeContext)}.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static boolean apply(UpgradeContext ctx, UpgradePlan plan) {
+        final UICallback uiCallback = ctx.getUiCallback();
+        final UpgradePlan current;
+        try {
+            current = plan(ctx);
+        } catch (Exception e) {
+            Main.ERROR(uiCallback, "Failed to check the upgrade plan: %s", e.getMessage());
+            return false;
+        }
+        final String difference = plan.firstDifference(current);
+        if (difference != null) {
+            Main.ERROR(uiCallback, "The project or Polar's latest code changed since the plan was made: %s", difference);
+            return false;
+        }
+
+        final File projectDir = ctx.getProjectDir();
+        final File latestDir = ctx.getExtractedRoot();
+        final FileUtil.CopyInterceptor packageInterceptor = Main.packageInterceptor(ctx,
+                new ByteRewriter("com.afollestad.polar", ctx.getPackage()), false);
+        // The files to copy are collected phase by phase, and copied together on the copy pool before
+        // anything else is done to the project, so the plan's order is kept
+        final List<File> sources = new ArrayList<>();
+        final List<File> targets = new ArrayList<>();
+        UpgradeContext.Phase phase = null;
+        try {
+            for (UpgradePlan.Action action : plan.getActions()) {
+                final boolean copy = action.kind == UpgradePlan.Kind.CREATE || action.kind == UpgradePlan.Kind.OVERWRITE ||
+                        action.kind == UpgradePlan.Kind.UNCHANGED;
+                if (action.phase != phase || !(copy || action.kind == UpgradePlan.Kind.IGNORED)) {
+                    if (!copyFiles(ctx, phase, sources, targets, packageInterceptor)) return false;
+                }
+                if (action.phase != phase) {
+                    ctx.beginPhase(action.phase);
+                    phase = action.phase;
+                }
+                final File target = new File(projectDir, action.path);
+                final File source = action.source != null ? new File(latestDir, action.source) : null;
+                try {
+                    switch (action.kind) {
+                        case BACKUP:
+                            if (!Main.backupProject(ctx)) return false;
+                            break;
+                        case DELETE:
+                            Main.LOG("[DELETE]: %s", action.path);
+                            ctx.touch(target);
+                            if (target.isDirectory()) {
+                                FileUtil.wipe(target);
+                            } else {
+                                target.delete();
+                            }
+                            break;
+                        case RENAME:
+                            ctx.touch(target);
+                            if (action.source == null) {
+                                Main.LOG("[DELETE]: %s", action.path);
+                                target.delete();
+                            } else {
+                                Main.LOG("[RENAMING]: %s -> %s", action.path, action.source);
+                                ctx.touch(new File(projectDir, action.source));
+                                if (!target.renameTo(new File(projectDir, action.source)))
+                                    throw new IOException("Unable to rename " + action.path);
+                            }
+                            break;
+                        case UNCHANGED:
+                        case CREATE:
+                        case OVERWRITE:
+                            // Identical files are only rewritten when they aren't skipped
+                            if (action.kind == UpgradePlan.Kind.UNCHANGED && Main.SKIP_IDENTICAL) break;
+                            Main.LOG("[%s]: %s", action.kind, action.path);
+                            Files.createDirectories(target.getParentFile().toPath());
+                            sources.add(source);
+                            targets.add(target);
+                            break;
+                        case IGNORED:
+                            break;
+                        case MIGRATE_GRADLE:
+                            if (!new GradleMigrator(ctx, target, source).process()) return false;
+                            break;
+                        case MIGRATE_XML:
+                            if (!new XmlMigrator(ctx, target, source).process()) return false;
+                            break;
+                    }
+                } catch (Exception e) {
+                    Main.ERROR(uiCallback, "Failed to apply %s: %s", action, e.getMessage());
+                    return false;
+                }
+            }
+            if (!copyFiles(ctx, phase, sources, targets, packageInterceptor)) return false;
+        } finally {
+            BackupRestore.saveTouched(ctx);
+        }
+        ctx.endPhase();
+        Main.STATUS(uiCallback, "Applied the upgrade plan, the upgrade is complete for %s!", ctx.getAppName());
+        uiCallback.onUpdateSuccessful();
+        return true;
+    }
+
+    /**
+     * Copies the files apply collected for a phase, then forgets them.
+     */
+    private static boolean copyFiles(UpgradeContext ctx, UpgradeContext.Phase phase, List<File> sources,
+                                     List<File> targets, FileUtil.CopyInterceptor packageInterceptor) {
+        if (sources.isEmpty()) return true;
+        final FileUtil.CopyInterceptor interceptor;
+        if (phase == UpgradeContext.Phase.LICENSING) {
+            interceptor = Main.VERBATIM_INTERCEPTOR;
+        } else if (phase == UpgradeContext.Phase.XML_MIGRATION) {
+            interceptor = null;
+        } else {
+            interceptor = packageInterceptor;
+        }
+        try {
+            ParallelCopy.copyFiles(ctx, sources, targets, interceptor);
+        } catch (Exception e) {
+            Main.ERROR(ctx.getUiCallback(), "Failed to copy the files of the %s phase: %s", phase, e.getMessage());
+            return false;
+        } finally {
+            sources.clear();
+            targets.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Detects the project, then downloads and extracts Polar's latest code into workDir, which
+     * leaves the project itself untouched.
+     */
+    private static boolean prepare(UpgradeContext ctx, File workDir) {
+        ctx.beginPhase(UpgradeContext.Phase.DETECT);
+        if (!Main.detectProject(ctx)) return false;
+        return Main.downloadArchive(ctx, workDir);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 || !(args[0].equals("plan") || args[0].equals("apply"))) {
+            System.out.println("Usage: UpgradePlanner plan <project folder> <plan file>\n" +
+                    "       UpgradePlanner apply <project folder> <plan file>");
+            System.exit(2);
+            return;
+        }
+        final File projectDir = new File(args[1]).getAbsoluteFile();
+        final File planFile = new File(args[2]);
+        final SilentCallback callback = new SilentCallback();
+        final UpgradeContext ctx = new UpgradeContext(projectDir, callback);
+        final File workDir = Files.createTempDirectory("polar-plan").toFile();
+        try {
+            if (!prepare(ctx, workDir)) {
+                Main.LOG("[FAILED]: %s", callback.getError());
+                System.exit(1);
+                return;
+            }
+            if (args[0].equals("plan")) {
+                final long start = System.nanoTime();
+                final UpgradePlan plan = plan(ctx);
+                plan.save(planFile);
+                for (UpgradePlan.Action action : plan.getActions()) {
+                    if (action.kind != UpgradePlan.Kind.UNCHANGED && action.kind != UpgradePlan.Kind.IGNORED)
+                        Main.PRINT(action + "\n");
+                }
+                Main.PRINT(String.format("\n%s, planned in %d ms. Saved to %s.\n", plan.counts(),
+                        (System.nanoTime() - start) / 1000000, planFile.getAbsolutePath()));
+            } else {
+                final UpgradePlan plan = UpgradePlan.load(planFile);
+                if (!plan.getProject().equals(projectDir.getAbsolutePath()))
+                    Main.LOG("[WARNING]: The plan was made for %s.", plan.getProject());
+                if (!apply(ctx, plan)) {
+                    Main.LOG("[FAILED]: %s", callback.getError());
+                    System.exit(1);
+                }
+            }
+        } finally {
+            FileUtil.wipe(workDir);
+        }
+    }
+}
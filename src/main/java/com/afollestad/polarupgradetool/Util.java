@@ -2,8 +2,10 @@ package com.afollestad.polarupgradetool;
 
 import java.io.Closeable;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.util.Locale;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -18,16 +20,103 @@ public class Util {
         }
     }
 
-    public static String round(double value) {
+    public static <T extends Enum<T>> T enumProperty(String key, T defaultValue) {
+        final String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("[WARNING]: Unknown value %s for %s, using %s.", value, key,
+                    defaultValue.name().toLowerCase(Locale.ENGLISH)));
+            return defaultValue;
+        }
+    }
+
+    public static boolean booleanProperty(String key, boolean defaultValue) {
+        final String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    public static int intProperty(String key, int defaultValue) {
+        final String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println(String.format("[WARNING]: %s must be a number, using %d.", key, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    public static File fileProperty(String key) {
+        final String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return null;
+        return new File(value.trim());
+    }
+
+    /**
+     * @return The value as a quoted JSON string.
+     */
+    public static String jsonString(String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * @return When the JVM started, in milliseconds since the epoch, to compare how long each launcher
+     * takes to be ready. Loading the management classes takes a while, so call this once the launcher is.
+     */
+    public static long jvmStartedAt() {
+        return ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    public static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    // DecimalFormat isn't thread-safe, and is costly to create on every progress update
+    private static final ThreadLocal<DecimalFormat> ROUND_FORMAT = ThreadLocal.withInitial(() -> {
         final DecimalFormat df = new DecimalFormat("#.##");
         df.setRoundingMode(RoundingMode.CEILING);
-        return df.format(value);
+        return df;
+    });
+
+    public static String round(double value) {
+        return ROUND_FORMAT.get().format(value);
     }
 
     public static String round(float value) {
-        final DecimalFormat df = new DecimalFormat("#.##");
-        df.setRoundingMode(RoundingMode.CEILING);
-        return df.format(value);
+        return ROUND_FORMAT.get().format(value);
     }
 
     public static String readableFileSizeMB(long size) {
@@ -2,11 +2,15 @@ package com.afollestad.polarupgradetool;
 
 import com.afollestad.polarupgradetool.jfx.UICallback;
 
-import java.io.File;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -26,58 +30,111 @@ public class XmlMigrator {
 //        return String.format(baseRegex, elementNamesStr, elementNamesStr);
 //    }
 
+    // Latest files up to this size are read ahead whole; larger ones are streamed, so memory stays bounded
+    static final long READ_AHEAD_LIMIT = 4 * 1024 * 1024;
+
     private final File mProject;
     private final File mLatest;
 
-    private UICallback uiCallback;
+    private final UpgradeContext ctx;
+    private final UICallback uiCallback;
+
+    public XmlMigrator(UpgradeContext ctx, File project, File latest) {
+        this(ctx, project, latest, ctx.getUiCallback());
+    }
 
-    public XmlMigrator(File project, File latest, UICallback uiCallback) {
+    // Reports to the given callback instead of the context's
+    XmlMigrator(UpgradeContext ctx, File project, File latest, UICallback uiCallback) {
         mProject = project;
         mLatest = latest;
+        this.ctx = ctx;
         this.uiCallback = uiCallback;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public boolean process() {
+        return process(false);
+    }
+
+    /**
+     * @param readAhead Whether to read the latest file on another thread of the current ForkJoinPool
+     *                  while the project's values are read, instead of streaming it afterwards. Only
+     *                  latest files up to READ_AHEAD_LIMIT are; larger ones are streamed regardless.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    boolean process(boolean readAhead) {
         if (!mProject.exists()) {
-            Main.LOG("[ERROR]: %s doesn't exist.", Main.cleanupPath(mProject.getAbsolutePath()));
-            if (uiCallback != null)
-                uiCallback.onErrorOccurred(Main.cleanupPath(mProject.getAbsolutePath()) + " doesn't exist.");
+            Main.ERROR(uiCallback, "%s doesn't exist.", ctx.cleanupPath(mProject.getAbsolutePath()));
             return false;
         } else if (!mLatest.exists()) {
-            Main.LOG("[ERROR]: %s doesn't exist.", Main.cleanupPath(mLatest.getAbsolutePath()));
-            if (uiCallback != null)
-                uiCallback.onErrorOccurred(Main.cleanupPath(mLatest.getAbsolutePath()) + " doesn't exist.");
+            Main.ERROR(uiCallback, "%s doesn't exist.", ctx.cleanupPath(mLatest.getAbsolutePath()));
             return false;
         }
 
-        final HashMap<String, String> mSourceValues = new HashMap<>();
+        final ForkJoinTask<byte[]> latestContent = readAhead && mLatest.length() <= READ_AHEAD_LIMIT ?
+                ForkJoinTask.adapt(() -> Files.readAllBytes(mLatest.toPath())).fork() : null;
+        final HashMap<String, String> mSourceValues;
 
         // Read the project (local) file to pull out the user's current configuration
         try {
-            byte[] fileRaw = Files.readAllBytes(Paths.get(mProject.getAbsolutePath()));
-            final StringBuilder fileContent = new StringBuilder(new String(fileRaw, "UTF-8"));
-            final XmlScanner scanner = new XmlScanner(fileContent, mProject);
-
-            while (!scanner.reachedEnd()) {
-                final String tag = scanner.nextTag();
-                if (tag == null) continue;
-                final String attributeName = AttributeExtractor.getAttributeValue("name", tag);
-                final String tagValue = scanner.tagValue();
-                if (tagValue != null)
-                    mSourceValues.put(attributeName, tagValue);
-            }
+            mSourceValues = readProjectValues(mProject);
         } catch (Exception e) {
-            Main.LOG("[ERROR]: Failed to process %s for XML migration: %s",
-                    Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
-            if (uiCallback != null) {
-                uiCallback.onErrorOccurred(String.format("Failed to process %s for XML migration: %s",
-                        Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage()));
+            Main.ERROR(uiCallback, "Failed to process %s for XML migration: %s",
+                    ctx.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        // Put original project configuration back where possible, leaving new configuration added.
+        // The result is streamed to a temporary file, which then replaces the project file.
+        final File temp = new File(mProject.getAbsolutePath() + ".tmp");
+        XmlStreamScanner scanner = null;
+        try {
+            final Reader latest = latestContent != null ?
+                    new InputStreamReader(new ByteArrayInputStream(join(latestContent)), StandardCharsets.UTF_8) : reader(mLatest);
+            scanner = new XmlStreamScanner(latest,
+                    new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+            while (scanner.next()) {
+                final String attributeName = scanner.attribute("name");
+                if (mSourceValues.containsKey(attributeName))
+                    scanner.setValue(mSourceValues.get(attributeName));
             }
+            scanner.finish();
+        } catch (Exception e) {
+            Util.closeQuietely(scanner);
+            temp.delete();
+            Main.ERROR(uiCallback, "Failed to process %s for XML migration: %s",
+                    ctx.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        // Write the latest (remote) file's changed contents to the project (local) file
+        try {
+            scanner.close();
+            ctx.touch(mProject);
+            Files.move(temp.toPath(), mProject.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            temp.delete();
+            Main.ERROR(uiCallback, "Failed to write to %s: %s", ctx.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
             e.printStackTrace();
             return false;
         }
 
+        Main.STATUS(uiCallback, "Migrated XML resource file: %s", ctx.cleanupPath(mProject.getAbsolutePath()));
+        return true;
+    }
+
+    // The user's current configuration, by element name. It's read from the given file, which is
+    // usually the project file, but may be one that will be renamed to it.
+    private HashMap<String, String> readProjectValues(File project) throws IOException {
+        final HashMap<String, String> mSourceValues = new HashMap<>();
+        try (XmlStreamScanner scanner = new XmlStreamScanner(reader(project), null)) {
+            while (scanner.next()) {
+                final String attributeName = scanner.attribute("name");
+                mSourceValues.put(attributeName, scanner.value());
+            }
+        }
+
         if (mProject.getName().equals("dev_customization.xml")) {
             // If project defaults are used in project file, set them to empty/null
             if (!mSourceValues.containsKey("wallpapers_json_url")) {
@@ -95,49 +152,38 @@ public class XmlMigrator {
                 mSourceValues.put("feedback_email", mSourceValues.get("icon_request_email"));
             }
         }
+        return mSourceValues;
+    }
 
-        // Put original project configuration back where possible, leaving new configuration added
-        StringBuilder newFileContent;
-        try {
-            byte[] fileRaw = Files.readAllBytes(Paths.get(mLatest.getAbsolutePath()));
-            newFileContent = new StringBuilder(new String(fileRaw, "UTF-8"));
-            XmlScanner scanner = new XmlScanner(newFileContent, mLatest);
-
-            while (!scanner.reachedEnd()) {
-                final String tag = scanner.nextTag();
-                if (tag == null) continue;
-                final String attributeName = AttributeExtractor.getAttributeValue("name", tag);
-                if (mSourceValues.containsKey(attributeName))
-                    scanner.setElementValue(mSourceValues.get(attributeName));
-            }
-        } catch (Exception e) {
-            Main.LOG("[ERROR]: Failed to process %s for XML migration: %s",
-                    Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
-            if (uiCallback != null) {
-                uiCallback.onErrorOccurred(String.format("Failed to process %s for XML migration: %s",
-                        Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage()));
+    /**
+     * @param project The file the project's values would be read from; the project file itself,
+     *                unless another file will be renamed to it first.
+     * @return The names of the elements in the latest file whose values {@link #process()} would
+     * replace with the project's, in the order they appear, without writing anything.
+     */
+    List<String> carriedOverNames(File project) throws IOException {
+        final HashMap<String, String> sourceValues = readProjectValues(project);
+        final List<String> names = new ArrayList<>();
+        try (XmlStreamScanner scanner = new XmlStreamScanner(reader(mLatest), null)) {
+            while (scanner.next()) {
+                final String attributeName = scanner.attribute("name");
+                if (sourceValues.containsKey(attributeName))
+                    names.add(attributeName);
             }
-            e.printStackTrace();
-            return false;
         }
+        return names;
+    }
 
-        // Write the latest (remote) file's changed contents to the project (local) file
+    // Unwraps the exception a read ahead failed with
+    private static byte[] join(ForkJoinTask<byte[]> task) throws Exception {
         try {
-            mProject.delete();
-            Files.write(Paths.get(mProject.getAbsolutePath()),
-                    newFileContent.toString().getBytes("UTF-8"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-        } catch (Exception e) {
-            e.printStackTrace();
-            Main.LOG("[ERROR]: Failed to write to %s: %s", Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage());
-            if (uiCallback != null)
-                uiCallback.onErrorOccurred(String.format("Failed to write to %s: %s", Main.cleanupPath(mProject.getAbsolutePath()), e.getMessage()));
-            e.printStackTrace();
-            return false;
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
         }
+    }
 
-        Main.LOG("[INFO]: Migrated %s", Main.cleanupPath(mProject.getAbsolutePath()));
-        if (uiCallback != null)
-            uiCallback.onStatusUpdate("Migrated XML resource file: " + Main.cleanupPath(mProject.getAbsolutePath()));
-        return true;
+    private static Reader reader(File file) throws IOException {
+        return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
     }
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * An iterative, streaming XML scanner. It reads XML from a Reader and stops at every element that
+ * has a name attribute, e.g. {@code <string name="app_name">Polar</string>}, reporting the element's
+ * value along with its offsets in the source. Headers, comments, CDATA sections, closing tags and
+ * elements without a name are skipped.
+ * <p>
+ * When a Writer is given, everything read is copied to it, with the values of elements passed to
+ * {@link #setValue(String)} replaced. Only the element or other construct being scanned is kept in
+ * memory, so files of any size can be scanned and rewritten.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class XmlStreamScanner implements Closeable {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final Reader mIn;
+    private final Writer mOut;
+
+    private char[] mBuf = new char[CHUNK_SIZE * 2];
+    // Lets AttributeLexer read the buffer without copying it
+    private final CharSequence mView = new BufferView();
+    // Number of chars in the buffer
+    private int mLength;
+    // Source offset of mBuf[0]
+    private long mBase;
+    // Chars before this index have been written out (or dropped, when there's no Writer)
+    private int mSettled;
+    // Where scanning continues
+    private int mPos;
+    private boolean mEof;
+
+    // The current element
+    private boolean mHasElement;
+    private String mTagName;
+    private int mTagStart;
+    private int mValueStart;
+    private int mValueEnd;
+    private int mTagEnd;
+    private String mReplacement;
+
+    public XmlStreamScanner(Reader in, Writer out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * Moves to the next element with a name attribute.
+     *
+     * @return False when the end of the input was reached.
+     */
+    public boolean next() throws IOException {
+        finishElement();
+        while (true) {
+            compact();
+            final int open = indexOf("<", mPos);
+            if (open < 0 || !ensure(open + 1)) return end();
+
+            final char kind = mBuf[open + 1];
+            int skipTo;
+            if (kind == '?') {
+                skipTo = skipPast("?>", open + 2);
+            } else if (kind == '!') {
+                if (startsWith(open, "<!--")) skipTo = skipPast("-->", open + 4);
+                else if (startsWith(open, "<![CDATA[")) skipTo = skipPast("]]>", open + 9);
+                else skipTo = skipPast(">", open + 2);
+            } else if (kind == '/') {
+                skipTo = skipPast(">", open + 2);
+            } else {
+                final int close = tagEnd(open + 1);
+                if (close < 0) return end();
+                int nameEnd = open + 1;
+                while (nameEnd < close && !isWhitespace(mBuf[nameEnd]) && mBuf[nameEnd] != '/')
+                    nameEnd++;
+                if (mBuf[close - 1] == '/' || AttributeLexer.find(mView, nameEnd, close, "name") == AttributeLexer.NOT_FOUND) {
+                    // Self-closing elements have no value, and elements without a name can't be matched
+                    skipTo = close + 1;
+                } else {
+                    final String tagName = new String(mBuf, open + 1, nameEnd - (open + 1));
+                    final String endTag = "</" + tagName + ">";
+                    final int valueEnd = indexOf(endTag, close + 1);
+                    if (valueEnd < 0) {
+                        // No end to this element, skip it
+                        skipTo = close + 1;
+                    } else {
+                        mHasElement = true;
+                        mTagName = tagName;
+                        mTagStart = open;
+                        mValueStart = close + 1;
+                        mValueEnd = valueEnd;
+                        mTagEnd = valueEnd + endTag.length();
+                        mReplacement = null;
+                        // The start tag is passed through as it is, the value is held until it may be replaced
+                        settle(mValueStart);
+                        mPos = mTagEnd;
+                        return true;
+                    }
+                }
+            }
+            if (skipTo < 0) return end();
+            settle(skipTo);
+            mPos = skipTo;
+        }
+    }
+
+    public String tagName() {
+        return mHasElement ? mTagName : null;
+    }
+
+    /**
+     * @return The start tag of the current element, including its attributes.
+     */
+    public String startTag() {
+        return mHasElement ? new String(mBuf, mTagStart, mValueStart - mTagStart) : null;
+    }
+
+    /**
+     * @return The value of one of the current element's attributes, or null if it doesn't have it.
+     */
+    public String attribute(String name) {
+        return mHasElement ? AttributeLexer.value(mView, mTagStart, mValueStart, name) : null;
+    }
+
+    /**
+     * Compares one of the current element's attributes to a value without copying it out of the buffer.
+     */
+    public boolean attributeEquals(String name, String expected) {
+        return mHasElement && AttributeLexer.valueEquals(mView, mTagStart, mValueStart, name, expected);
+    }
+
+    public String value() {
+        return mHasElement ? new String(mBuf, mValueStart, mValueEnd - mValueStart) : null;
+    }
+
+    // Offsets in the source, counted in chars
+
+    public long startOffset() {
+        return mBase + mTagStart;
+    }
+
+    public long valueStartOffset() {
+        return mBase + mValueStart;
+    }
+
+    public long valueEndOffset() {
+        return mBase + mValueEnd;
+    }
+
+    public long endOffset() {
+        return mBase + mTagEnd;
+    }
+
+    /**
+     * Writes the given value in place of the current element's value.
+     */
+    public void setValue(String value) {
+        if (!mHasElement) throw new IllegalStateException("There's no current element.");
+        if (mOut == null) throw new IllegalStateException("Values can only be replaced when writing.");
+        mReplacement = value;
+    }
+
+    /**
+     * Copies whatever remains of the input to the Writer.
+     */
+    public void finish() throws IOException {
+        //noinspection StatementWithEmptyBody
+        while (next()) ;
+        if (mOut != null) mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+        if (mOut != null) mOut.close();
+    }
+
+    private void finishElement() throws IOException {
+        if (!mHasElement) return;
+        if (mReplacement != null) {
+            mOut.write(mReplacement);
+            mSettled = mValueEnd;
+        }
+        settle(mTagEnd);
+        mHasElement = false;
+        mReplacement = null;
+    }
+
+    private boolean end() throws IOException {
+        do {
+            settle(mLength);
+            mPos = mLength;
+            compact();
+        } while (fill());
+        return false;
+    }
+
+    private void settle(int to) throws IOException {
+        if (to <= mSettled) return;
+        if (mOut != null) mOut.write(mBuf, mSettled, to - mSettled);
+        mSettled = to;
+    }
+
+    // Drops settled chars from the front of the buffer once they take up half of it; only called
+    // while no indices into the buffer are held
+    private void compact() {
+        if (mHasElement || mSettled < mBuf.length / 2) return;
+        final int drop = Math.min(mSettled, mPos);
+        System.arraycopy(mBuf, drop, mBuf, 0, mLength - drop);
+        mLength -= drop;
+        mSettled -= drop;
+        mPos -= drop;
+        mBase += drop;
+    }
+
+    private boolean fill() throws IOException {
+        if (mEof) return false;
+        if (mLength == mBuf.length)
+            mBuf = Arrays.copyOf(mBuf, mBuf.length * 2);
+        final int read = mIn.read(mBuf, mLength, Math.min(CHUNK_SIZE, mBuf.length - mLength));
+        if (read < 0) {
+            mEof = true;
+            return false;
+        }
+        mLength += read;
+        return true;
+    }
+
+    private boolean ensure(int index) throws IOException {
+        while (index >= mLength) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(String s, int from) throws IOException {
+        final char first = s.charAt(0);
+        for (int i = from; ; i++) {
+            if (!ensure(i)) return -1;
+            if (mBuf[i] == first && startsWith(i, s)) return i;
+        }
+    }
+
+    private int skipPast(String s, int from) throws IOException {
+        final int index = indexOf(s, from);
+        return index < 0 ? -1 : index + s.length();
+    }
+
+    private boolean startsWith(int index, String s) throws IOException {
+        if (!ensure(index + s.length() - 1)) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (mBuf[index + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Finds the '>' that ends a start tag, ignoring any inside quoted attribute values
+    private int tagEnd(int from) throws IOException {
+        char quote = 0;
+        for (int i = from; ; i++) {
+            if (!ensure(i)) return -1;
+            final char c = mBuf[i];
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private class BufferView implements CharSequence {
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mBuf[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mBuf, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBuf, 0, mLength);
+        }
+    }
+}
@@ -1,10 +1,24 @@
 package com.afollestad.polarupgradetool;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -13,12 +27,22 @@ import java.util.zip.ZipOutputStream;
  */
 class ZipUtil {
 
+    // Files above this size are streamed from disk by the writer instead of being held in memory
+    private static final long LARGE_FILE_SIZE = 8 * 1024 * 1024;
+    // Entries that may be in flight per worker before the walk waits for the writer to catch up
+    private static final int ENTRIES_PER_WORKER = 8;
+
+    static boolean isExcludedFolder(String name) {
+        return name.equals(".git") || name.equals(".idea") || name.equals(BackupStore.DEFAULT_FOLDER) ||
+                name.startsWith(SnapshotBackup.DEFAULT_FOLDER);
+    }
+
     private static ArrayList<File> getAllFiles(File dir) {
         ArrayList<File> fileList = new ArrayList<>();
         File[] files = dir.listFiles();
         if (files == null) return fileList;
         for (File file : files) {
-            if ((file.getName().equals(".git") || file.getName().equals(".idea")) && file.isDirectory())
+            if (isExcludedFolder(file.getName()) && file.isDirectory())
                 continue;
             fileList.add(file);
             if (file.isDirectory())
@@ -28,6 +52,192 @@ class ZipUtil {
     }
 
     public static void writeZipFile(File directoryToZip, File destZipFile) throws Exception {
+        writeZipFile(directoryToZip, destZipFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void writeZipFile(File directoryToZip, File destZipFile, int threads) throws Exception {
+        writeZipFile(directoryToZip, destZipFile, threads, null);
+    }
+
+    /**
+     * Zips a directory, compressing entries on a pool of worker threads. The directory tree is walked
+     * lazily and entries are written in walk order as soon as their compressed data is ready, with at
+     * most a few entries per worker held in memory at once. Files and bytes are counted into progress,
+     * if given, as they're found and written.
+     */
+    public static void writeZipFile(File directoryToZip, File destZipFile, int threads, ProgressModel progress) throws Exception {
+        final Path root = directoryToZip.toPath();
+        final Path dest = destZipFile.toPath().toAbsolutePath();
+        ParallelZip zip = null;
+        try {
+            zip = new ParallelZip(destZipFile, threads, progress);
+            final ParallelZip out = zip;
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && isExcludedFolder(dir.getFileName().toString()))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile() || file.toAbsolutePath().equals(dest))
+                        return FileVisitResult.CONTINUE;
+                    if (progress != null)
+                        progress.addTotal(1, attrs.size());
+                    out.add(file, entryName(root, file), attrs.size(), attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    throw exc;
+                }
+            });
+            zip.finish();
+        } finally {
+            Util.closeQuietely(zip);
+        }
+    }
+
+    /**
+     * Writes entries added in order to a ZIP file, preparing them on a pool of worker threads.
+     */
+    static class ParallelZip implements Closeable {
+
+        private final ZipWriter mWriter;
+        private final ExecutorService mPool;
+        private final ArrayDeque<Future<ZipWriter.Entry>> mPending;
+        private final int mWindow;
+        private final ProgressModel mProgress;
+
+        ParallelZip(File destZipFile, int threads, ProgressModel progress) throws IOException {
+            mProgress = progress;
+            threads = Math.max(1, threads);
+            mWindow = threads * ENTRIES_PER_WORKER;
+            mPending = new ArrayDeque<>(mWindow);
+            mWriter = new ZipWriter(new FileOutputStream(destZipFile));
+            mPool = Executors.newFixedThreadPool(threads);
+        }
+
+        public void add(Path file, String name, long size, long time) throws IOException {
+            mPending.add(mPool.submit(() -> prepareEntry(file, name, size, time)));
+            while (mPending.size() >= mWindow)
+                writeNext();
+        }
+
+        public void setComment(String comment) {
+            mWriter.setComment(comment);
+        }
+
+        public void finish() throws IOException {
+            while (!mPending.isEmpty())
+                writeNext();
+            mWriter.finish();
+        }
+
+        private void writeNext() throws IOException {
+            final ZipWriter.Entry entry;
+            try {
+                entry = mPending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while zipping files.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            Main.DEBUG("Zipping %s", entry.name);
+            mWriter.write(entry);
+            if (mProgress != null)
+                mProgress.addDone(1, entry.size);
+        }
+
+        @Override
+        public void close() {
+            mPool.shutdownNow();
+            Util.closeQuietely(mWriter);
+        }
+    }
+
+    static String entryName(Path root, Path file) {
+        // ZIP entry names always use forward slashes, regardless of platform
+        final Path relative = root.relativize(file);
+        final StringBuilder sb = new StringBuilder();
+        for (Path part : relative) {
+            if (sb.length() > 0) sb.append('/');
+            sb.append(part.toString());
+        }
+        return sb.toString();
+    }
+
+    private static boolean isCompressed(String name) {
+        name = name.toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") ||
+                name.endsWith(".webp") || name.endsWith(".gif") || name.endsWith(".zip") ||
+                name.endsWith(".jar") || name.endsWith(".apk");
+    }
+
+    // Runs on a worker thread: reads, checksums and (when worthwhile) deflates a single file
+    private static ZipWriter.Entry prepareEntry(Path file, String name, long size, long time) throws IOException {
+        final Trace.Span span = Trace.begin(Trace.Op.ZIP_ENTRY, file.toFile());
+        ZipWriter.Entry entry = null;
+        try {
+            entry = readEntry(file, name, size, time);
+            return entry;
+        } finally {
+            span.end(size, entry == null ? Trace.CodePath.FAILED :
+                    entry.method == ZipEntry.DEFLATED ? Trace.CodePath.DEFLATED : Trace.CodePath.STORED);
+        }
+    }
+
+    private static ZipWriter.Entry readEntry(Path file, String name, long size, long time) throws IOException {
+        final CRC32 crc = new CRC32();
+        if (size > LARGE_FILE_SIZE) {
+            final byte[] buffer = BufferPool.acquire();
+            long total = 0;
+            try (InputStream is = Files.newInputStream(file)) {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    total += read;
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            return new ZipWriter.Entry(name, crc.getValue(), total, file, time);
+        }
+
+        final byte[] raw = Files.readAllBytes(file);
+        crc.update(raw, 0, raw.length);
+        if (!isCompressed(name) && raw.length > 0) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                // Only keep the deflated data if it actually ends up smaller than the input
+                final byte[] out = new byte[raw.length];
+                int length = 0;
+                while (!deflater.finished() && length < out.length)
+                    length += deflater.deflate(out, length, out.length - length);
+                // Trimmed, since entries wait in memory until they're written and the deflated data is
+                // often a fraction of the buffer
+                if (deflater.finished() && length < raw.length)
+                    return new ZipWriter.Entry(name, ZipEntry.DEFLATED, crc.getValue(), raw.length,
+                            Arrays.copyOf(out, length), length, time);
+            } finally {
+                deflater.end();
+            }
+        }
+        return new ZipWriter.Entry(name, ZipEntry.STORED, crc.getValue(), raw.length, raw, raw.length, time);
+    }
+
+    /**
+     * The original single-threaded implementation, kept for comparison against {@link #writeZipFile(File, File, int, ProgressModel)}.
+     */
+    public static void writeZipFileSerial(File directoryToZip, File destZipFile) throws Exception {
         FileOutputStream fos = null;
         ZipOutputStream zos = null;
         final List<File> files = getAllFiles(directoryToZip);
@@ -47,22 +257,23 @@ class ZipUtil {
 
     private static void addToZip(File directoryToZip, File file, ZipOutputStream zos) throws Exception {
         FileInputStream fis = null;
+        final byte[] bytes = BufferPool.acquire();
         try {
             fis = new FileInputStream(file);
             // we want the zipEntry's path to be a relative path that is relative
             // to the directory being zipped, so chop off the rest of the path
             final String zipFilePath = file.getCanonicalPath().substring(directoryToZip.getCanonicalPath().length() + 1,
                     file.getCanonicalPath().length());
-            Main.LOG("[INFO] Zipping %s", zipFilePath);
+            Main.DEBUG("Zipping %s", zipFilePath);
             ZipEntry zipEntry = new ZipEntry(zipFilePath);
             zos.putNextEntry(zipEntry);
-            byte[] bytes = new byte[Main.BUFFER_SIZE];
             int length;
             while ((length = fis.read(bytes)) >= 0)
                 zos.write(bytes, 0, length);
             zos.closeEntry();
         } finally {
             Util.closeQuietely(fis);
+            BufferPool.release(bytes);
         }
     }
 
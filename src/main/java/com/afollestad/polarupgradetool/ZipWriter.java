@@ -0,0 +1,234 @@
+package com.afollestad.polarupgradetool;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a ZIP archive from entries that were already compressed elsewhere, so that
+ * deflating can happen on worker threads while this class only stitches the results
+ * together in order. ZIP64 records are written when the archive needs them.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ZipWriter implements Closeable {
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    static class Entry {
+
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final long time;
+        // Either the (possibly compressed) data, or a file to copy verbatim for large STORED entries
+        final byte[] data;
+        final Path file;
+
+        Entry(String name, int method, long crc, long size, byte[] data, int dataLength, long time) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = dataLength;
+            this.time = time;
+            this.data = data;
+            this.file = null;
+        }
+
+        Entry(String name, long crc, long size, Path file, long time) {
+            this.name = name;
+            this.method = ZipEntry.STORED;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = size;
+            this.time = time;
+            this.data = null;
+            this.file = file;
+        }
+    }
+
+    private final OutputStream mOut;
+    // Set when writing straight to a file, so large stored entries can be transferred by the kernel
+    private final FileChannel mChannel;
+    private final ByteArrayOutputStream mCentral = new ByteArrayOutputStream();
+    private final byte[] mScratch = new byte[8];
+    private long mOffset;
+    private long mCount;
+    private boolean mFinished;
+    private byte[] mComment = new byte[0];
+
+    ZipWriter(OutputStream out) {
+        mOut = new BufferedOutputStream(out, 64 * 1024);
+        mChannel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+    }
+
+    public void write(Entry entry) throws IOException {
+        final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        final int dosTime = dosTime(entry.time);
+        final boolean zip64Sizes = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        final long headerOffset = mOffset;
+
+        // Local file header
+        writeInt(mOut, 0x04034b50L);
+        writeShort(mOut, zip64Sizes ? 45 : 20);
+        writeShort(mOut, FLAG_UTF8);
+        writeShort(mOut, entry.method);
+        writeInt(mOut, dosTime);
+        writeInt(mOut, entry.crc);
+        writeInt(mOut, zip64Sizes ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(mOut, zip64Sizes ? ZIP64_MAGIC : entry.size);
+        writeShort(mOut, name.length);
+        writeShort(mOut, zip64Sizes ? 20 : 0);
+        mOut.write(name);
+        mOffset += 30 + name.length;
+        if (zip64Sizes) {
+            writeShort(mOut, 0x0001);
+            writeShort(mOut, 16);
+            writeLong(mOut, entry.size);
+            writeLong(mOut, entry.compressedSize);
+            mOffset += 20;
+        }
+
+        // Entry data
+        if (entry.data != null) {
+            mOut.write(entry.data, 0, (int) entry.compressedSize);
+        } else {
+            final long copied;
+            if (mChannel != null) {
+                mOut.flush();
+                try (FileChannel source = FileChannel.open(entry.file)) {
+                    copied = FileUtil.transfer(source, mChannel);
+                }
+            } else {
+                copied = Files.copy(entry.file, mOut);
+            }
+            if (copied != entry.size)
+                throw new IOException(entry.file + " changed while it was being zipped.");
+        }
+        mOffset += entry.compressedSize;
+
+        // Central directory record, written out by finish()
+        final boolean zip64Offset = headerOffset >= ZIP64_MAGIC;
+        final int extraLength = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+        writeInt(mCentral, 0x02014b50L);
+        writeShort(mCentral, extraLength > 0 ? 45 : 20);
+        writeShort(mCentral, extraLength > 0 ? 45 : 20);
+        writeShort(mCentral, FLAG_UTF8);
+        writeShort(mCentral, entry.method);
+        writeInt(mCentral, dosTime);
+        writeInt(mCentral, entry.crc);
+        writeInt(mCentral, zip64Sizes ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(mCentral, zip64Sizes ? ZIP64_MAGIC : entry.size);
+        writeShort(mCentral, name.length);
+        writeShort(mCentral, extraLength > 0 ? extraLength + 4 : 0);
+        writeShort(mCentral, 0); // comment length
+        writeShort(mCentral, 0); // disk number start
+        writeShort(mCentral, 0); // internal attributes
+        writeInt(mCentral, 0); // external attributes
+        writeInt(mCentral, zip64Offset ? ZIP64_MAGIC : headerOffset);
+        mCentral.write(name);
+        if (extraLength > 0) {
+            writeShort(mCentral, 0x0001);
+            writeShort(mCentral, extraLength);
+            if (zip64Sizes) {
+                writeLong(mCentral, entry.size);
+                writeLong(mCentral, entry.compressedSize);
+            }
+            if (zip64Offset)
+                writeLong(mCentral, headerOffset);
+        }
+        mCount++;
+    }
+
+    /**
+     * Sets the archive's comment, written by {@link #finish()}.
+     */
+    public void setComment(String comment) {
+        mComment = comment != null ? comment.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (mComment.length > 0xFFFF)
+            throw new IllegalArgumentException("The comment is too long.");
+    }
+
+    public void finish() throws IOException {
+        if (mFinished) return;
+        mFinished = true;
+        final long centralOffset = mOffset;
+        final long centralSize = mCentral.size();
+        mCentral.writeTo(mOut);
+        mOffset += centralSize;
+
+        if (mCount >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            final long zip64EndOffset = mOffset;
+            // ZIP64 end of central directory record
+            writeInt(mOut, 0x06064b50L);
+            writeLong(mOut, 44);
+            writeShort(mOut, 45);
+            writeShort(mOut, 45);
+            writeInt(mOut, 0);
+            writeInt(mOut, 0);
+            writeLong(mOut, mCount);
+            writeLong(mOut, mCount);
+            writeLong(mOut, centralSize);
+            writeLong(mOut, centralOffset);
+            // ZIP64 end of central directory locator
+            writeInt(mOut, 0x07064b50L);
+            writeInt(mOut, 0);
+            writeLong(mOut, zip64EndOffset);
+            writeInt(mOut, 1);
+        }
+
+        // End of central directory record
+        writeInt(mOut, 0x06054b50L);
+        writeShort(mOut, 0);
+        writeShort(mOut, 0);
+        writeShort(mOut, (int) Math.min(mCount, ZIP64_MAGIC_COUNT));
+        writeShort(mOut, (int) Math.min(mCount, ZIP64_MAGIC_COUNT));
+        writeInt(mOut, Math.min(centralSize, ZIP64_MAGIC));
+        writeInt(mOut, Math.min(centralOffset, ZIP64_MAGIC));
+        writeShort(mOut, mComment.length);
+        mOut.write(mComment);
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private static int dosTime(long millis) {
+        final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16 |
+                time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private void writeShort(OutputStream out, int value) throws IOException {
+        mScratch[0] = (byte) value;
+        mScratch[1] = (byte) (value >> 8);
+        out.write(mScratch, 0, 2);
+    }
+
+    private void writeInt(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 4; i++)
+            mScratch[i] = (byte) (value >> (8 * i));
+        out.write(mScratch, 0, 4);
+    }
+
+    private void writeLong(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 8; i++)
+            mScratch[i] = (byte) (value >> (8 * i));
+        out.write(mScratch, 0, 8);
+    }
+}
@@ -0,0 +1,27 @@
+package com.afollestad.polarupgradetool.cli;
+
+/**
+ * The exit codes of {@link UpgradeCli}, by how far the upgrade got before it failed. Up to and
+ * including DOWNLOAD_FAILED, the project hasn't been changed.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public enum ExitCode {
+
+    OK(0),
+    // An unexpected exception, e.g. a bug in the tool
+    ERROR(1),
+    USAGE(2),
+    // No app/build.gradle or strings.xml app_name was found
+    NOT_A_PROJECT(3),
+    BACKUP_FAILED(4),
+    DOWNLOAD_FAILED(5),
+    // The project was changed part of the way; restore it from the backup
+    UPGRADE_FAILED(6);
+
+    public final int code;
+
+    ExitCode(int code) {
+        this.code = code;
+    }
+}
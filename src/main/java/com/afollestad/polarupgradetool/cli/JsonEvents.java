@@ -0,0 +1,112 @@
+package com.afollestad.polarupgradetool.cli;
+
+import com.afollestad.polarupgradetool.ProgressModel;
+import com.afollestad.polarupgradetool.UpgradeContext;
+import com.afollestad.polarupgradetool.Util;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the events of a headless upgrade as JSON lines, one object per line with its type in "event"
+ * and the time it happened in "time". Each line is flushed as soon as it's written, so a CI job can
+ * follow the upgrade as it goes. Events come from the upgrade thread and the progress thread, so
+ * writing a line is synchronized.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class JsonEvents {
+
+    private final PrintStream mOut;
+
+    JsonEvents(PrintStream out) {
+        mOut = out;
+    }
+
+    void start(String tool, String project) {
+        write(begin("start")
+                .append(",\"tool\":").append(Util.jsonString(tool))
+                .append(",\"java\":").append(Util.jsonString(System.getProperty("java.version")))
+                .append(",\"project\":").append(Util.jsonString(project)));
+    }
+
+    void detected(String appName, String packageName, String versionName, String versionCode) {
+        write(begin("detected")
+                .append(",\"app\":").append(string(appName))
+                .append(",\"package\":").append(string(packageName))
+                .append(",\"versionName\":").append(string(versionName))
+                .append(",\"versionCode\":").append(string(versionCode)));
+    }
+
+    void status(String message) {
+        write(begin("status").append(",\"message\":").append(string(message)));
+    }
+
+    void error(String message) {
+        write(begin("error").append(",\"message\":").append(string(message)));
+    }
+
+    void progress(ProgressModel.Snapshot snapshot) {
+        final StringBuilder json = begin("progress")
+                .append(",\"phase\":\"").append(phase(snapshot.phase)).append("\",");
+        counts(json, snapshot);
+        if (snapshot.overall != null)
+            counts(json.append(",\"overall\":{"), snapshot.overall).append('}');
+        write(json);
+    }
+
+    private static StringBuilder counts(StringBuilder json, ProgressModel.Snapshot snapshot) {
+        return json.append("\"files\":").append(snapshot.files)
+                .append(",\"totalFiles\":").append(snapshot.totalFiles)
+                .append(",\"bytes\":").append(snapshot.bytes)
+                .append(",\"totalBytes\":").append(snapshot.totalBytes)
+                .append(",\"skipped\":").append(snapshot.skipped)
+                .append(",\"elapsedMs\":").append(snapshot.elapsedMillis)
+                .append(",\"etaMs\":").append(snapshot.etaMillis());
+    }
+
+    /**
+     * @param failedPhase   The phase the upgrade stopped in, or null if it succeeded.
+     * @param startupMillis The time from the JVM starting until the upgrade started.
+     * @param phaseNanos    The time spent in each phase that ran.
+     * @param report        The run report written into the project, or null if there isn't one.
+     */
+    void result(ExitCode code, UpgradeContext.Phase failedPhase, long startupMillis, long durationMillis,
+                Map<UpgradeContext.Phase, Long> phaseNanos, String report) {
+        final StringBuilder json = begin("result")
+                .append(",\"success\":").append(code == ExitCode.OK)
+                .append(",\"exitCode\":").append(code.code)
+                .append(",\"reason\":\"").append(code.name().toLowerCase(Locale.ENGLISH)).append('"')
+                .append(",\"failedPhase\":").append(failedPhase != null ? '"' + phase(failedPhase) + '"' : "null")
+                .append(",\"startupMs\":").append(startupMillis)
+                .append(",\"durationMs\":").append(durationMillis)
+                .append(",\"phases\":{");
+        boolean first = true;
+        for (Map.Entry<UpgradeContext.Phase, Long> phase : phaseNanos.entrySet()) {
+            if (!first) json.append(',');
+            json.append('"').append(phase(phase.getKey())).append("\":").append(phase.getValue() / 1000000);
+            first = false;
+        }
+        write(json.append("},\"report\":").append(string(report)));
+    }
+
+    private static StringBuilder begin(String event) {
+        return new StringBuilder(128).append("{\"event\":\"").append(event)
+                .append("\",\"time\":\"").append(Instant.now()).append('"');
+    }
+
+    private static String string(String value) {
+        return value != null ? Util.jsonString(value) : "null";
+    }
+
+    private static String phase(UpgradeContext.Phase phase) {
+        return phase.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private synchronized void write(StringBuilder json) {
+        mOut.print(json.append("}\n"));
+        mOut.flush();
+    }
+}
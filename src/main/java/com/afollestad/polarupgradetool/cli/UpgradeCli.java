@@ -0,0 +1,141 @@
+package com.afollestad.polarupgradetool.cli;
+
+import com.afollestad.polarupgradetool.*;
+import com.afollestad.polarupgradetool.jfx.UICallback;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Upgrades a project without the JavaFX UI, e.g. on a headless CI host. Nothing here touches the
+ * JavaFX toolkit or FXML, so it starts in a fraction of the time the window takes to appear.
+ * <p>
+ * Standard output carries typed events as JSON lines (see {@link JsonEvents}): start, detected,
+ * status, progress, error and a final result. The usual log, progress bars included, goes to standard
+ * error instead. The exit code tells how far the upgrade got, see {@link ExitCode}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class UpgradeCli {
+
+    // Turns the callbacks of the upgrade into events; the preformatted download strings are left out,
+    // since the progress events carry the same numbers
+    private static class EventCallback implements UICallback {
+
+        private final JsonEvents mEvents;
+
+        EventCallback(JsonEvents events) {
+            mEvents = events;
+        }
+
+        @Override
+        public void onProjectDetected(String applicationName, String applicationPackage, String applicationVersionName, String applicationVersionCode) {
+            mEvents.detected(applicationName, applicationPackage, applicationVersionName, applicationVersionCode);
+        }
+
+        @Override
+        public void onErrorOccurred(String errorMessage) {
+            mEvents.error(errorMessage);
+        }
+
+        @Override
+        public void onArchiveDownloadStarted(String sizeStr) {
+        }
+
+        @Override
+        public void onArchiveDownloadProgress(String progressStr) {
+        }
+
+        @Override
+        public void onArchiveDownloadFailed(String errorMessage) {
+            mEvents.error(errorMessage);
+        }
+
+        @Override
+        public void onArchiveDownloadSuccess() {
+        }
+
+        @Override
+        public void onStatusUpdate(String statusMessage) {
+            mEvents.status(statusMessage);
+        }
+
+        @Override
+        public void onUpdateSuccessful() {
+        }
+
+        @Override
+        public void onProgress(ProgressModel.Snapshot snapshot) {
+            mEvents.progress(snapshot);
+        }
+    }
+
+    /**
+     * Upgrades the project, writing its events to the given stream.
+     */
+    public static ExitCode upgrade(File projectDir, PrintStream out) {
+        final JsonEvents events = new JsonEvents(out);
+        final long startedAt = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        events.start(RunReport.toolVersion(), projectDir.getAbsolutePath());
+        final UpgradeContext ctx = new UpgradeContext(projectDir, new EventCallback(events));
+        ExitCode code;
+        try {
+            code = Main.upgrade(ctx) ? ExitCode.OK : exitCode(lastPhase(ctx));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            events.error(t.toString());
+            code = ExitCode.ERROR;
+        }
+        final long millis = (System.nanoTime() - start) / 1000000;
+        final File report = new File(projectDir, RunReport.JSON_FILE);
+        events.result(code, code != ExitCode.OK ? lastPhase(ctx) : null, startedAt - Util.jvmStartedAt(), millis,
+                ctx.getPhaseTimes(), Main.REPORT && report.isFile() ? report.getAbsolutePath() : null);
+        return code;
+    }
+
+    // The phases run in the order they're declared in, so the last one timed is the one the upgrade stopped in
+    private static UpgradeContext.Phase lastPhase(UpgradeContext ctx) {
+        UpgradeContext.Phase last = null;
+        for (Map.Entry<UpgradeContext.Phase, Long> phase : ctx.getPhaseTimes().entrySet())
+            last = phase.getKey();
+        return last;
+    }
+
+    private static ExitCode exitCode(UpgradeContext.Phase failedPhase) {
+        if (failedPhase == null)
+            return ExitCode.ERROR;
+        switch (failedPhase) {
+            case DETECT:
+                return ExitCode.NOT_A_PROJECT;
+            case BACKUP:
+                return ExitCode.BACKUP_FAILED;
+            case DOWNLOAD:
+            case EXTRACT:
+                return ExitCode.DOWNLOAD_FAILED;
+            default:
+                return ExitCode.UPGRADE_FAILED;
+        }
+    }
+
+    public static void main(String[] args) {
+        // Standard output is kept for the events; everything else logged goes to standard error
+        final PrintStream out = System.out;
+        System.setOut(System.err);
+        if (args.length == 1 && args[0].equals("--version")) {
+            out.println(RunReport.toolVersion());
+            System.exit(ExitCode.OK.code);
+            return;
+        }
+        if (args.length != 1 || args[0].startsWith("-")) {
+            System.err.println("Usage: UpgradeCli <project folder>\n" +
+                    "Upgrades the project without the UI, writing JSON lines events to standard output and the log to\n" +
+                    "standard error. Exits with 0 on success, 3 if the folder isn't a Polar project, 4 if the backup\n" +
+                    "failed, 5 if the download failed and 6 if the upgrade failed after changing the project.");
+            System.exit(ExitCode.USAGE.code);
+            return;
+        }
+        System.exit(upgrade(new File(args[0]).getAbsoluteFile(), out).code);
+    }
+}
@@ -1,5 +1,7 @@
 package com.afollestad.polarupgradetool.jfx;
 
+import com.afollestad.polarupgradetool.ProgressModel;
+
 /**
  * Project : polar-dashboard-upgrade-tool
  * Author : pddstudio
@@ -22,4 +24,11 @@ public interface UICallback {
     void onStatusUpdate(String statusMessage);
 
     void onUpdateSuccessful();
+
+    /**
+     * Called with the progress of the running phase at most every polar.progress.interval ms, from a
+     * background thread.
+     */
+    default void onProgress(ProgressModel.Snapshot snapshot) {
+    }
 }
@@ -1,5 +1,7 @@
 package com.afollestad.polarupgradetool.jfx;
 
+import com.afollestad.polarupgradetool.Main;
+import com.afollestad.polarupgradetool.Util;
 import javafx.application.Application;
 import javafx.application.HostServices;
 import javafx.stage.Stage;
@@ -25,6 +27,7 @@ public class UpgradeTool extends Application {
         WindowScene windowScene = new WindowScene();
         stage.setScene(windowScene.getScene());
         stage.show();
+        Main.LOG("[INFO]: Window shown %d ms after the JVM started.", System.currentTimeMillis() - Util.jvmStartedAt());
     }
 
     public static HostServices getHostService() {
@@ -1,6 +1,8 @@
 package com.afollestad.polarupgradetool.jfx;
 
-import com.afollestad.polarupgradetool.Main;
+import com.afollestad.polarupgradetool.ProgressModel;
+import com.afollestad.polarupgradetool.UpgradeContext;
+
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -27,6 +29,7 @@ public class WindowScene {
     private final WindowSceneController windowSceneController;
     private Button updateBtn;
     private ObservableList<String> logMessages;
+    private String appName;
 
     public WindowScene() {
         windowSceneController = new WindowSceneController();
@@ -113,6 +116,7 @@ public class WindowScene {
         @Override
         public void onProjectDetected(String applicationName, String applicationPackage, String applicationVersionName, String applicationVersionCode) {
             if (Platform.isFxApplicationThread()) {
+                appName = applicationName;
                 logMessages.add("Found Project: " + applicationName + " [" + applicationPackage + "], Version Name: " + applicationVersionName + ", Version Code: " + applicationVersionCode);
                 messageListView.scrollTo(logMessages.size() - 1);
             } else {
@@ -149,6 +153,18 @@ public class WindowScene {
             }
         }
 
+        @Override
+        public void onProgress(ProgressModel.Snapshot snapshot) {
+            // The download's progress is shown by onArchiveDownloadProgress
+            if (snapshot.phase == UpgradeContext.Phase.DOWNLOAD) return;
+            if (Platform.isFxApplicationThread()) {
+                downloadProgress.setVisible(true);
+                downloadProgress.setText(snapshot.toString());
+            } else {
+                Platform.runLater(() -> onProgress(snapshot));
+            }
+        }
+
         @Override
         public void onArchiveDownloadSuccess() {
             if (Platform.isFxApplicationThread()) {
@@ -216,7 +232,7 @@ public class WindowScene {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setTitle("Polar Upgrade Tool: Info");
         alert.setHeaderText("Update successful!");
-        alert.setContentText(Main.USER_APPNAME + " is now up to date! Your configuration has been restored.\n\n" +
+        alert.setContentText(appName + " is now up to date! Your configuration has been restored.\n\n" +
                 "Find any issues? Please report them on GitHub. You can undo changes made by this tool either " +
                 "using the backup ZIP archive placed in your project directory, or by using the following Git " +
                 "commands:\n\ngit add -A\ngit stash save\ngit stash drop");